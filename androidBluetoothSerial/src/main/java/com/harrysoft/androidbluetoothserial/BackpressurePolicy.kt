@@ -0,0 +1,29 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * What a device's message stream does when its buffer
+ * is full because the subscriber is not keeping up.
+ */
+enum class BackpressurePolicy {
+    /**
+     * Stop reading from the device until the subscriber catches up.
+     * Nothing is lost, and the device is slowed down by the transport's own flow control.
+     */
+    BLOCK,
+
+    /**
+     * Discard the oldest buffered message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new message, keeping what is already buffered.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Only buffer the most recent message, replacing any that has not yet been delivered.
+     * The buffer capacity is ignored.
+     */
+    KEEP_LATEST
+}
@@ -2,8 +2,10 @@ package com.harrysoft.androidbluetoothserial
 
 import android.bluetooth.BluetoothAdapter
 import android.bluetooth.BluetoothDevice
+import io.reactivex.Flowable
 import io.reactivex.Single
 import java.nio.charset.Charset
+import java.util.concurrent.TimeUnit
 
 interface BluetoothManager : AutoCloseable {
     /**
@@ -34,6 +36,96 @@ interface BluetoothManager : AutoCloseable {
      */
     fun openSerialDevice(mac: String, charset: Charset): Single<BluetoothSerialDevice>
 
+    /**
+     * If the device is already connected, the existing instance is emitted.
+     * If a connection to the device is already in progress, the attempt
+     * is shared rather than a second connection being opened,
+     * in which case the options of the first attempt apply.
+     * If the options have a [DeviceOptions.reconnectPolicy], the connection is
+     * resilient: when it drops, the device reconnects in the background and the
+     * same instance, with its open streams, carries on once it is back, while
+     * messages sent during the outage are queued. Only the initial connection
+     * attempt can fail with a BluetoothConnectException.
+     *
+     * @param mac The MAC address of the device
+     * you are trying to connect to
+     * @param options The options controlling how the device reads and writes
+     * @return An RxJava Single, that will either emit
+     * a BluetoothSerialDevice or a BluetoothConnectException
+     */
+    fun openSerialDevice(mac: String, options: DeviceOptions): Single<BluetoothSerialDevice>
+
+    /**
+     * Connects to several devices in parallel, for example at startup, rather
+     * than one after another. Discovery is cancelled once before the first attempt,
+     * at most [maxConcurrent] attempts are in progress at a time, and an attempt that
+     * has not connected within [timeout] is aborted, so that an unreachable device
+     * does not hold up the others for the system's own timeout. Devices that are already
+     * connected are emitted straight away, and attempts already in progress are shared
+     * as in [openSerialDevice], although a device whose shared attempt has not connected
+     * within [timeout] still fails, while the attempt carries on for its other callers.
+     *
+     * @param macs The MAC addresses of the devices to connect to
+     * @param options The options controlling how the devices read and write
+     * @param maxConcurrent The most connection attempts to make at once
+     * @param timeout How long each attempt may take
+     * @param unit The unit of [timeout]
+     * @return An RxJava Flowable that emits the result for each device as soon as it
+     * is connected or has failed, and completes once every device has a result
+     */
+    fun openSerialDevices(macs: Collection<String>, options: DeviceOptions, maxConcurrent: Int, timeout: Long, unit: TimeUnit): Flowable<ConnectResult>
+
+    /**
+     * Connects to several devices in parallel with the default options, as in [openSerialDevices].
+     *
+     * @param macs The MAC addresses of the devices to connect to
+     * @param maxConcurrent The most connection attempts to make at once
+     * @param timeout How long each attempt may take
+     * @param unit The unit of [timeout]
+     * @return An RxJava Flowable that emits the result for each device as soon as it is connected or has failed
+     */
+    fun openSerialDevices(macs: Collection<String>, maxConcurrent: Int, timeout: Long, unit: TimeUnit): Flowable<ConnectResult>
+
+    /**
+     * Sends a message to several connected devices at once. Each device's
+     * writer sends it in parallel, and a device that fails does not stop the others.
+     *
+     * @param message The message to send
+     * @param macs The MAC addresses of the devices to send to
+     * @return An RxJava Single that emits the result for each device, in the order
+     * of [macs], once every device has finished. Devices that are not connected fail.
+     */
+    fun broadcast(message: String, macs: Collection<String>): Single<List<SendResult>>
+
+    /**
+     * Sends a message to every connected device, as in [broadcast].
+     *
+     * @param message The message to send
+     * @return An RxJava Single that emits the result for each device
+     */
+    fun broadcast(message: String): Single<List<SendResult>>
+
+    /**
+     * Merges the messages of several connected devices into one stream,
+     * each tagged with the device it came from. Every device is read by its
+     * own reader thread as usual, and the merged stream takes a bounded number
+     * of messages from each device in turn, so a busy device cannot starve
+     * the others; when the subscriber falls behind, each device's
+     * [DeviceOptions.backpressurePolicy] applies.
+     *
+     * @param macs The MAC addresses of the devices to listen to
+     * @return An RxJava Flowable of every message from the devices.
+     * It errors if any of the devices is not connected, or if any device's stream errors.
+     */
+    fun openMergedStream(macs: Collection<String>): Flowable<DeviceMessage>
+
+    /**
+     * Merges the messages of every connected device into one stream, as in [openMergedStream].
+     *
+     * @return An RxJava Flowable of every message from the devices
+     */
+    fun openMergedStream(): Flowable<DeviceMessage>
+
     /**
      * Closes the connection to a device. After calling,
      * you should probably set your instance to null
@@ -64,6 +156,24 @@ interface BluetoothManager : AutoCloseable {
      */
     fun closeDevice(deviceInterface: SimpleBluetoothDeviceInterface)
 
+    /**
+     * @return A snapshot of the stats of each connected device, by MAC address
+     */
+    val deviceStats: Map<String, DeviceStats>
+
+    /**
+     * @return The stats of all connected devices combined.
+     * Its [DeviceStats.mac] is null.
+     */
+    val aggregateStats: DeviceStats
+
+    /**
+     * @param period How often to take a snapshot
+     * @param unit The unit of [period]
+     * @return An RxJava Flowable that emits [aggregateStats] every [period]
+     */
+    fun openStatsStream(period: Long, unit: TimeUnit): Flowable<DeviceStats>
+
     /**
      * Closes all connected devices
      */
@@ -78,8 +188,21 @@ interface BluetoothManager : AutoCloseable {
         val instance: BluetoothManager? by lazy {
             val bluetoothAdapter = BluetoothAdapter.getDefaultAdapter()
             if (bluetoothAdapter != null) {
-                BluetoothManagerImpl(bluetoothAdapter)
+                BluetoothManagerImpl(bluetoothAdapter, BluetoothTransportFactory(bluetoothAdapter))
             } else null
         }
+
+        /**
+         * Creates a BluetoothManager that connects to devices using
+         * the given transports instead of Bluetooth sockets, for example
+         * to run on a plain JVM. Its [pairedDevices] will always be empty.
+         *
+         * @param transportFactory The factory to create device connections with
+         * @return A new BluetoothManager instance
+         */
+        @JvmStatic
+        fun create(transportFactory: TransportFactory): BluetoothManager {
+            return BluetoothManagerImpl(null, transportFactory)
+        }
     }
 }
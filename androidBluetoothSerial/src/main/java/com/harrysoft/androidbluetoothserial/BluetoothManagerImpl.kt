@@ -2,45 +2,159 @@ package com.harrysoft.androidbluetoothserial
 
 import android.bluetooth.BluetoothAdapter
 import android.bluetooth.BluetoothDevice
+import io.reactivex.Completable
+import io.reactivex.Flowable
 import io.reactivex.Single
+import io.reactivex.schedulers.Schedulers
+import java.io.IOException
 import java.nio.charset.Charset
-import java.nio.charset.StandardCharsets
-import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 /**
  * Implementation of BluetoothManager, package-private
  */
-internal class BluetoothManagerImpl(private val adapter: BluetoothAdapter) : BluetoothManager {
-    private val devices: MutableMap<String, BluetoothSerialDeviceImpl> = mutableMapOf()
+internal class BluetoothManagerImpl(
+        private val adapter: BluetoothAdapter?,
+        private val transportFactory: TransportFactory
+) : BluetoothManager {
+    private val devices = ConcurrentHashMap<String, BluetoothSerialDeviceImpl>()
+    private val pendingConnects = ConcurrentHashMap<String, PendingConnect>()
+
+    // Guards registering a newly connected device against a concurrent close
+    private val registryLock = Any()
 
     override val pairedDevices: Collection<BluetoothDevice>
-        get() = adapter.bondedDevices
+        get() = adapter?.bondedDevices ?: emptySet()
+
+    override val deviceStats: Map<String, DeviceStats>
+        get() = devices.mapValues { it.value.stats }
+
+    override val aggregateStats: DeviceStats
+        get() = devices.values.fold(DeviceStats.empty()) { total, device -> total + device.stats }
+
+    override fun openStatsStream(period: Long, unit: TimeUnit): Flowable<DeviceStats> {
+        return Flowable.interval(period, unit).map { aggregateStats }
+    }
 
     override fun openSerialDevice(mac: String): Single<BluetoothSerialDevice> {
-        return openSerialDevice(mac, StandardCharsets.UTF_8)
+        return openSerialDevice(mac, DeviceOptions.DEFAULT)
     }
 
     override fun openSerialDevice(mac: String, charset: Charset): Single<BluetoothSerialDevice> {
-        return if (devices.containsKey(mac)) {
-            Single.just(devices[mac]!!)
-        } else {
-            Single.fromCallable {
-                try {
-                    val device = adapter.getRemoteDevice(mac)
-                    val socket = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID)
-                    adapter.cancelDiscovery()
-                    socket.connect()
-                    val serialDevice = BluetoothSerialDeviceImpl(mac, socket, charset)
-                    devices[mac] = serialDevice
-                    return@fromCallable serialDevice
-                } catch (e: Exception) {
-                    throw BluetoothConnectException(e)
-                }
+        return openSerialDevice(mac, DeviceOptions.Builder().charset(charset).build())
+    }
+
+    override fun openSerialDevice(mac: String, options: DeviceOptions): Single<BluetoothSerialDevice> {
+        return openSerialDevice(mac, options, 0, true)
+    }
+
+    override fun openSerialDevices(macs: Collection<String>, maxConcurrent: Int, timeout: Long, unit: TimeUnit): Flowable<ConnectResult> {
+        return openSerialDevices(macs, DeviceOptions.DEFAULT, maxConcurrent, timeout, unit)
+    }
+
+    override fun openSerialDevices(macs: Collection<String>, options: DeviceOptions, maxConcurrent: Int, timeout: Long, unit: TimeUnit): Flowable<ConnectResult> {
+        require(maxConcurrent > 0) { "maxConcurrent must be positive" }
+        require(timeout > 0) { "timeout must be positive" }
+        val timeoutNanos = unit.toNanos(timeout)
+        return Flowable.defer {
+            cancelDiscovery()
+            Flowable.fromIterable(macs.distinct()).flatMapSingle({ mac ->
+                openSerialDevice(mac, options, timeoutNanos, false)
+                        .subscribeOn(Schedulers.io())
+                        .map { ConnectResult(mac, it, null) }
+                        .onErrorReturn { ConnectResult(mac, null, it) }
+            }, false, maxConcurrent)
+        }
+    }
+
+    /**
+     * @param timeoutNanos How long the attempt may take, or zero for no limit
+     * @param cancelDiscovery Whether to cancel discovery first, which the caller may have done already
+     */
+    private fun openSerialDevice(mac: String, options: DeviceOptions, timeoutNanos: Long, cancelDiscovery: Boolean): Single<BluetoothSerialDevice> {
+        return Single.defer {
+            devices[mac]?.let { return@defer Single.just<BluetoothSerialDevice>(it) }
+            val pending = PendingConnect(mac, options, timeoutNanos, cancelDiscovery)
+            val existing = pendingConnects.putIfAbsent(mac, pending) ?: return@defer pending.result
+            existing.join()
+            if (timeoutNanos <= 0) return@defer existing.result
+            // The shared attempt has its own deadline, or none, so this caller only stops waiting for it
+            existing.result.timeout(timeoutNanos, TimeUnit.NANOSECONDS, Schedulers.computation(),
+                    Single.error(BluetoothConnectException(TimeoutException("Connecting to $mac timed out"))))
+        }
+    }
+
+    /**
+     * Connects as [openSerialDevice] does, for a caller that may stop waiting, such as a cancelled coroutine.
+     * Disposing the subscription before it emits abandons the attempt, closing the device
+     * if it has connected meanwhile, but only if this subscription started the attempt
+     * and nobody has joined it since. A device that was already connected is never closed.
+     */
+    internal fun openAbandonableSerialDevice(mac: String, options: DeviceOptions): Single<BluetoothSerialDevice> {
+        return Single.defer {
+            devices[mac]?.let { return@defer Single.just<BluetoothSerialDevice>(it) }
+            val pending = PendingConnect(mac, options, 0, true)
+            val existing = pendingConnects.putIfAbsent(mac, pending)
+            if (existing != null) {
+                existing.join()
+                existing.result
+            } else {
+                pending.result.doOnDispose(pending::abandon)
             }
         }
     }
 
+    /**
+     * @return A new transport to [mac], cancelling discovery first
+     */
+    private fun createTransport(mac: String): SerialTransport {
+        cancelDiscovery()
+        return transportFactory.createTransport(mac)
+    }
+
+    /**
+     * Cancels discovery, which slows connections down
+     */
+    private fun cancelDiscovery() {
+        adapter?.cancelDiscovery()
+    }
+
+    override fun broadcast(message: String, macs: Collection<String>): Single<List<SendResult>> {
+        return Single.defer {
+            if (macs.isEmpty()) return@defer Single.just(emptyList<SendResult>())
+            val sends = macs.map { mac ->
+                val device = devices[mac]
+                val send = if (device != null) Completable.defer { device.send(message) }
+                else Completable.error(IOException("Device $mac is not connected"))
+                send.toSingleDefault(SendResult(mac, null))
+                        .onErrorReturn { SendResult(mac, it) }
+            }
+            Single.zip(sends) { results -> results.map { it as SendResult } }
+        }
+    }
+
+    override fun broadcast(message: String): Single<List<SendResult>> {
+        return Single.defer { broadcast(message, devices.keys.toList()) }
+    }
+
+    override fun openMergedStream(macs: Collection<String>): Flowable<DeviceMessage> {
+        return Flowable.defer {
+            val streams = macs.map { mac ->
+                val device = devices[mac] ?: return@defer Flowable.error<DeviceMessage>(IOException("Device $mac is not connected"))
+                device.openMessageStream().map { DeviceMessage(mac, it) }
+            }
+            Flowable.merge(streams, maxOf(streams.size, 1), MERGE_PREFETCH)
+        }
+    }
+
+    override fun openMergedStream(): Flowable<DeviceMessage> {
+        return Flowable.defer { openMergedStream(devices.keys.toList()) }
+    }
+
     override fun closeDevice(mac: String) {
+        pendingConnects.remove(mac)?.cancel()
         devices.remove(mac)?.close()
     }
 
@@ -53,16 +167,131 @@ internal class BluetoothManagerImpl(private val adapter: BluetoothAdapter) : Blu
     }
 
     override fun close() {
-        for (device in devices.values) {
+        synchronized(registryLock) {
+            for (pending in pendingConnects.values) {
+                pending.cancel()
+            }
+            pendingConnects.clear()
+            for (device in devices.values) {
+                try {
+                    device.close()
+                } catch (ignored: Throwable) {
+                }
+            }
+            devices.clear()
+        }
+    }
+
+    /**
+     * A connection attempt that is shared by everyone
+     * opening the same device while it is in progress.
+     * If it has a timeout, it is aborted by closing its transport
+     * if it has not connected by then. The caller that started it
+     * may abandon it, unless anyone else has joined it.
+     */
+    private inner class PendingConnect(
+            private val mac: String,
+            private val options: DeviceOptions,
+            private val timeoutNanos: Long,
+            private val cancelDiscovery: Boolean
+    ) {
+        @Volatile private var transport: SerialTransport? = null
+        @Volatile private var cancelled = false
+        @Volatile private var timedOut = false
+        private var registered = false
+        private var joined = false
+        private var device: BluetoothSerialDeviceImpl? = null
+
+        val result: Single<BluetoothSerialDevice> = Single.fromCallable<BluetoothSerialDevice> {
+            val deadline = if (timeoutNanos > 0) Schedulers.computation().scheduleDirect(::expire, timeoutNanos, TimeUnit.NANOSECONDS) else null
             try {
-                device.close()
-            } catch (ignored: Throwable) {
+                connect()
+            } catch (e: Exception) {
+                throw BluetoothConnectException(if (timedOut) TimeoutException("Connecting to $mac timed out") else e)
+            } finally {
+                deadline?.dispose()
+            }
+        }.doFinally { pendingConnects.remove(mac, this) }.cache()
+
+        private fun connect(): BluetoothSerialDeviceImpl {
+            val newTransport = if (cancelDiscovery) createTransport(mac) else transportFactory.createTransport(mac)
+            transport = newTransport
+            val serialDevice = try {
+                if (cancelled) throw IOException("Connection cancelled")
+                newTransport.connect()
+                // A device that has given up reconnecting is dead, so a later open should connect afresh
+                BluetoothSerialDeviceImpl(mac, newTransport, options, { lost -> devices.remove(mac, lost) }) { createTransport(mac) }
+            } catch (e: Exception) {
+                newTransport.close()
+                throw e
             }
+            synchronized(registryLock) {
+                if (cancelled) {
+                    serialDevice.close()
+                    throw IOException("Connection cancelled")
+                }
+                // An earlier attempt may have connected since this one started, in which case its device is kept
+                val existing = devices[mac]
+                if (existing != null) {
+                    serialDevice.close()
+                    registered = true
+                    return existing
+                }
+                devices[mac] = serialDevice
+                device = serialDevice
+                registered = true
+            }
+            return serialDevice
+        }
+
+        /**
+         * Aborts the attempt once its timeout has passed, unless it has already connected
+         */
+        private fun expire() {
+            synchronized(registryLock) {
+                if (registered) return
+                timedOut = true
+                cancelled = true
+            }
+            transport?.close()
+        }
+
+        /**
+         * Records that another caller is waiting for the attempt, so that it is no longer abandoned
+         */
+        fun join() {
+            synchronized(registryLock) {
+                joined = true
+            }
+        }
+
+        /**
+         * Aborts the attempt once the caller that started it has stopped waiting, unless anyone
+         * else has joined it, closing the device instead if it has already connected.
+         */
+        fun abandon() {
+            val connected: BluetoothSerialDeviceImpl?
+            synchronized(registryLock) {
+                if (joined) return
+                cancelled = true
+                pendingConnects.remove(mac, this)
+                connected = device
+                if (connected != null) devices.remove(mac, connected)
+            }
+            if (connected != null) connected.close() else transport?.close()
+        }
+
+        /**
+         * Aborts the attempt. A blocked connect is interrupted by closing its transport.
+         */
+        fun cancel() {
+            cancelled = true
+            transport?.close()
         }
-        devices.clear()
     }
 
     companion object {
-        val SPP_UUID: UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB")
+        // How many messages the merged stream takes from each device at a time
+        private const val MERGE_PREFETCH = 16
     }
 }
@@ -4,6 +4,8 @@ import io.reactivex.Completable
 import io.reactivex.Flowable
 import java.io.InputStream
 import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
 
 interface BluetoothSerialDevice {
     /**
@@ -16,8 +18,11 @@ interface BluetoothSerialDevice {
      * This can be used to manually manage the device's output.
      * This is useful in cases where the device does not send
      * a newline character at the end of each message, though this
-     * situation may also be helped by using [openMessageStream] with a specific delimiter.
-     * **Should not be used in conjunction with [openMessageStream]**
+     * situation may also be helped by using [openFrameStream] with a [FrameDecoder].
+     * **Should not be used in conjunction with [openMessageStream],
+     * [openByteStream] or [openFrameStream]**
+     * If the device reconnects, this returns the stream of the new connection.
+     * Cannot be used with [DeviceOptions.flowControl], as the device's input is then always being read.
      */
     val inputStream: InputStream
 
@@ -25,16 +30,122 @@ interface BluetoothSerialDevice {
      * @return The underlying OutputStream representing the device's input.
      * This can be used to manually manage the device's input.
      * **Should not be used in conjunction with [send]**
+     * If the device reconnects, this returns the stream of the new connection.
      */
     val outputStream: OutputStream
 
     /**
+     * @return Whether the current connection is compressed, because [DeviceOptions.compression]
+     * is set and the device accepted it
+     */
+    val isCompressed: Boolean
+
+    /**
+     * @return The number of times a received message found its stream's
+     * buffer full, because the subscriber was not keeping up.
+     * See [DeviceOptions.backpressurePolicy].
+     */
+    val overflowCount: Long
+
+    /**
+     * @return The number of received messages that were discarded
+     * because their stream's buffer was full
+     */
+    val droppedMessageCount: Long
+
+    /**
+     * @return A snapshot of the device's traffic, latency and error counters.
+     * The counters are cheap to update and reading them never blocks the device.
+     */
+    val stats: DeviceStats
+
+    /**
+     * @param period How often to take a snapshot
+     * @param unit The unit of [period]
+     * @return An RxJava Flowable that emits a snapshot of [stats] every [period].
+     * Pass consecutive snapshots to the [DeviceStats] rate methods to get current rates.
+     */
+    fun openStatsStream(period: Long, unit: TimeUnit): Flowable<DeviceStats>
+
+    /**
+     * Messages are queued and written in order by a single writer thread
+     * owned by the device, which may coalesce several queued messages
+     * into one write (see [DeviceOptions.maxWriteBatchBytes]).
+     * The Completable completes once its own message has been written.
+     * If the device has a [DeviceOptions.reconnectPolicy], messages sent
+     * while it is reconnecting are queued and written once it is back.
+     * The message is sent with [SendPriority.NORMAL].
+     *
      * @param message The message to send to the device
      * @return An RxJava Completable to asynchronously
      * send the message.
      */
     fun send(message: String): Completable
 
+    /**
+     * @param bytes The raw bytes to send to the device
+     * @return An RxJava Completable to asynchronously
+     * send the bytes.
+     */
+    fun send(bytes: ByteArray): Completable
+
+    /**
+     * Sends a message ahead of, or behind, other queued messages.
+     * A [SendPriority.HIGH] message is written as soon as the writer
+     * finishes its current chunk or batch, however much else is queued.
+     *
+     * @param message The message to send to the device
+     * @param priority How urgently to write the message
+     * @return An RxJava Completable to asynchronously
+     * send the message.
+     */
+    fun send(message: String, priority: SendPriority): Completable
+
+    /**
+     * @param bytes The raw bytes to send to the device
+     * @param priority How urgently to write the bytes
+     * @return An RxJava Completable to asynchronously
+     * send the bytes.
+     */
+    fun send(bytes: ByteArray, priority: SendPriority): Completable
+
+    /**
+     * Sends a large payload, such as a firmware image, as a bulk transfer:
+     * the payload is split into chunks, and a window of chunks is kept in flight,
+     * each of which the device acknowledges. A chunk that the device rejects,
+     * or does not acknowledge in time, is sent again on its own.
+     * The device must implement the protocol described in [TransferReceiver].
+     * Only one transfer may run on a device at a time, and the device's replies
+     * are also delivered to any other streams that are open.
+     *
+     * @param source The payload, which is read on the transfer's own thread until it ends
+     * @return An RxJava Flowable that starts the transfer when subscribed to,
+     * emits its progress each time the device acknowledges more of the payload,
+     * and completes after emitting the final progress once the device has acknowledged all of it.
+     * Disposing of the subscription aborts the transfer.
+     */
+    fun transfer(source: InputStream): Flowable<TransferProgress>
+
+    /**
+     * @param source The payload
+     * @param options The chunk size, window size and timeouts to use
+     * @return An RxJava Flowable of the transfer's progress, as in [transfer]
+     */
+    fun transfer(source: InputStream, options: TransferOptions): Flowable<TransferProgress>
+
+    /**
+     * @param source The payload, from its position to its limit. The buffer's position is not changed.
+     * @return An RxJava Flowable of the transfer's progress, as in [transfer]
+     */
+    fun transfer(source: ByteBuffer): Flowable<TransferProgress>
+
+    /**
+     * @param source The payload, from its position to its limit. The buffer's position is not changed.
+     * @param options The chunk size, window size and timeouts to use
+     * @return An RxJava Flowable of the transfer's progress, as in [transfer]
+     */
+    fun transfer(source: ByteBuffer, options: TransferOptions): Flowable<TransferProgress>
+
     /**
      * @return An RxJava Flowable that, when observed,
      * will provide a stream of messages from the device.
@@ -42,10 +153,115 @@ interface BluetoothSerialDevice {
      * newline ('\n') character. If a newline is not
      * received, the message will continue buffering
      * forever. If this is not the desired behaviour,
-     * please manage the input yourself via [inputStream]
+     * use [openFrameStream] with a [FrameDecoder] or
+     * manage the input yourself via [inputStream].
+     * Messages are buffered for slow subscribers up to
+     * [DeviceOptions.streamBufferCapacity], after which
+     * [DeviceOptions.backpressurePolicy] applies.
+     *
+     * All of the device's streams are fed by a single reader thread
+     * owned by the connection, so subscribing never blocks and
+     * several streams may be open at once, each receiving
+     * everything the device sends while it is subscribed.
      */
     fun openMessageStream(): Flowable<String>
 
+    /**
+     * @return An RxJava Flowable that, when observed,
+     * will provide the same messages as [openMessageStream],
+     * but as pooled [MessageView]s rather than newly allocated Strings,
+     * so that receiving a message allocates nothing in the steady state.
+     * Each view **must** be released by calling [MessageView.release]
+     * once it has been read.
+     */
+    fun openMessageViewStream(): Flowable<MessageView>
+
+    /**
+     * @return An RxJava Flowable that, when observed,
+     * will provide the raw bytes received from the device,
+     * in chunks of whatever size the device delivered them.
+     * No charset decoding or message splitting is performed.
+     * Each chunk is a newly allocated array; use [openFrameStream]
+     * to avoid this allocation.
+     */
+    fun openByteStream(): Flowable<ByteArray>
+
+    /**
+     * @return An RxJava Flowable that, when observed,
+     * will provide the raw bytes received from the device
+     * as pooled [Frame]s. Each frame **must** be released
+     * by calling [Frame.release] once it has been read,
+     * so that its buffer can be reused for later reads.
+     */
+    fun openFrameStream(): Flowable<Frame>
+
+    /**
+     * @param decoder The decoder used to split the received bytes into frames.
+     * It is reset when the stream is subscribed to, and must not be shared with another stream.
+     * @return An RxJava Flowable that, when observed,
+     * will provide each frame decoded from the device's output
+     * as a pooled [Frame]. Each frame **must** be released
+     * by calling [Frame.release] once it has been read.
+     * The stream will error with a [FrameDecodingException]
+     * if the device sends data the decoder cannot handle.
+     */
+    fun openFrameStream(decoder: FrameDecoder): Flowable<Frame>
+
+    /**
+     * @param format The fields each line holds
+     * @return An RxJava Flowable that, when observed,
+     * will provide the numeric samples the device sends, one per line,
+     * parsed straight from the received bytes into the primitive columns of
+     * pooled [TelemetryBatch]es, so that no Strings or boxed numbers are created
+     * per sample. Each chunk read from the device is delivered as one batch
+     * holding the samples it completed, split if there are more than
+     * [TelemetryFormat.maxBatchSize]. Each batch **must** be released by calling
+     * [TelemetryBatch.release] once it has been read.
+     * @throws IllegalArgumentException If the device's charset does not encode
+     * the format's characters as ASCII, as UTF-16 does not
+     */
+    fun openTelemetryStream(format: TelemetryFormat): Flowable<TelemetryBatch>
+
+    /**
+     * @param format The fields each line holds
+     * @param window The windows to summarise the samples over
+     * @return An RxJava Flowable that, when observed, will parse the samples the device
+     * sends, as in [openTelemetryStream], and provide only a [WindowAggregate] of each
+     * column's min, max, mean and last value for each window. The samples are summarised
+     * on the device's reader thread as they arrive, in memory proportional to the number of
+     * slides per window rather than the number of samples, so a sensor producing thousands
+     * of samples a second costs its subscriber a handful of items a second. Windows measured
+     * by a time field are held until a later sample arrives, as described by [WindowOptions].
+     * @throws IllegalArgumentException If the device's charset does not encode the format's
+     * characters as ASCII, or the window's time field is not an integer column of the format
+     */
+    fun openAggregateStream(format: TelemetryFormat, window: WindowOptions): Flowable<WindowAggregate>
+
+    /**
+     * Opens a channel for sending requests and receiving their replies, matched
+     * up by [correlator], so that requests can be pipelined rather than waiting
+     * for each reply before sending the next request.
+     * Replies are received as messages, as in [openMessageStream].
+     *
+     * @param correlator Writes correlation IDs into requests and reads them from replies
+     * @return A RequestChannel whose requests time out after [RequestChannel.DEFAULT_TIMEOUT_MILLIS]
+     */
+    fun openRequestChannel(correlator: MessageCorrelator): RequestChannel
+
+    /**
+     * @param correlator Writes correlation IDs into requests and reads them from replies
+     * @param timeout How long [RequestChannel.request] waits for a reply by default
+     * @param unit The unit of [timeout]
+     * @return A RequestChannel, as in [openRequestChannel]
+     */
+    fun openRequestChannel(correlator: MessageCorrelator, timeout: Long, unit: TimeUnit): RequestChannel
+
+    /**
+     * @return A view of this device with suspending sends and Flow streams, for use from Kotlin coroutines.
+     * It shares this device's connection, writer and reader, so it may be used alongside the RxJava API.
+     */
+    fun toCoroutineDevice(): CoroutineSerialDevice
+
     /**
      * Wrap using a SimpleBluetoothDeviceInterface.
      * This makes things a lot simpler within the class accessing this device.
@@ -55,4 +271,14 @@ interface BluetoothSerialDevice {
      * @return a SimpleBluetoothDeviceInterface that will access this device object
      */
     fun toSimpleDeviceInterface(): SimpleBluetoothDeviceInterface
+
+    /**
+     * Wrap using a SimpleBluetoothDeviceInterface that delivers messages as [options] specify,
+     * for example in batches to keep the main thread free when messages arrive quickly.
+     * If the interface has already been constructed, it is returned with its original options.
+     *
+     * @param options How the interface delivers messages to its listeners
+     * @return a SimpleBluetoothDeviceInterface that will access this device object
+     */
+    fun toSimpleDeviceInterface(options: DeliveryOptions): SimpleBluetoothDeviceInterface
 }
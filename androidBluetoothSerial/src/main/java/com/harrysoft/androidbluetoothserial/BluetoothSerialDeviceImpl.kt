@@ -1,81 +1,431 @@
 package com.harrysoft.androidbluetoothserial
 
-import android.bluetooth.BluetoothSocket
-import android.text.TextUtils
 import io.reactivex.BackpressureStrategy
 import io.reactivex.Completable
 import io.reactivex.Flowable
-import java.io.BufferedReader
+import io.reactivex.schedulers.Schedulers
 import java.io.InputStream
-import java.io.InputStreamReader
 import java.io.OutputStream
+import java.nio.ByteBuffer
 import java.nio.charset.Charset
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 
 /**
- * Implementation of BluetoothSerialDevice, package-private
+ * Implementation of BluetoothSerialDevice, package-private.
+ * [onLost] is called, on the reconnect thread, once reconnecting has given up.
  */
 internal class BluetoothSerialDeviceImpl constructor(
         override val mac: String,
-        private val socket: BluetoothSocket,
-        private val charset: Charset
+        transport: SerialTransport,
+        internal val options: DeviceOptions,
+        onLost: (BluetoothSerialDeviceImpl) -> Unit,
+        transportFactory: () -> SerialTransport
 ) : BluetoothSerialDevice {
+    internal val charset: Charset = options.charset
     private val closed = AtomicBoolean(false)
-    override val outputStream: OutputStream = socket.outputStream
-    override val inputStream: InputStream = socket.inputStream
+    private val transferring = AtomicBoolean(false)
+
+    internal val metrics = DeviceMetrics()
+
+    private val codec = options.compression?.let(::DeflateCodec)
+
+    private val credits = options.flowControl?.let(::CreditGate)
+
+    private val connection = DeviceConnection("BluetoothSerial-reconnect-$mac", negotiated(transport), options.reconnectPolicy, metrics,
+            { onLost(this) }) {
+        wrapped(transportFactory())
+    }
+
+    override val outputStream: OutputStream get() = connection.transport.outputStream
+    override val inputStream: InputStream get() = connection.transport.inputStream
+
+    private val framePool = FramePool(FramePool.DEFAULT_FRAME_CAPACITY, FramePool.DEFAULT_POOL_SIZE)
+
+    private val messageViewPool = MessageViewPool(MessageViewPool.DEFAULT_VIEW_CAPACITY, MessageViewPool.DEFAULT_POOL_SIZE)
+
+    override val isCompressed: Boolean get() {
+        val transport = connection.transport
+        val compressed = (transport as? FlowControlTransport)?.delegate ?: transport
+        return (compressed as? CompressingTransport)?.isCompressed ?: false
+    }
+
+    override val overflowCount: Long get() = metrics.overflows.get()
+
+    override val droppedMessageCount: Long get() = metrics.dropped.get()
+
+    private val writeQueue = WriteQueue("BluetoothSerial-writer-$mac", connection, options, metrics, credits)
+
+    internal val reader = DeviceReader("BluetoothSerial-reader-$mac", connection, options.readBufferSize, options.readerThreadPriority,
+            metrics, options.recorder)
+
+    override val stats: DeviceStats get() = metrics.snapshot(mac, writeQueue.backlog, reader.backlog)
 
     private var owner: SimpleBluetoothDeviceInterfaceImpl? = null
 
+    private val coroutineDevice by lazy { CoroutineSerialDeviceImpl(this) }
+
+    init {
+        // Credit is granted in the device's input, so keep reading it even while no stream is subscribed
+        credits?.let { reader.addListener(CreditReadListener(it)) }
+    }
+
+    /**
+     * @return [transport], wrapped to negotiate compression when it connects if it is enabled,
+     * and then to take the credit the device grants if flow control is enabled
+     */
+    private fun wrapped(transport: SerialTransport): SerialTransport {
+        val compressed = codec?.let { CompressingTransport(transport, it, metrics) } ?: transport
+        return credits?.let { FlowControlTransport(compressed, it) } ?: compressed
+    }
+
+    /**
+     * @return [transport], which is already connected, wrapped as by [wrapped] after
+     * negotiating compression and starting flow control if they are enabled
+     */
+    private fun negotiated(transport: SerialTransport): SerialTransport {
+        val compressed = codec?.let { CompressingTransport(transport, it, metrics).apply { negotiate() } } ?: transport
+        return credits?.let { FlowControlTransport(compressed, it).apply { start() } } ?: compressed
+    }
+
     override fun send(message: String): Completable {
+        return send(message, SendPriority.NORMAL)
+    }
+
+    override fun send(bytes: ByteArray): Completable {
+        return send(bytes, SendPriority.NORMAL)
+    }
+
+    override fun send(message: String, priority: SendPriority): Completable {
         checkNotClosed()
-        return Completable.fromAction {
-            synchronized(outputStream) {
-                if (!closed.get()) outputStream.write(message.toByteArray(charset))
-            }
+        return Completable.create { emitter ->
+            writeQueue.enqueue(CompletablePendingWrite(message.toByteArray(charset), priority, emitter))
         }
     }
 
-    override fun openMessageStream(): Flowable<String> {
+    override fun send(bytes: ByteArray, priority: SendPriority): Completable {
+        checkNotClosed()
+        return Completable.create { emitter ->
+            writeQueue.enqueue(CompletablePendingWrite(bytes, priority, emitter))
+        }
+    }
+
+    /**
+     * Queues a message for the writer, bypassing RxJava
+     */
+    internal fun enqueue(write: PendingWrite) {
+        writeQueue.enqueue(write)
+    }
+
+    override fun transfer(source: InputStream): Flowable<TransferProgress> {
+        return transfer(source, TransferOptions.DEFAULT)
+    }
+
+    override fun transfer(source: InputStream, options: TransferOptions): Flowable<TransferProgress> {
         checkNotClosed()
+        return transfer({ TransferSource.Stream(source) }, options)
+    }
+
+    override fun transfer(source: ByteBuffer): Flowable<TransferProgress> {
+        return transfer(source, TransferOptions.DEFAULT)
+    }
+
+    override fun transfer(source: ByteBuffer, options: TransferOptions): Flowable<TransferProgress> {
+        checkNotClosed()
+        return transfer({ TransferSource.Buffer(source) }, options)
+    }
+
+    private fun transfer(source: () -> TransferSource, options: TransferOptions): Flowable<TransferProgress> {
         return Flowable.create({ emitter ->
-            val reader = BufferedReader(InputStreamReader(inputStream, charset))
-            while (!emitter.isCancelled && !closed.get()) {
-                synchronized(inputStream) {
-                    try {
-                        val receivedString = reader.readLine()
-                        if (!TextUtils.isEmpty(receivedString)) {
-                            emitter.onNext(receivedString)
-                        }
-                    } catch (e: Exception) {
-                        if (!emitter.isCancelled && !closed.get()) {
-                            emitter.onError(e)
-                        }
-                    }
+            if (!transferring.compareAndSet(false, true)) {
+                emitter.onError(IllegalStateException("A transfer is already in progress"))
+                return@create
+            }
+            BulkTransfer(this, source(), options, emitter) { transferring.set(false) }.start("BluetoothSerial-transfer-$mac")
+        }, BackpressureStrategy.LATEST)
+    }
+
+    override fun openStatsStream(period: Long, unit: TimeUnit): Flowable<DeviceStats> {
+        checkNotClosed()
+        return Flowable.interval(period, unit).map { stats }
+    }
+
+    override fun openMessageStream(): Flowable<String> {
+        checkNotClosed()
+        return boundedStream({ }, ::messageListener)
+    }
+
+    override fun openMessageViewStream(): Flowable<MessageView> {
+        checkNotClosed()
+        return boundedStream(MessageView::release, ::messageViewListener)
+    }
+
+    override fun openTelemetryStream(format: TelemetryFormat): Flowable<TelemetryBatch> {
+        checkNotClosed()
+        checkTelemetrySupported(format)
+        return boundedStream(TelemetryBatch::release) { emitter -> telemetryListener(emitter, format) }
+    }
+
+    override fun openAggregateStream(format: TelemetryFormat, window: WindowOptions): Flowable<WindowAggregate> {
+        checkNotClosed()
+        checkAggregationSupported(format, window)
+        return boundedStream({ }) { emitter -> aggregateListener(emitter, format, window) }
+    }
+
+    override fun openByteStream(): Flowable<ByteArray> {
+        return openFrameStream().map { frame ->
+            try {
+                frame.toByteArray()
+            } finally {
+                frame.release()
+            }
+        }
+    }
+
+    override fun openFrameStream(): Flowable<Frame> {
+        checkNotClosed()
+        return boundedStream(Frame::release, ::frameListener)
+    }
+
+    override fun openFrameStream(decoder: FrameDecoder): Flowable<Frame> {
+        checkNotClosed()
+        return boundedStream(Frame::release) { emitter -> decodedFrameListener(emitter, decoder) }
+    }
+
+    /**
+     * @return A listener that emits each line received as a String
+     */
+    internal fun messageListener(emitter: ItemEmitter<String>): ReadListener {
+        return object : EmitterReadListener<String>(emitter), LineDecoder.LineSink {
+            private val decoder = LineDecoder(charset)
+
+            override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                decoder.decode(buffer, offset, length, this)
+            }
+
+            override fun onReconnected() {
+                decoder.reset()
+            }
+
+            override fun onLine(chars: CharArray, length: Int) {
+                emitter.onNext(String(chars, 0, length))
+            }
+        }
+    }
+
+    /**
+     * @return A listener that emits each line received as a pooled MessageView
+     */
+    internal fun messageViewListener(emitter: ItemEmitter<MessageView>): ReadListener {
+        return object : EmitterReadListener<MessageView>(emitter), LineDecoder.LineSink {
+            private val decoder = LineDecoder(charset)
+
+            override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                decoder.decode(buffer, offset, length, this)
+            }
+
+            override fun onReconnected() {
+                decoder.reset()
+            }
+
+            override fun onLine(chars: CharArray, length: Int) {
+                val view = messageViewPool.acquire()
+                view.set(chars, length)
+                emitter.onNext(view)
+            }
+        }
+    }
+
+    /**
+     * @return A listener that emits the samples in each chunk read as pooled TelemetryBatches
+     */
+    internal fun telemetryListener(emitter: ItemEmitter<TelemetryBatch>, format: TelemetryFormat): ReadListener {
+        return object : EmitterReadListener<TelemetryBatch>(emitter), TelemetryDecoder.BatchSink {
+            private val decoder = TelemetryDecoder(format, TelemetryBatchPool(format, TelemetryBatchPool.DEFAULT_POOL_SIZE))
+
+            override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                decoder.decode(buffer, offset, length, this)
+            }
+
+            override fun onReconnected() {
+                decoder.reset()
+            }
+
+            override fun onBatch(batch: TelemetryBatch) {
+                emitter.onNext(batch)
+            }
+        }
+    }
+
+    /**
+     * @return A listener that summarises the samples read over each window, emitting only the WindowAggregates.
+     * Receive-time windows are also flushed by a periodic tick, so that the last window before
+     * the device goes quiet is emitted. The tick and the reader take turns on the aggregator and
+     * emitter, and the tick runs on the io scheduler as under BLOCK it waits for the subscriber too.
+     */
+    internal fun aggregateListener(emitter: ItemEmitter<WindowAggregate>, format: TelemetryFormat, window: WindowOptions): ReadListener {
+        return object : EmitterReadListener<WindowAggregate>(emitter), TelemetryDecoder.BatchSink {
+            // Each batch is released as soon as it has been added, so it is always the same one
+            private val decoder = TelemetryDecoder(format, TelemetryBatchPool(format, 1))
+            private val aggregator = WindowAggregator(format, window, emitter::onNext)
+            private var receivedNanos = 0L
+            private val tick = if (aggregator.isReceiveTimed) {
+                val interval = maxOf(window.slide, WindowAggregator.MIN_FLUSH_INTERVAL_NANOS)
+                Schedulers.io().schedulePeriodicallyDirect(::onTick, interval, interval, TimeUnit.NANOSECONDS)
+            } else {
+                null
+            }
+
+            override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                synchronized(aggregator) {
+                    receivedNanos = System.nanoTime()
+                    decoder.decode(buffer, offset, length, this)
                 }
             }
-            emitter.onComplete()
-        }, BackpressureStrategy.BUFFER)
+
+            override fun onError(error: Throwable) {
+                tick?.dispose()
+                synchronized(aggregator) { super.onError(error) }
+            }
+
+            override fun onEndOfStream() {
+                tick?.dispose()
+                synchronized(aggregator) { super.onEndOfStream() }
+            }
+
+            override fun onReconnected() {
+                decoder.reset()
+            }
+
+            private fun onTick() {
+                if (emitter.isCancelled) {
+                    // The subscriber has gone, and the reader has already dropped this listener
+                    tick?.dispose()
+                    return
+                }
+                synchronized(aggregator) {
+                    if (aggregator.flush(System.nanoTime())) emitter.flush()
+                }
+            }
+
+            override fun onBatch(batch: TelemetryBatch) {
+                try {
+                    aggregator.add(batch, receivedNanos)
+                } finally {
+                    batch.release()
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A listener that emits each chunk read as a pooled Frame
+     */
+    internal fun frameListener(emitter: ItemEmitter<Frame>): ReadListener {
+        return object : EmitterReadListener<Frame>(emitter) {
+            override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                val frame = framePool.acquire(length)
+                System.arraycopy(buffer, offset, frame.array, 0, length)
+                frame.setLength(length)
+                emitter.onNext(frame)
+            }
+        }
+    }
+
+    /**
+     * @return A listener that emits each frame found by [decoder] as a pooled Frame
+     */
+    internal fun decodedFrameListener(emitter: ItemEmitter<Frame>, decoder: FrameDecoder): ReadListener {
+        decoder.reset()
+        return object : EmitterReadListener<Frame>(emitter), FrameDecoder.FrameSink {
+            private var input: ByteBuffer? = null
+            private var failed = false
+
+            override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                if (failed) return
+                // The reader always passes the same array, so its wrapper is reused
+                val wrapped = input?.takeIf { it.array() === buffer } ?: ByteBuffer.wrap(buffer).also { input = it }
+                wrapped.limit(offset + length)
+                wrapped.position(offset)
+                try {
+                    decoder.decode(wrapped, this)
+                } catch (e: FrameDecodingException) {
+                    // Delivered after the frames already decoded, and the decoder is not fed again
+                    failed = true
+                    emitter.onError(e)
+                }
+            }
+
+            override fun onReconnected() {
+                if (!failed) decoder.reset()
+            }
+
+            override fun onFrame(frame: ByteBuffer) {
+                val length = frame.remaining()
+                val pooled = framePool.acquire(length)
+                frame.get(pooled.array, 0, length)
+                pooled.setLength(length)
+                emitter.onNext(pooled)
+            }
+        }
+    }
+
+    override fun openRequestChannel(correlator: MessageCorrelator): RequestChannel {
+        return openRequestChannel(correlator, RequestChannel.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    override fun openRequestChannel(correlator: MessageCorrelator, timeout: Long, unit: TimeUnit): RequestChannel {
+        checkNotClosed()
+        return RequestChannelImpl(this, correlator, unit.toNanos(timeout))
+    }
+
+    private fun <T : Any> boundedStream(onDiscard: (T) -> Unit, listenerFactory: (ItemEmitter<T>) -> ReadListener): Flowable<T> {
+        return BoundedReadFlowable(reader, options.streamBufferCapacity, options.backpressurePolicy, metrics, onDiscard, listenerFactory)
     }
 
     fun close() {
-        if (!closed.get()) {
-            closed.set(true)
-            inputStream.close()
-            outputStream.close()
-            socket.close()
+        if (closed.compareAndSet(false, true)) {
+            writeQueue.close()
+            reader.close()
+            connection.close()
+            codec?.end()
         }
         owner?.close()
         owner = null
     }
 
+    override fun toCoroutineDevice(): CoroutineSerialDevice {
+        checkNotClosed()
+        return coroutineDevice
+    }
+
     override fun toSimpleDeviceInterface(): SimpleBluetoothDeviceInterfaceImpl {
+        return toSimpleDeviceInterface(DeliveryOptions.DEFAULT)
+    }
+
+    override fun toSimpleDeviceInterface(options: DeliveryOptions): SimpleBluetoothDeviceInterfaceImpl {
         checkNotClosed()
         owner?.let { return it }
-        val newOwner = SimpleBluetoothDeviceInterfaceImpl(this)
+        val newOwner = SimpleBluetoothDeviceInterfaceImpl(this, options)
         owner = newOwner
         return newOwner
     }
 
+    /**
+     * Checks that the device's charset encodes [format] as ASCII, which the telemetry decoder relies on
+     */
+    fun checkTelemetrySupported(format: TelemetryFormat) {
+        require(TelemetryDecoder.supports(charset, format)) { "Telemetry cannot be parsed in $charset" }
+    }
+
+    /**
+     * Checks that [format] can be parsed, and that [window]'s time field, if it has one, is one of its integer columns
+     */
+    fun checkAggregationSupported(format: TelemetryFormat, window: WindowOptions) {
+        checkTelemetrySupported(format)
+        WindowAggregator.timeColumnOf(format, window)
+    }
+
     /**
      * Checks that this instance has not been closed
      */
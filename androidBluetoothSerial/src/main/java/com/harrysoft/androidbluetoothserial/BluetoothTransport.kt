@@ -0,0 +1,39 @@
+package com.harrysoft.androidbluetoothserial
+
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.BluetoothSocket
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Creates RFCOMM transports to devices using the Serial Port Profile, package-private
+ */
+internal class BluetoothTransportFactory(private val adapter: BluetoothAdapter) : TransportFactory {
+    override fun createTransport(mac: String): SerialTransport {
+        val device = adapter.getRemoteDevice(mac)
+        return BluetoothTransport(device.createInsecureRfcommSocketToServiceRecord(SPP_UUID))
+    }
+
+    companion object {
+        val SPP_UUID: UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB")
+    }
+}
+
+/**
+ * A SerialTransport over a BluetoothSocket, package-private.
+ * Discovery slows connections down, so the [BluetoothManager]
+ * cancels it before connecting, rather than each transport.
+ */
+internal class BluetoothTransport(private val socket: BluetoothSocket) : SerialTransport {
+    override val inputStream: InputStream get() = socket.inputStream
+    override val outputStream: OutputStream get() = socket.outputStream
+
+    override fun connect() {
+        socket.connect()
+    }
+
+    override fun close() {
+        socket.close()
+    }
+}
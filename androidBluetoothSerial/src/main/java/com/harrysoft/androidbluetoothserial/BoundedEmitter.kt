@@ -0,0 +1,165 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.Flowable
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A Flowable fed by a device's [DeviceReader], package-private.
+ * Each subscription registers the [ReadListener] created by [listenerFactory],
+ * which pushes its decoded items into a [BoundedEmitter].
+ * Subscribing never blocks, and the listener is removed when the subscription is cancelled or terminated.
+ */
+internal class BoundedReadFlowable<T : Any>(
+        private val reader: DeviceReader,
+        private val capacity: Int,
+        private val policy: BackpressurePolicy,
+        private val metrics: DeviceMetrics,
+        private val onDiscard: (T) -> Unit,
+        private val listenerFactory: (ItemEmitter<T>) -> ReadListener
+) : Flowable<T>() {
+    override fun subscribeActual(subscriber: Subscriber<in T>) {
+        val ringCapacity = if (policy == BackpressurePolicy.KEEP_LATEST) 1 else capacity
+        val emitter = BoundedEmitter(subscriber, ringCapacity, policy, metrics, onDiscard)
+        val listener = listenerFactory(emitter)
+        emitter.onCancel = { reader.removeListener(listener) }
+        subscriber.onSubscribe(emitter)
+        if (!emitter.isCancelled) reader.addListener(listener)
+    }
+}
+
+/**
+ * Receives the items a [ReadListener] decodes and hands them to a consumer, package-private.
+ * All methods except [cancel] are only called by the reader thread.
+ */
+internal interface ItemEmitter<T : Any> {
+    /**
+     * @return Whether the consumer has gone away or the stream has been terminated
+     */
+    val isCancelled: Boolean
+
+    /**
+     * @return The number of items waiting to be delivered
+     */
+    val size: Int
+
+    fun onNext(item: T)
+
+    fun onError(error: Throwable)
+
+    fun onComplete()
+
+    /**
+     * Stops accepting items and detaches from the reader
+     */
+    fun cancel()
+
+    /**
+     * Called after each chunk read has been decoded
+     */
+    fun flush() {
+    }
+}
+
+/**
+ * A ReadListener that terminates its emitter when the reader stops, package-private
+ */
+internal abstract class EmitterReadListener<T : Any>(protected val emitter: ItemEmitter<T>) : ReadListener {
+    override fun onError(error: Throwable) {
+        emitter.onError(error)
+    }
+
+    override fun onEndOfStream() {
+        emitter.onComplete()
+    }
+
+    override fun onDispatched() {
+        emitter.flush()
+    }
+
+    override val buffered: Int get() = emitter.size
+}
+
+/**
+ * Hands items from a single producer (the reader thread) to a subscriber
+ * through a [BoundedRing], package-private.
+ * Items are delivered as the subscriber requests them.
+ */
+internal class BoundedEmitter<T : Any>(
+        private val subscriber: Subscriber<in T>,
+        capacity: Int,
+        policy: BackpressurePolicy,
+        metrics: DeviceMetrics,
+        onDiscard: (T) -> Unit
+) : BoundedRing<T>(capacity, policy, metrics, onDiscard), Subscription {
+    private val requested = AtomicLong()
+    private val wip = AtomicInteger()
+    private var terminated = false
+
+    internal var onCancel: (() -> Unit)? = null
+
+    override fun onPublished() {
+        drain()
+    }
+
+    override fun request(n: Long) {
+        if (n <= 0) return
+        while (true) {
+            val current = requested.get()
+            if (current == Long.MAX_VALUE) break
+            val next = if (current + n < 0) Long.MAX_VALUE else current + n
+            if (requested.compareAndSet(current, next)) break
+        }
+        drain()
+    }
+
+    override fun cancel() {
+        if (!markCancelled()) return
+        onCancel?.invoke()
+        drain()
+    }
+
+    private fun drain() {
+        if (wip.getAndIncrement() != 0) return
+        var missed = 1
+        while (true) {
+            val r = requested.get()
+            var emitted = 0L
+            while (emitted != r) {
+                if (cancelled) {
+                    clear()
+                    return
+                }
+                val finished = done
+                val next = poll()
+                if (next == null) {
+                    if (finished) terminate()
+                    break
+                }
+                subscriber.onNext(next)
+                emitted++
+            }
+            if (cancelled) {
+                clear()
+                return
+            }
+            if (emitted == r && done && isEmpty) {
+                terminate()
+            }
+            if (emitted != 0L && r != Long.MAX_VALUE) requested.addAndGet(-emitted)
+            missed = wip.addAndGet(-missed)
+            if (missed == 0) break
+        }
+    }
+
+    private fun terminate() {
+        if (terminated) return
+        terminated = true
+        // The listener may have terminated the stream itself, while the reader carries on
+        onCancel?.invoke()
+        val e = error
+        if (e != null) subscriber.onError(e) else subscriber.onComplete()
+    }
+}
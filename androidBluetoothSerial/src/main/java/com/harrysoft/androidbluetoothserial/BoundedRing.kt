@@ -0,0 +1,153 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * A fixed-capacity lock-free ring that hands items from a single producer
+ * (the reader thread) to a single consumer, package-private.
+ * When the ring is full the [BackpressurePolicy] decides whether the producer
+ * parks until there is room or an item is dropped. Dropped items are passed
+ * to [onDiscard], so pooled items can be released. Subclasses deliver the items,
+ * and are told by [onPublished] whenever there is something new to deliver.
+ */
+internal abstract class BoundedRing<T : Any>(
+        private val capacity: Int,
+        private val policy: BackpressurePolicy,
+        private val metrics: DeviceMetrics,
+        private val onDiscard: (T) -> Unit
+) : ItemEmitter<T> {
+    // Slots are not cleared after polling: the producer only reuses a slot once the
+    // consumer index has moved past it, so a stale reference is never read again
+    private val ring = AtomicReferenceArray<T>(capacity)
+    private val producerIndex = AtomicLong()
+    private val consumerIndex = AtomicLong()
+    @Volatile private var parkedProducer: Thread? = null
+    @Volatile protected var done = false
+        private set
+    @Volatile protected var cancelled = false
+        private set
+    protected var error: Throwable? = null
+        private set
+
+    /**
+     * @return Whether the producer should stop, because the consumer
+     * has cancelled or the stream has already been terminated
+     */
+    override val isCancelled: Boolean get() = cancelled || done
+
+    override val size: Int get() = (producerIndex.get() - consumerIndex.get()).toInt()
+
+    protected val isEmpty: Boolean get() = producerIndex.get() == consumerIndex.get()
+
+    /**
+     * Called after an item is added or the stream is terminated
+     */
+    protected abstract fun onPublished()
+
+    override fun onNext(item: T) {
+        if (isCancelled) {
+            onDiscard(item)
+            return
+        }
+        metrics.messagesReceived.incrementAndGet()
+        val p = producerIndex.get()
+        if (p - consumerIndex.get() == capacity.toLong()) {
+            metrics.overflows.incrementAndGet()
+            when (policy) {
+                BackpressurePolicy.BLOCK -> if (!awaitSpace(p)) {
+                    onDiscard(item)
+                    return
+                }
+                BackpressurePolicy.DROP_NEWEST -> {
+                    metrics.dropped.incrementAndGet()
+                    onDiscard(item)
+                    return
+                }
+                BackpressurePolicy.DROP_OLDEST, BackpressurePolicy.KEEP_LATEST -> dropOldest(p)
+            }
+        }
+        ring.lazySet(index(p), item)
+        producerIndex.set(p + 1)
+        onPublished()
+    }
+
+    /**
+     * Delivers [error] after any buffered items
+     */
+    override fun onError(error: Throwable) {
+        if (done) return
+        this.error = error
+        done = true
+        onPublished()
+    }
+
+    /**
+     * Completes after any buffered items have been delivered
+     */
+    override fun onComplete() {
+        done = true
+        onPublished()
+    }
+
+    /**
+     * Stops accepting items and wakes a parked producer
+     *
+     * @return Whether this call cancelled the ring, rather than it already being cancelled
+     */
+    protected fun markCancelled(): Boolean {
+        if (cancelled) return false
+        cancelled = true
+        LockSupport.unpark(parkedProducer)
+        return true
+    }
+
+    private fun awaitSpace(p: Long): Boolean {
+        parkedProducer = Thread.currentThread()
+        while (p - consumerIndex.get() == capacity.toLong() && !cancelled) {
+            LockSupport.park(this)
+        }
+        parkedProducer = null
+        return !cancelled
+    }
+
+    private fun dropOldest(p: Long) {
+        while (true) {
+            val c = consumerIndex.get()
+            if (p - c < capacity) return
+            val oldest = ring.get(index(c))
+            if (consumerIndex.compareAndSet(c, c + 1)) {
+                metrics.dropped.incrementAndGet()
+                onDiscard(oldest)
+                return
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest item. Only called by the consumer, but may race with [dropOldest].
+     */
+    protected fun poll(): T? {
+        while (true) {
+            val c = consumerIndex.get()
+            if (c == producerIndex.get()) return null
+            val item = ring.get(index(c))
+            if (consumerIndex.compareAndSet(c, c + 1)) {
+                LockSupport.unpark(parkedProducer)
+                return item
+            }
+        }
+    }
+
+    /**
+     * Discards everything left in the ring
+     */
+    protected fun clear() {
+        while (true) {
+            onDiscard(poll() ?: return)
+        }
+    }
+
+    private fun index(i: Long) = (i % capacity).toInt()
+}
@@ -0,0 +1,288 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.FlowableEmitter
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * Where a bulk transfer reads its payload from, package-private
+ */
+internal abstract class TransferSource(
+        /**
+         * The size of the payload, or -1 if it is not known in advance
+         */
+        val totalBytes: Long
+) {
+    /**
+     * Reads up to [length] bytes, returning fewer only at the end of the payload
+     *
+     * @return The number of bytes read, which is zero at the end of the payload
+     */
+    abstract fun read(buffer: ByteArray, offset: Int, length: Int): Int
+
+    class Stream(private val inputStream: InputStream) : TransferSource(-1) {
+        override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+            var total = 0
+            while (total < length) {
+                val count = inputStream.read(buffer, offset + total, length - total)
+                if (count < 0) break
+                total += count
+            }
+            return total
+        }
+    }
+
+    class Buffer(source: ByteBuffer) : TransferSource(source.remaining().toLong()) {
+        // A duplicate, so that the caller's position is left alone
+        private val buffer = source.duplicate()
+
+        override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+            val count = minOf(length, this.buffer.remaining())
+            this.buffer.get(buffer, offset, count)
+            return count
+        }
+    }
+}
+
+/**
+ * Sends a payload to a device as a bulk transfer, package-private.
+ * See [TransferReceiver] for the protocol.
+ * The transfer's own thread reads the payload, keeps up to a window of
+ * chunks in flight through the device's writer, and sends a chunk again
+ * when the device naks it or does not ack it in time. The device sees chunks
+ * in the order they were written, so an ack for a chunk written after one that
+ * is still unacknowledged means the earlier chunk or its ack was lost, and it
+ * is sent again straight away rather than after the timeout.
+ * Acks and naks are parsed on the device's reader thread, and handed over under [lock].
+ */
+internal class BulkTransfer(
+        private val device: BluetoothSerialDeviceImpl,
+        private val source: TransferSource,
+        private val options: TransferOptions,
+        private val emitter: FlowableEmitter<TransferProgress>,
+        private val onFinished: () -> Unit
+) : ReadListener, TransferFrameParser.FrameSink {
+    private val lock = Object()
+    private val crc = CRC32()
+    private val parser = TransferFrameParser(0, this)
+    private val window = arrayOfNulls<Chunk>(options.windowSize)
+    private val ackTimeoutNanos = options.ackTimeoutMillis * 1_000_000
+
+    // Guarded by lock
+    private var base = 0
+    private var next = 0
+    private var failure: Throwable? = null
+    private var lastAckedWrittenNanos = 0L
+    @Volatile private var cancelled = false
+
+    private var bytesAcknowledged = 0L
+    private var retransmissions = 0L
+    private var startNanos = 0L
+
+    private inner class Chunk(val seq: Int, val frame: ByteArray, val payloadBytes: Int) {
+        // Guarded by lock, and read by the writer to skip chunks that no longer need sending
+        @Volatile var acked = false
+
+        // Guarded by lock
+        var nakked = false
+        var sends = 0
+
+        /**
+         * When the latest copy was written, or zero while it is still queued
+         */
+        @Volatile var writtenNanos = 0L
+    }
+
+    private inner class ChunkWrite(private val chunk: Chunk) : PendingWrite(chunk.frame, options.priority) {
+        override val isCancelled: Boolean get() = chunk.acked || cancelled
+
+        override fun onWritten() {
+            chunk.writtenNanos = System.nanoTime()
+        }
+
+        override fun onFailed(error: Throwable) {
+            fail(error)
+        }
+    }
+
+    fun start(name: String) {
+        emitter.setCancellable(::cancel)
+        val thread = Thread(::run, name)
+        thread.isDaemon = true
+        thread.start()
+    }
+
+    private fun cancel() {
+        synchronized(lock) {
+            cancelled = true
+            lock.notifyAll()
+        }
+    }
+
+    private fun run() {
+        device.reader.addListener(this)
+        val error = try {
+            startNanos = System.nanoTime()
+            transfer()
+            null
+        } catch (e: Exception) {
+            abort()
+            e
+        }
+        // Finish before the subscriber hears about it, so that it can start another transfer straight away
+        device.reader.removeListener(this)
+        onFinished()
+        if (error == null) {
+            emitter.onNext(progress(true))
+            emitter.onComplete()
+        } else if (error !is CancelledException) {
+            emitter.tryOnError(error)
+        }
+    }
+
+    private fun transfer() {
+        val payload = ByteArray(options.chunkBytes)
+        var exhausted = false
+        var endSeq = -1
+        while (true) {
+            while (!exhausted && inFlight() < options.windowSize) {
+                val length = source.read(payload, 0, payload.size)
+                if (length == 0) {
+                    exhausted = true
+                } else {
+                    send(Chunk(next, TransferProtocol.encode(crc, TransferProtocol.DATA, next, payload, 0, length), length))
+                }
+            }
+            if (exhausted && endSeq < 0 && inFlight() == 0) {
+                endSeq = next
+                send(Chunk(endSeq, TransferProtocol.encode(crc, TransferProtocol.END, endSeq), 0))
+            }
+            if (awaitAcks() && endSeq < 0) {
+                emitter.onNext(progress(false))
+            }
+            if (endSeq in 0 until base) return
+        }
+    }
+
+    private fun inFlight(): Int = synchronized(lock) { next - base }
+
+    private fun send(chunk: Chunk) {
+        synchronized(lock) {
+            window[chunk.seq % window.size] = chunk
+            next = chunk.seq + 1
+        }
+        write(chunk)
+    }
+
+    /**
+     * Waits until an ack arrives, a chunk needs sending again, or the transfer fails,
+     * sending again any chunks that were nakked or have timed out.
+     *
+     * @return Whether the window moved on
+     */
+    private fun awaitAcks(): Boolean {
+        synchronized(lock) {
+            while (true) {
+                if (cancelled) throw CancelledException()
+                failure?.let { throw it }
+                var moved = false
+                while (base < next) {
+                    val chunk = window[base % window.size]!!
+                    if (!chunk.acked) break
+                    window[base % window.size] = null
+                    bytesAcknowledged += chunk.payloadBytes
+                    base++
+                    moved = true
+                }
+                val now = System.nanoTime()
+                var waitNanos = ackTimeoutNanos
+                var resent = false
+                for (seq in base until next) {
+                    val chunk = window[seq % window.size]!!
+                    if (chunk.acked) continue
+                    val written = chunk.writtenNanos
+                    if (chunk.nakked || (written != 0L && (written < lastAckedWrittenNanos || now - written >= ackTimeoutNanos))) {
+                        resend(chunk)
+                        resent = true
+                    } else if (written != 0L) {
+                        waitNanos = minOf(waitNanos, written + ackTimeoutNanos - now)
+                    }
+                }
+                if (moved || resent || base == next) return moved
+                lock.wait(maxOf(1, waitNanos / 1_000_000), (waitNanos % 1_000_000).toInt())
+            }
+        }
+    }
+
+    private fun resend(chunk: Chunk) {
+        if (chunk.sends > options.maxRetransmits) {
+            throw IOException("Chunk ${chunk.seq} was not acknowledged after ${chunk.sends} attempts")
+        }
+        chunk.nakked = false
+        chunk.writtenNanos = 0
+        retransmissions++
+        write(chunk)
+    }
+
+    private fun write(chunk: Chunk) {
+        chunk.sends++
+        device.enqueue(ChunkWrite(chunk))
+    }
+
+    private fun fail(error: Throwable) {
+        synchronized(lock) {
+            if (failure == null) failure = error
+            lock.notifyAll()
+        }
+    }
+
+    /**
+     * Tells the device the transfer has been given up, if the connection is still there
+     */
+    private fun abort() {
+        device.enqueue(PendingWrite(TransferProtocol.encode(crc, TransferProtocol.ABORT, next), options.priority))
+    }
+
+    private fun progress(complete: Boolean): TransferProgress {
+        return TransferProgress(bytesAcknowledged, source.totalBytes, retransmissions, System.nanoTime() - startNanos, complete)
+    }
+
+    override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+        parser.parse(buffer, offset, length)
+    }
+
+    override fun onFrame(type: Byte, seq: Int, payload: ByteArray, offset: Int, length: Int) {
+        if (type != TransferProtocol.ACK && type != TransferProtocol.NAK) return
+        synchronized(lock) {
+            if (seq < base || seq >= next) return
+            val chunk = window[seq % window.size] ?: return
+            if (type == TransferProtocol.ACK) {
+                chunk.acked = true
+                lastAckedWrittenNanos = maxOf(lastAckedWrittenNanos, chunk.writtenNanos)
+            } else {
+                chunk.nakked = true
+            }
+            lock.notifyAll()
+        }
+    }
+
+    override fun onCorrupt(type: Byte, seq: Int) {
+        // A corrupt ack is recovered from by the chunk timing out
+    }
+
+    override fun onReconnected() {
+        parser.reset()
+    }
+
+    override fun onError(error: Throwable) {
+        fail(error)
+    }
+
+    override fun onEndOfStream() {
+        fail(IOException("Connection lost during transfer"))
+    }
+
+    private class CancelledException : Exception()
+}
@@ -0,0 +1,466 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.io.SequenceInputStream
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * A device's deflate state, package-private. It is created once per device and
+ * reset for each connection, so that the compressors' native memory and buffers
+ * are reused across reconnections. The deflater is only used by the writer thread
+ * and the inflater by the reader thread, and both are idle while reconnecting.
+ * Its native memory is only released by [end], once the device is closed.
+ */
+internal class DeflateCodec(val options: CompressionOptions) {
+    val deflater = Deflater(options.level, true)
+    val inflater = Inflater(true)
+    val deflateBuffer = ByteArray(BUFFER_SIZE)
+    val inflateBuffer = ByteArray(BUFFER_SIZE)
+
+    fun reset() {
+        deflater.reset()
+        inflater.reset()
+        options.dictionary?.let {
+            deflater.setDictionary(it)
+            inflater.setDictionary(it)
+        }
+    }
+
+    /**
+     * Releases the compressors' native memory. The codec cannot be used afterwards.
+     */
+    fun end() {
+        deflater.end()
+        inflater.end()
+    }
+
+    companion object {
+        const val BUFFER_SIZE = 4096
+    }
+}
+
+/**
+ * A transport that negotiates compression when it connects, package-private.
+ * See [CompressionOptions] for the handshake. Until it has connected, and if the
+ * device does not accept compression, its streams are those of [delegate].
+ * If [ownsCodec], the codec is ended when the transport is closed, otherwise
+ * it is shared by the device's connections and ended with the device.
+ */
+internal class CompressingTransport(
+        private val delegate: SerialTransport,
+        private val codec: DeflateCodec,
+        private val metrics: DeviceMetrics?,
+        private val ownsCodec: Boolean = false
+) : SerialTransport {
+    @Volatile private var input: InputStream? = null
+    @Volatile private var output: OutputStream? = null
+
+    override val inputStream: InputStream get() = input ?: delegate.inputStream
+    override val outputStream: OutputStream get() = output ?: delegate.outputStream
+
+    /**
+     * @return Whether the device accepted compression
+     */
+    @Volatile var isCompressed = false
+        private set
+
+    override fun connect() {
+        delegate.connect()
+        negotiate()
+    }
+
+    override fun close() {
+        delegate.close()
+        if (ownsCodec) codec.end()
+    }
+
+    /**
+     * Offers compression to the device, once [delegate] is connected.
+     * Lines the device sends before its reply are kept for the reader.
+     * If the device does not reply in time, compression is refused, so that a device
+     * that replies late does not start compressing, and its late reply is discarded.
+     * The reply is read through a [HandshakeReader], so it is seen as soon as it arrives
+     * and closing the transport aborts the handshake straight away.
+     */
+    fun negotiate() {
+        val options = codec.options
+        delegate.outputStream.write("$HANDSHAKE${options.dictionaryId}\n".toByteArray(Charsets.US_ASCII))
+        delegate.outputStream.flush()
+        val reader = HandshakeReader(delegate.inputStream)
+        val before = ByteArrayOutputStream()
+        val line = ByteArrayOutputStream()
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.handshakeTimeoutMillis)
+        while (before.size() + line.size() < MAX_HANDSHAKE_BYTES) {
+            val b = reader.read(deadline)
+            if (b == HandshakeReader.TIMED_OUT) break
+            if (b < 0) throw IOException("Connection ended during compression handshake")
+            if (b != '\n'.toInt()) {
+                line.write(b)
+                continue
+            }
+            val reply = line.toString("US-ASCII").trimEnd('\r')
+            if (reply == ACCEPTED) {
+                start(reader.remaining())
+                input = pushBack(before, input!!)
+                return
+            }
+            if (reply.startsWith(REPLY_PREFIX)) {
+                input = pushBack(before, reader.remaining())
+                return
+            }
+            line.write(b)
+            line.writeTo(before)
+            line.reset()
+        }
+        delegate.outputStream.write("$REFUSED\n".toByteArray(Charsets.US_ASCII))
+        delegate.outputStream.flush()
+        // The line being read when time ran out may be the start of the reply
+        input = pushBack(before, LateReplyInputStream(pushBack(line, reader.remaining())))
+    }
+
+    /**
+     * Answers the handshake as the device, for [CompressionOptions.accept]
+     */
+    fun accept() {
+        val raw = delegate.inputStream
+        val line = ByteArrayOutputStream()
+        while (true) {
+            val b = raw.read()
+            if (b < 0) throw IOException("Connection ended during compression handshake")
+            if (b == '\n'.toInt()) break
+            line.write(b)
+            if (line.size() > MAX_HANDSHAKE_BYTES) throw IOException("Compression handshake not received")
+        }
+        val expected = HANDSHAKE + codec.options.dictionaryId
+        if (line.toString("US-ASCII") != expected) throw IOException("Unexpected compression handshake: $line")
+        delegate.outputStream.write("$ACCEPTED\n".toByteArray(Charsets.US_ASCII))
+        delegate.outputStream.flush()
+        start(raw)
+    }
+
+    private fun start(raw: InputStream) {
+        codec.reset()
+        input = InflatingInputStream(raw, codec, metrics)
+        output = DeflatingOutputStream(delegate.outputStream, codec, metrics)
+        isCompressed = true
+    }
+
+    private fun pushBack(bytes: ByteArrayOutputStream, stream: InputStream): InputStream {
+        return if (bytes.size() == 0) stream else SequenceInputStream(ByteArrayInputStream(bytes.toByteArray()), stream)
+    }
+
+    companion object {
+        const val HANDSHAKE = "#COMPRESS deflate:"
+        const val REPLY_PREFIX = "#COMPRESS "
+        const val ACCEPTED = "#COMPRESS OK"
+        const val REFUSED = "#COMPRESS OFF"
+
+        // The most the device may send before replying, before giving up on compression
+        private const val MAX_HANDSHAKE_BYTES = 64 * 1024
+    }
+}
+
+/**
+ * Reads [input] on a thread of its own during the compression handshake, so that the
+ * handshake can wait for each byte until a deadline, which a transport's streams cannot.
+ * Once the handshake is over, [remaining] carries on with whatever the thread has read,
+ * including the read it is still blocked in, and then reads [input] directly.
+ */
+private class HandshakeReader(private val input: InputStream) {
+    // Chunks read, then HANDED_OVER, END or the IOException that stopped the thread
+    private val chunks = LinkedBlockingQueue<Any>()
+    private var chunk = EMPTY
+    private var position = 0
+    @Volatile private var stopped = false
+
+    init {
+        Thread(::pump, "BluetoothSerial-handshake").apply { isDaemon = true }.start()
+    }
+
+    /**
+     * @param deadlineNanos When to stop waiting, on [System.nanoTime]'s clock
+     * @return The next byte, -1 at the end of the stream, or [TIMED_OUT] if none arrived in time
+     */
+    fun read(deadlineNanos: Long): Int {
+        if (position == chunk.size) {
+            when (val next = chunks.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS) ?: return TIMED_OUT) {
+                is ByteArray -> {
+                    chunk = next
+                    position = 0
+                }
+                is IOException -> throw next
+                else -> return -1
+            }
+        }
+        return chunk[position++].toInt() and 0xFF
+    }
+
+    /**
+     * Stops the thread reading ahead
+     *
+     * @return The rest of the stream
+     */
+    fun remaining(): InputStream {
+        stopped = true
+        return RemainingInputStream()
+    }
+
+    private fun pump() {
+        val buffer = ByteArray(BUFFER_SIZE)
+        try {
+            while (!stopped) {
+                val count = input.read(buffer)
+                if (count < 0) {
+                    chunks.put(END)
+                    return
+                }
+                chunks.put(buffer.copyOf(count))
+            }
+            chunks.put(HANDED_OVER)
+        } catch (e: IOException) {
+            chunks.put(e)
+        }
+    }
+
+    private inner class RemainingInputStream : InputStream() {
+        private val single = ByteArray(1)
+        private var direct = false
+        private var ended = false
+
+        override fun read(): Int {
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            while (position == chunk.size) {
+                if (direct) return input.read(b, off, len)
+                if (ended) return -1
+                val next = try {
+                    chunks.take()
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    throw InterruptedIOException()
+                }
+                when (next) {
+                    is ByteArray -> {
+                        chunk = next
+                        position = 0
+                    }
+                    is IOException -> throw next
+                    HANDED_OVER -> direct = true
+                    else -> ended = true
+                }
+            }
+            val count = minOf(len, chunk.size - position)
+            System.arraycopy(chunk, position, b, off, count)
+            position += count
+            return count
+        }
+
+        override fun available(): Int {
+            return if (position < chunk.size) chunk.size - position else if (direct) input.available() else 0
+        }
+
+        override fun close() {
+            input.close()
+        }
+    }
+
+    companion object {
+        const val TIMED_OUT = -2
+
+        private const val BUFFER_SIZE = 4096
+        private val EMPTY = ByteArray(0)
+        private val HANDED_OVER = Any()
+        private val END = Any()
+    }
+}
+
+/**
+ * Removes the first handshake reply, any line starting with [CompressingTransport.REPLY_PREFIX],
+ * from [input], for a device that replies after the library has stopped waiting.
+ * The bytes of a line that starts like a reply are held back until it turns out not to be one.
+ * Once the reply has been removed, reads go straight to [input].
+ */
+private class LateReplyInputStream(private val input: InputStream) : InputStream() {
+    private val raw = ByteArray(BUFFER_SIZE)
+    private val ready = ByteArray(BUFFER_SIZE + PREFIX.size)
+    private var readyStart = 0
+    private var readyEnd = 0
+
+    // The number of bytes of the prefix matched at the start of the current line, which are held back
+    private var matched = 0
+    private var skipping = false
+    private var atLineStart = true
+    private var removed = false
+    private var ended = false
+
+    private val single = ByteArray(1)
+
+    override fun read(): Int {
+        return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (readyStart == readyEnd) {
+            if (removed) return input.read(b, off, len)
+            if (ended) return -1
+            readyStart = 0
+            readyEnd = 0
+            val count = input.read(raw, 0, minOf(raw.size, len))
+            if (count < 0) {
+                release()
+                ended = true
+            } else {
+                filter(count)
+            }
+        }
+        val count = minOf(len, readyEnd - readyStart)
+        System.arraycopy(ready, readyStart, b, off, count)
+        readyStart += count
+        return count
+    }
+
+    override fun available(): Int {
+        return if (readyStart < readyEnd) readyEnd - readyStart else input.available()
+    }
+
+    override fun close() {
+        input.close()
+    }
+
+    private fun filter(count: Int) {
+        for (i in 0 until count) {
+            val b = raw[i]
+            when {
+                removed -> emit(b)
+                skipping -> if (b == LF) {
+                    skipping = false
+                    removed = true
+                }
+                matched > 0 || (atLineStart && b == PREFIX[0]) -> if (b == PREFIX[matched]) {
+                    matched++
+                    if (matched == PREFIX.size) {
+                        matched = 0
+                        skipping = true
+                    }
+                } else {
+                    release()
+                    emit(b)
+                }
+                else -> emit(b)
+            }
+        }
+    }
+
+    private fun emit(b: Byte) {
+        ready[readyEnd++] = b
+        atLineStart = b == LF
+    }
+
+    private fun release() {
+        System.arraycopy(PREFIX, 0, ready, readyEnd, matched)
+        readyEnd += matched
+        if (matched > 0) atLineStart = false
+        matched = 0
+    }
+
+    private companion object {
+        const val BUFFER_SIZE = 4096
+        val PREFIX = CompressingTransport.REPLY_PREFIX.toByteArray(Charsets.US_ASCII)
+        const val LF = '\n'.toByte()
+    }
+}
+
+/**
+ * Compresses everything written to [out], with a sync flush on every [flush]
+ * so that the device can decompress each batch as soon as it arrives
+ */
+private class DeflatingOutputStream(
+        private val out: OutputStream,
+        codec: DeflateCodec,
+        private val metrics: DeviceMetrics?
+) : OutputStream() {
+    private val deflater = codec.deflater
+    private val buffer = codec.deflateBuffer
+    private val single = ByteArray(1)
+
+    override fun write(b: Int) {
+        single[0] = b.toByte()
+        write(single, 0, 1)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        deflater.setInput(b, off, len)
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH)
+        }
+    }
+
+    override fun flush() {
+        while (deflate(Deflater.SYNC_FLUSH) == buffer.size) {
+            // The buffer was filled, so there may be more
+        }
+        out.flush()
+    }
+
+    private fun deflate(flush: Int): Int {
+        val count = deflater.deflate(buffer, 0, buffer.size, flush)
+        if (count > 0) {
+            out.write(buffer, 0, count)
+            metrics?.compressedBytesSent?.addAndGet(count.toLong())
+        }
+        return count
+    }
+}
+
+/**
+ * Decompresses everything read from [input]
+ */
+private class InflatingInputStream(
+        private val input: InputStream,
+        codec: DeflateCodec,
+        private val metrics: DeviceMetrics?
+) : InputStream() {
+    private val inflater = codec.inflater
+    private val buffer = codec.inflateBuffer
+    private val single = ByteArray(1)
+
+    override fun read(): Int {
+        return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (true) {
+            val count = try {
+                inflater.inflate(b, off, len)
+            } catch (e: DataFormatException) {
+                throw IOException("Invalid compressed data", e)
+            }
+            if (count > 0) return count
+            if (inflater.finished()) return -1
+            val read = input.read(buffer)
+            if (read < 0) return -1
+            metrics?.compressedBytesReceived?.addAndGet(read.toLong())
+            inflater.setInput(buffer, 0, read)
+        }
+    }
+
+    override fun available(): Int = input.available()
+
+    override fun close() {
+        input.close()
+    }
+}
@@ -0,0 +1,112 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+import java.util.zip.Adler32
+import java.util.zip.Deflater
+
+/**
+ * Enables compression of everything sent and received on a connection, for links where
+ * the radio rather than the CPU is the bottleneck, such as devices that send verbose text.
+ * Set on [DeviceOptions.Builder.compression]. Create instances using [Builder].
+ *
+ * Compression is negotiated each time the device connects. The library sends the line
+ * `#COMPRESS deflate:<id>\n`, where `<id>` is the Adler-32 of the [dictionary] in
+ * lowercase hexadecimal, or `0` if there is none. A device that supports compression
+ * replies with `#COMPRESS OK\n`, after which each direction is a raw deflate stream
+ * (RFC 1951, with no zlib header) using the dictionary, flushed with a sync flush after
+ * every write. If the device replies with any other line starting with `#COMPRESS `,
+ * such as `#COMPRESS NO\n`, the connection carries on uncompressed. If the device does
+ * not reply within [handshakeTimeoutMillis], the library sends `#COMPRESS OFF\n` and
+ * carries on uncompressed. A device that receives it must not compress, even if it has
+ * already replied, and a reply that arrives after it is discarded rather than delivered.
+ * Any other lines the device sends before its reply are delivered to the device's streams as usual.
+ * Whether compression is in use is available from [BluetoothSerialDevice.isCompressed],
+ * and how well it is working from [DeviceStats.sendCompressionRatio] and
+ * [DeviceStats.receiveCompressionRatio].
+ */
+class CompressionOptions private constructor(builder: Builder) {
+    /**
+     * @return Bytes that are likely to appear in the data, such as field names and
+     * common values, which both ends preset their compressors with, or null for none.
+     * Short messages compress much better with a dictionary.
+     */
+    val dictionary: ByteArray? = builder.dictionary
+
+    /**
+     * @return The deflate compression level, from [Deflater.BEST_SPEED] to [Deflater.BEST_COMPRESSION]
+     */
+    val level: Int = builder.level
+
+    /**
+     * @return How long, in milliseconds, to wait for the device to accept compression
+     */
+    val handshakeTimeoutMillis: Long = builder.handshakeTimeoutMillis
+
+    /**
+     * @return The ID of the [dictionary] sent in the handshake
+     */
+    internal val dictionaryId: String = dictionary?.let { dictionary ->
+        val adler = Adler32()
+        adler.update(dictionary)
+        java.lang.Long.toHexString(adler.value)
+    } ?: "0"
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    /**
+     * Accepts compression on the device end of a connection, for testing compressed
+     * connections against the peer of a [MemoryTransport] on a plain JVM.
+     * Blocks until the library's handshake line has been read and answered.
+     *
+     * @param peer The device end of a connection, which must already be connected
+     * @return A transport whose streams compress and decompress as the device would
+     * @throws IOException If the connection fails, or the handshake line
+     * does not match these options
+     */
+    @Throws(IOException::class)
+    fun accept(peer: SerialTransport): SerialTransport {
+        return CompressingTransport(peer, DeflateCodec(this), null, true).apply { accept() }
+    }
+
+    class Builder() {
+        internal var dictionary: ByteArray? = null
+        internal var level = Deflater.DEFAULT_COMPRESSION
+        internal var handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS
+
+        internal constructor(options: CompressionOptions) : this() {
+            dictionary = options.dictionary
+            level = options.level
+            handshakeTimeoutMillis = options.handshakeTimeoutMillis
+        }
+
+        /**
+         * @param dictionary Bytes likely to appear in the data, or null for none. The device must use the same dictionary.
+         */
+        fun dictionary(dictionary: ByteArray?) = apply { this.dictionary = dictionary?.copyOf() }
+
+        /**
+         * @param level The deflate compression level, from 1 to 9, or -1 for the default
+         */
+        fun level(level: Int) = apply {
+            require(level == Deflater.DEFAULT_COMPRESSION || level in Deflater.BEST_SPEED..Deflater.BEST_COMPRESSION) { "Invalid compression level" }
+            this.level = level
+        }
+
+        /**
+         * @param handshakeTimeoutMillis How long to wait for the device to accept compression
+         */
+        fun handshakeTimeoutMillis(handshakeTimeoutMillis: Long) = apply {
+            require(handshakeTimeoutMillis > 0) { "handshakeTimeoutMillis must be positive" }
+            this.handshakeTimeoutMillis = handshakeTimeoutMillis
+        }
+
+        fun build() = CompressionOptions(this)
+    }
+
+    companion object {
+        const val DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 1000L
+    }
+}
@@ -0,0 +1,26 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * The outcome of connecting to one device, as emitted by [BluetoothManager.openSerialDevices].
+ */
+data class ConnectResult(
+        /**
+         * @return The MAC address of the device
+         */
+        val mac: String,
+        /**
+         * @return The connected device, or null if it could not be connected
+         */
+        val device: BluetoothSerialDevice?,
+        /**
+         * @return Why the device could not be connected, or null if it was connected.
+         * This is a BluetoothConnectException, whose cause is a
+         * [java.util.concurrent.TimeoutException] if the attempt timed out.
+         */
+        val error: Throwable?
+) {
+    /**
+     * @return Whether the device was connected
+     */
+    val isSuccess: Boolean get() = device != null
+}
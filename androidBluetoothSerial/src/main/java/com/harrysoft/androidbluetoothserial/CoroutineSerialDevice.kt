@@ -0,0 +1,93 @@
+package com.harrysoft.androidbluetoothserial
+
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * A view of a [BluetoothSerialDevice] for Kotlin coroutines, obtained from
+ * [BluetoothSerialDevice.toCoroutineDevice] or [BluetoothManager.connect].
+ * Sends suspend until written instead of returning a Completable, and
+ * received data is collected as a Flow instead of a Flowable. Neither goes
+ * through RxJava or hops threads: sends are queued straight to the device's
+ * writer thread, and the device's reader thread hands items to the collector
+ * through the same kind of lock-free buffer as the RxJava streams, in whatever
+ * context the Flow is collected in. The buffer's size and what happens when it
+ * is full are set by the device's [DeviceOptions].
+ * Cancelling a send or a collection cleans up after it.
+ */
+interface CoroutineSerialDevice {
+    /**
+     * @return The BluetoothSerialDevice this is a view of
+     */
+    val device: BluetoothSerialDevice
+
+    /**
+     * Suspends until the message has been written, as in [BluetoothSerialDevice.send].
+     * If cancelled before the writer reaches it, the message is not sent.
+     *
+     * @param message The message to send to the device
+     */
+    suspend fun send(message: String)
+
+    /**
+     * Suspends until the bytes have been written, as in [BluetoothSerialDevice.send].
+     *
+     * @param bytes The raw bytes to send to the device
+     */
+    suspend fun send(bytes: ByteArray)
+
+    /**
+     * Suspends until the message has been written, as in [BluetoothSerialDevice.send].
+     *
+     * @param message The message to send to the device
+     * @param priority How urgently to write the message
+     */
+    suspend fun send(message: String, priority: SendPriority)
+
+    /**
+     * Suspends until the bytes have been written, as in [BluetoothSerialDevice.send].
+     *
+     * @param bytes The raw bytes to send to the device
+     * @param priority How urgently to write the bytes
+     */
+    suspend fun send(bytes: ByteArray, priority: SendPriority)
+
+    /**
+     * @return A Flow of the messages received while it is collected,
+     * as in [BluetoothSerialDevice.openMessageStream]
+     */
+    fun messages(): Flow<String>
+
+    /**
+     * @return A Flow of the raw bytes received while it is collected,
+     * as in [BluetoothSerialDevice.openByteStream]
+     */
+    fun bytes(): Flow<ByteArray>
+
+    /**
+     * @return A Flow of the raw bytes received while it is collected, as pooled [Frame]s
+     * that **must** be released, as in [BluetoothSerialDevice.openFrameStream]
+     */
+    fun frames(): Flow<Frame>
+
+    /**
+     * @param decoder The decoder used to split the received bytes into frames
+     * @return A Flow of the decoded frames received while it is collected, as pooled [Frame]s
+     * that **must** be released, as in [BluetoothSerialDevice.openFrameStream]
+     */
+    fun frames(decoder: FrameDecoder): Flow<Frame>
+
+    /**
+     * @param format The fields each line holds
+     * @return A Flow of the samples received while it is collected, as pooled [TelemetryBatch]es
+     * that **must** be released, as in [BluetoothSerialDevice.openTelemetryStream]
+     */
+    fun telemetry(format: TelemetryFormat): Flow<TelemetryBatch>
+
+    /**
+     * @param format The fields each line holds
+     * @param window The windows to summarise the samples over
+     * @return A Flow of a summary of each window of samples received while it is collected,
+     * as in [BluetoothSerialDevice.openAggregateStream]
+     */
+    fun aggregates(format: TelemetryFormat, window: WindowOptions): Flow<WindowAggregate>
+}
@@ -0,0 +1,182 @@
+package com.harrysoft.androidbluetoothserial
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Implementation of CoroutineSerialDevice, package-private
+ */
+internal class CoroutineSerialDeviceImpl(override val device: BluetoothSerialDeviceImpl) : CoroutineSerialDevice {
+    override suspend fun send(message: String) {
+        send(message.toByteArray(device.charset), SendPriority.NORMAL)
+    }
+
+    override suspend fun send(bytes: ByteArray) {
+        send(bytes, SendPriority.NORMAL)
+    }
+
+    override suspend fun send(message: String, priority: SendPriority) {
+        send(message.toByteArray(device.charset), priority)
+    }
+
+    override suspend fun send(bytes: ByteArray, priority: SendPriority) {
+        device.checkNotClosed()
+        suspendCancellableCoroutine<Unit> { continuation ->
+            device.enqueue(ContinuationPendingWrite(bytes, priority, continuation))
+        }
+    }
+
+    override fun messages(): Flow<String> {
+        device.checkNotClosed()
+        return readerFlow({ }, device::messageListener)
+    }
+
+    override fun bytes(): Flow<ByteArray> {
+        device.checkNotClosed()
+        return readerFlow({ }) { emitter ->
+            object : EmitterReadListener<ByteArray>(emitter) {
+                override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+                    emitter.onNext(buffer.copyOfRange(offset, offset + length))
+                }
+            }
+        }
+    }
+
+    override fun frames(): Flow<Frame> {
+        device.checkNotClosed()
+        return readerFlow(Frame::release, device::frameListener)
+    }
+
+    override fun frames(decoder: FrameDecoder): Flow<Frame> {
+        device.checkNotClosed()
+        return readerFlow(Frame::release) { emitter -> device.decodedFrameListener(emitter, decoder) }
+    }
+
+    override fun telemetry(format: TelemetryFormat): Flow<TelemetryBatch> {
+        device.checkNotClosed()
+        device.checkTelemetrySupported(format)
+        return readerFlow(TelemetryBatch::release) { emitter -> device.telemetryListener(emitter, format) }
+    }
+
+    override fun aggregates(format: TelemetryFormat, window: WindowOptions): Flow<WindowAggregate> {
+        device.checkNotClosed()
+        device.checkAggregationSupported(format, window)
+        return readerFlow({ }) { emitter -> device.aggregateListener(emitter, format, window) }
+    }
+
+    /**
+     * Each collection registers its own listener with the device's reader,
+     * which is removed when the collection finishes or is cancelled.
+     */
+    private fun <T : Any> readerFlow(onDiscard: (T) -> Unit, listenerFactory: (ItemEmitter<T>) -> ReadListener): Flow<T> {
+        val options = device.options
+        return flow {
+            val capacity = if (options.backpressurePolicy == BackpressurePolicy.KEEP_LATEST) 1 else options.streamBufferCapacity
+            val emitter = SuspendingEmitter(capacity, options.backpressurePolicy, device.metrics, onDiscard)
+            val listener = listenerFactory(emitter)
+            device.reader.addListener(listener)
+            try {
+                emitter.emitAll(this)
+            } finally {
+                device.reader.removeListener(listener)
+                emitter.dispose()
+            }
+        }
+    }
+}
+
+/**
+ * A PendingWrite that resumes a suspended send, package-private
+ */
+internal class ContinuationPendingWrite(
+        bytes: ByteArray,
+        priority: SendPriority,
+        private val continuation: CancellableContinuation<Unit>
+) : PendingWrite(bytes, priority) {
+    override val isCancelled: Boolean get() = continuation.isCancelled
+
+    override fun onWritten() {
+        continuation.resume(Unit)
+    }
+
+    override fun onFailed(error: Throwable) {
+        continuation.resumeWithException(error)
+    }
+}
+
+/**
+ * Hands items from the reader thread to a Flow collector through a [BoundedRing], package-private.
+ * The collector takes items straight from the ring, and only suspends when it is empty.
+ * A suspended collector is resumed once per chunk read rather than once per item,
+ * or sooner if the ring fills up, so that it does not suspend between every item.
+ */
+internal class SuspendingEmitter<T : Any>(
+        capacity: Int,
+        policy: BackpressurePolicy,
+        metrics: DeviceMetrics,
+        onDiscard: (T) -> Unit
+) : BoundedRing<T>(capacity, policy, metrics, onDiscard) {
+    private val waiter = AtomicReference<CancellableContinuation<Unit>?>()
+    private val wakeThreshold = (capacity + 1) / 2
+
+    override fun onPublished() {
+        if (waiter.get() != null && (done || size >= wakeThreshold)) wake()
+    }
+
+    override fun flush() {
+        if (waiter.get() != null) wake()
+    }
+
+    private fun wake() {
+        waiter.getAndSet(null)?.resume(Unit)
+    }
+
+    override fun cancel() {
+        markCancelled()
+    }
+
+    /**
+     * Emits items to [collector] until the stream terminates, rethrowing its error
+     */
+    suspend fun emitAll(collector: FlowCollector<T>) {
+        while (true) {
+            val item = poll()
+            if (item != null) {
+                collector.emit(item)
+                continue
+            }
+            if (done) {
+                // Items published before the stream terminated may have arrived since the poll
+                if (!isEmpty) continue
+                error?.let { throw it }
+                return
+            }
+            awaitItem()
+        }
+    }
+
+    private suspend fun awaitItem() {
+        suspendCancellableCoroutine<Unit> { continuation ->
+            waiter.set(continuation)
+            // Checked after waiting, so an item published meanwhile cannot be missed
+            if ((!isEmpty || done) && waiter.compareAndSet(continuation, null)) {
+                continuation.resume(Unit)
+            }
+        }
+    }
+
+    /**
+     * Called once the collector has finished, after the listener has been removed
+     */
+    fun dispose() {
+        markCancelled()
+        waiter.set(null)
+        clear()
+    }
+}
@@ -0,0 +1,55 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.observers.DisposableSingleObserver
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Connects to a device, suspending until it is connected, as in [BluetoothManager.openSerialDevice].
+ * Connecting blocks a thread, so it runs on [dispatcher], or on the calling thread if that
+ * dispatcher does not need to dispatch, as with [Dispatchers.Unconfined].
+ * Cancelling the coroutine aborts the connection attempt, closing the device if it connects
+ * anyway, unless the device was already connected or someone else is waiting for the same attempt.
+ *
+ * @param mac The MAC address of the device you are trying to connect to
+ * @param options The options controlling how the device reads and writes
+ * @param dispatcher The dispatcher to connect on
+ * @return The connected device
+ * @throws BluetoothConnectException If the connection could not be made
+ */
+suspend fun BluetoothManager.connect(
+        mac: String,
+        options: DeviceOptions = DeviceOptions.DEFAULT,
+        dispatcher: CoroutineDispatcher = Dispatchers.IO
+): CoroutineSerialDevice {
+    val connection = (this as? BluetoothManagerImpl)?.openAbandonableSerialDevice(mac, options) ?: openSerialDevice(mac, options)
+    val device = suspendCancellableCoroutine<BluetoothSerialDevice> { continuation ->
+        // Set by whichever happens first, the attempt finishing or the coroutine being cancelled
+        val settled = AtomicBoolean()
+        val observer = object : DisposableSingleObserver<BluetoothSerialDevice>() {
+            override fun onSuccess(device: BluetoothSerialDevice) {
+                if (settled.compareAndSet(false, true)) continuation.resume(device)
+            }
+
+            override fun onError(error: Throwable) {
+                if (settled.compareAndSet(false, true)) continuation.resumeWithException(error)
+            }
+        }
+        // Disposing abandons the attempt, which interrupts a connect that is blocked in subscribe
+        continuation.invokeOnCancellation {
+            if (settled.compareAndSet(false, true)) observer.dispose()
+        }
+        // Connecting blocks, and this block cannot be cancelled until it returns, so the connect runs in
+        // a child of the caller's job, which is not started at all if the caller is cancelled first
+        CoroutineScope(continuation.context).launch(dispatcher) {
+            if (!settled.get()) connection.subscribe(observer)
+        }
+    }
+    return device.toCoroutineDevice()
+}
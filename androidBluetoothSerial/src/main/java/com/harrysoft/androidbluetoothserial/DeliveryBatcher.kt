@@ -0,0 +1,91 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.FlowableSubscriber
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import org.reactivestreams.Subscription
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Collects items from any thread and delivers them on [scheduler] in batches, package-private.
+ * The first item to arrive schedules a single drain after [windowMillis], and the drain
+ * delivers up to [maxBatchSize] items in one call, scheduling another drain straight away
+ * if more are waiting. Subscribed to a Flowable, it requests more items only as batches
+ * are delivered, so a slow [scheduler] applies backpressure to the stream as
+ * observeOn would. Items can also be given to it directly with [onNext].
+ */
+internal class DeliveryBatcher<T>(
+        private val scheduler: Scheduler,
+        private val windowMillis: Long,
+        private val maxBatchSize: Int,
+        private val deliver: (List<T>) -> Unit,
+        private val deliverError: (Throwable) -> Unit
+) : FlowableSubscriber<T>, Disposable {
+    private val queue = ConcurrentLinkedQueue<T>()
+    private val scheduled = AtomicBoolean(false)
+    @Volatile private var subscription: Subscription? = null
+    @Volatile private var error: Throwable? = null
+    @Volatile private var disposed = false
+
+    override fun onSubscribe(s: Subscription) {
+        subscription = s
+        if (disposed) s.cancel() else s.request(maxBatchSize.toLong() * PREFETCH_BATCHES)
+    }
+
+    override fun onNext(item: T) {
+        queue.offer(item)
+        schedule(windowMillis)
+    }
+
+    override fun onError(t: Throwable) {
+        // Delivered once the items before it have been
+        error = t
+        schedule(windowMillis)
+    }
+
+    override fun onComplete() {
+    }
+
+    private fun schedule(delayMillis: Long) {
+        if (!disposed && scheduled.compareAndSet(false, true)) {
+            scheduler.scheduleDirect(::drain, delayMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun drain() {
+        scheduled.set(false)
+        if (disposed) return
+        val batch = ArrayList<T>(minOf(maxBatchSize, INITIAL_BATCH_CAPACITY))
+        while (batch.size < maxBatchSize) {
+            batch.add(queue.poll() ?: break)
+        }
+        if (batch.isNotEmpty()) deliver(batch)
+        if (!queue.isEmpty()) {
+            schedule(0)
+        } else {
+            error?.let {
+                error = null
+                deliverError(it)
+            }
+        }
+        // Requested last, as the stream may emit straight away, and its items would
+        // otherwise schedule a drain after the window before the one above
+        if (batch.isNotEmpty()) subscription?.request(batch.size.toLong())
+    }
+
+    override fun isDisposed(): Boolean = disposed
+
+    override fun dispose() {
+        disposed = true
+        subscription?.cancel()
+        queue.clear()
+    }
+
+    companion object {
+        // How many batches may be waiting to be delivered before the stream is backpressured
+        private const val PREFETCH_BATCHES = 2
+        private const val INITIAL_BATCH_CAPACITY = 16
+    }
+}
@@ -0,0 +1,119 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.Executor
+
+/**
+ * Options controlling how, and on which thread, a [SimpleBluetoothDeviceInterface]
+ * delivers messages to its listeners.
+ * Pass to [BluetoothSerialDevice.toSimpleDeviceInterface]. Create instances using [Builder].
+ */
+class DeliveryOptions private constructor(builder: Builder) {
+    /**
+     * @return The scheduler listeners are called on, or null for Android's main thread
+     */
+    val scheduler: Scheduler? = builder.scheduler
+
+    /**
+     * @return Whether listeners are called directly on the device's reader thread,
+     * for received messages, and writer thread, for sent confirmations, with no
+     * thread hop at all. The listeners must then return quickly, as the device
+     * reads or writes nothing else until they do, and must not touch the UI.
+     * Messages are never batched.
+     */
+    val isDirect: Boolean = builder.direct
+
+    /**
+     * @return Whether received messages and sent confirmations are delivered to the
+     * [scheduler] in batches, rather than with one post per message.
+     * When batching, the first message to arrive schedules a single post after
+     * [batchWindowMillis], which delivers every message that has arrived by then,
+     * up to [maxBatchSize], as one call to the listener.
+     */
+    val isBatching: Boolean = builder.batching
+
+    /**
+     * @return How long, in milliseconds, to wait for more messages before delivering a batch.
+     * Zero delivers whatever has arrived by the time the scheduler runs the delivery.
+     */
+    val batchWindowMillis: Long = builder.batchWindowMillis
+
+    /**
+     * @return The most messages delivered in one call. Any more are
+     * delivered in a following post to the scheduler.
+     */
+    val maxBatchSize: Int = builder.maxBatchSize
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    class Builder() {
+        internal var scheduler: Scheduler? = null
+        internal var direct = false
+        internal var batching = false
+        internal var batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS
+        internal var maxBatchSize = DEFAULT_MAX_BATCH_SIZE
+
+        internal constructor(options: DeliveryOptions) : this() {
+            scheduler = options.scheduler
+            direct = options.isDirect
+            batching = options.isBatching
+            batchWindowMillis = options.batchWindowMillis
+            maxBatchSize = options.maxBatchSize
+        }
+
+        /**
+         * @param scheduler The scheduler to call listeners on, or null for Android's main thread
+         */
+        fun scheduler(scheduler: Scheduler?) = apply { this.scheduler = scheduler }
+
+        /**
+         * @param executor The executor to call listeners on
+         */
+        fun executor(executor: Executor) = apply { this.scheduler = Schedulers.from(executor) }
+
+        /**
+         * @param direct Whether to call listeners directly on the device's reader and writer threads
+         */
+        fun direct(direct: Boolean) = apply { this.direct = direct }
+
+        /**
+         * @param batching Whether to deliver messages in batches
+         */
+        fun batching(batching: Boolean) = apply { this.batching = batching }
+
+        /**
+         * @param batchWindowMillis How long to wait for more messages before delivering a batch
+         */
+        fun batchWindowMillis(batchWindowMillis: Long) = apply {
+            require(batchWindowMillis >= 0) { "batchWindowMillis must not be negative" }
+            this.batchWindowMillis = batchWindowMillis
+        }
+
+        /**
+         * @param maxBatchSize The most messages to deliver in one call
+         */
+        fun maxBatchSize(maxBatchSize: Int) = apply {
+            require(maxBatchSize > 0) { "maxBatchSize must be positive" }
+            this.maxBatchSize = maxBatchSize
+        }
+
+        fun build() = DeliveryOptions(this)
+    }
+
+    companion object {
+        // About one frame at 60 frames per second
+        const val DEFAULT_BATCH_WINDOW_MILLIS = 16L
+        const val DEFAULT_MAX_BATCH_SIZE = 64
+
+        /**
+         * The options used when none are specified, which deliver
+         * every message individually on Android's main thread
+         */
+        @JvmField
+        val DEFAULT = Builder().build()
+    }
+}
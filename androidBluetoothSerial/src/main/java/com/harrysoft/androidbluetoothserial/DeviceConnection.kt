@@ -0,0 +1,147 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Holds a device's current transport and replaces it when the connection drops, package-private.
+ * The reader and writer report a failed transport to [recover], and whichever notices
+ * first starts a background reconnection that both then wait for. Attempts are spaced
+ * by the [ReconnectPolicy]'s jittered exponential backoff, and each new transport is
+ * created by [transportFactory] and connected here, so that [close] can abort it.
+ * Without a policy, or once the policy gives up, failures are not recovered,
+ * and giving up is reported to [onGaveUp], which is called with the lock held.
+ */
+internal class DeviceConnection(
+        private val name: String,
+        initial: SerialTransport,
+        private val policy: ReconnectPolicy?,
+        private val metrics: DeviceMetrics,
+        private val onGaveUp: () -> Unit,
+        private val transportFactory: () -> SerialTransport
+) {
+    private val lock = Object()
+    private var connecting: SerialTransport? = null
+    private var closed = false
+    private var gaveUp = false
+
+    @Volatile var transport: SerialTransport = initial
+        private set
+
+    /**
+     * @return Whether a dropped connection is re-established rather than reported
+     */
+    val canReconnect: Boolean get() = policy != null
+
+    /**
+     * @return Whether the connection has dropped and is being re-established
+     */
+    @Volatile var isReconnecting = false
+        private set
+
+    /**
+     * Blocks until the connection that [failed] belonged to has been replaced.
+     *
+     * @param failed The transport whose stream failed or ended
+     * @return The new transport, or null if the connection will not be
+     * recovered, in which case the caller should report the failure
+     */
+    fun recover(failed: SerialTransport): SerialTransport? {
+        if (policy == null) return null
+        synchronized(lock) {
+            if (transport === failed && !isReconnecting && !gaveUp && !closed) {
+                isReconnecting = true
+                val thread = Thread({ reconnect(failed, policy) }, name)
+                thread.isDaemon = true
+                thread.start()
+            }
+            while (isReconnecting && !closed) {
+                lock.wait()
+            }
+            return if (closed || gaveUp) null else transport
+        }
+    }
+
+    private fun reconnect(failed: SerialTransport, policy: ReconnectPolicy) {
+        closeQuietly(failed)
+        var attempt = 0
+        while (true) {
+            synchronized(lock) {
+                val deadline = System.currentTimeMillis() + policy.delayMillis(attempt)
+                var remaining = deadline - System.currentTimeMillis()
+                while (!closed && remaining > 0) {
+                    lock.wait(remaining)
+                    remaining = deadline - System.currentTimeMillis()
+                }
+                if (closed) return
+            }
+            val next = try {
+                connect()
+            } catch (e: Exception) {
+                null
+            }
+            synchronized(lock) {
+                if (closed) {
+                    next?.let(::closeQuietly)
+                    return
+                }
+                if (next != null) {
+                    metrics.reconnects.incrementAndGet()
+                    transport = next
+                    isReconnecting = false
+                    lock.notifyAll()
+                    return
+                }
+                attempt++
+                if (policy.maxAttempts in 1..attempt) {
+                    // Reported before waking the reader and writer, so that by the time they fail, the device is gone
+                    onGaveUp()
+                    gaveUp = true
+                    isReconnecting = false
+                    lock.notifyAll()
+                    return
+                }
+            }
+        }
+    }
+
+    private fun connect(): SerialTransport {
+        val next = transportFactory()
+        synchronized(lock) {
+            if (closed) throw IllegalStateException("Device connection closed")
+            connecting = next
+        }
+        try {
+            next.connect()
+        } catch (e: Exception) {
+            closeQuietly(next)
+            throw e
+        } finally {
+            synchronized(lock) {
+                connecting = null
+            }
+        }
+        return next
+    }
+
+    /**
+     * Closes the current transport and aborts any reconnection in progress.
+     */
+    fun close() {
+        val pending: SerialTransport?
+        synchronized(lock) {
+            closed = true
+            pending = connecting
+            lock.notifyAll()
+        }
+        pending?.let(::closeQuietly)
+        val current = transport
+        current.inputStream.close()
+        current.outputStream.close()
+        current.close()
+    }
+
+    private fun closeQuietly(transport: SerialTransport) {
+        try {
+            transport.close()
+        } catch (ignored: Exception) {
+        }
+    }
+}
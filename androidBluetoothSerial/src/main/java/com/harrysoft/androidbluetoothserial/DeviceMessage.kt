@@ -0,0 +1,15 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * A message received from one of several devices, as emitted by [BluetoothManager.openMergedStream].
+ */
+data class DeviceMessage(
+        /**
+         * @return The MAC address of the device that sent the message
+         */
+        val mac: String,
+        /**
+         * @return The message
+         */
+        val message: String
+)
@@ -0,0 +1,37 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The live counters behind a device's [DeviceStats], package-private.
+ * Each counter is updated by the reader or writer thread that owns it,
+ * so the atomics are uncontended and updating them never takes a lock.
+ */
+internal class DeviceMetrics {
+    private val connectedNanos = System.nanoTime()
+
+    val bytesReceived = AtomicLong()
+    val bytesSent = AtomicLong()
+    val compressedBytesReceived = AtomicLong()
+    val compressedBytesSent = AtomicLong()
+    val messagesReceived = AtomicLong()
+    val messagesSent = AtomicLong()
+    val failedSends = AtomicLong()
+    val readErrors = AtomicLong()
+    val writeErrors = AtomicLong()
+    val reconnects = AtomicLong()
+    val overflows = AtomicLong()
+    val dropped = AtomicLong()
+    val sendLatency = LatencyRecorder()
+    val handOffLatency = LatencyRecorder()
+
+    fun snapshot(mac: String, sendBacklog: Int, receiveBacklog: Int): DeviceStats {
+        val now = System.nanoTime()
+        return DeviceStats(mac, now, now - connectedNanos,
+                bytesReceived.get(), bytesSent.get(), compressedBytesReceived.get(), compressedBytesSent.get(),
+                messagesReceived.get(), messagesSent.get(),
+                failedSends.get(), readErrors.get(), writeErrors.get(), reconnects.get(),
+                overflows.get(), dropped.get(), sendBacklog, receiveBacklog,
+                sendLatency.snapshot(), handOffLatency.snapshot())
+    }
+}
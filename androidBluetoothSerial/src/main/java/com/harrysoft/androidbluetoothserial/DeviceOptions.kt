@@ -0,0 +1,212 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.nio.charset.Charset
+import java.nio.charset.StandardCharsets
+
+/**
+ * Options controlling how a [BluetoothSerialDevice] reads and writes.
+ * Create instances using [Builder].
+ */
+class DeviceOptions private constructor(builder: Builder) {
+    /**
+     * @return The Charset used to encode and decode messages
+     */
+    val charset: Charset = builder.charset
+
+    /**
+     * @return The maximum number of bytes that queued messages
+     * are coalesced into before being written to the device
+     */
+    val maxWriteBatchBytes: Int = builder.maxWriteBatchBytes
+
+    /**
+     * @return How long, in microseconds, the writer waits for more
+     * messages to coalesce before writing a batch that is not full.
+     * Zero means only messages that are already queued are coalesced.
+     */
+    val writeLingerMicros: Long = builder.writeLingerMicros
+
+    /**
+     * @return The size of the chunks that messages larger than this are
+     * written in, so that a more urgent message can be written between them.
+     * A [SendPriority.HIGH] message waits for at most one chunk or batch to be written.
+     */
+    val sendChunkBytes: Int = builder.sendChunkBytes
+
+    /**
+     * @return The number of received messages each stream buffers
+     * for a subscriber that is not keeping up
+     */
+    val streamBufferCapacity: Int = builder.streamBufferCapacity
+
+    /**
+     * @return What a stream does when its buffer is full
+     */
+    val backpressurePolicy: BackpressurePolicy = builder.backpressurePolicy
+
+    /**
+     * @return The size of the buffer the device's reader thread reads into
+     */
+    val readBufferSize: Int = builder.readBufferSize
+
+    /**
+     * @return The priority of the device's reader thread
+     */
+    val readerThreadPriority: Int = builder.readerThreadPriority
+
+    /**
+     * @return How the device reconnects after its connection drops,
+     * or null if its streams should error instead
+     */
+    val reconnectPolicy: ReconnectPolicy? = builder.reconnectPolicy
+
+    /**
+     * @return How the connection is compressed, if the device accepts it,
+     * or null to never compress
+     */
+    val compression: CompressionOptions? = builder.compression
+
+    /**
+     * @return Where the bytes the device receives and sends are recorded, or null to not record them
+     */
+    val recorder: TrafficRecorder? = builder.recorder
+
+    /**
+     * @return How the device grants the writer credit to send,
+     * or null to send as fast as the connection accepts
+     */
+    val flowControl: FlowControlOptions? = builder.flowControl
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    class Builder() {
+        internal var charset: Charset = StandardCharsets.UTF_8
+        internal var maxWriteBatchBytes = DEFAULT_MAX_WRITE_BATCH_BYTES
+        internal var writeLingerMicros = 0L
+        internal var sendChunkBytes = DEFAULT_SEND_CHUNK_BYTES
+        internal var streamBufferCapacity = DEFAULT_STREAM_BUFFER_CAPACITY
+        internal var backpressurePolicy = BackpressurePolicy.BLOCK
+        internal var readBufferSize = DEFAULT_READ_BUFFER_SIZE
+        internal var readerThreadPriority = Thread.NORM_PRIORITY
+        internal var reconnectPolicy: ReconnectPolicy? = null
+        internal var compression: CompressionOptions? = null
+        internal var recorder: TrafficRecorder? = null
+        internal var flowControl: FlowControlOptions? = null
+
+        internal constructor(options: DeviceOptions) : this() {
+            charset = options.charset
+            maxWriteBatchBytes = options.maxWriteBatchBytes
+            writeLingerMicros = options.writeLingerMicros
+            sendChunkBytes = options.sendChunkBytes
+            streamBufferCapacity = options.streamBufferCapacity
+            backpressurePolicy = options.backpressurePolicy
+            readBufferSize = options.readBufferSize
+            readerThreadPriority = options.readerThreadPriority
+            reconnectPolicy = options.reconnectPolicy
+            compression = options.compression
+            recorder = options.recorder
+            flowControl = options.flowControl
+        }
+
+        /**
+         * @param charset The Charset to use for input/output streams
+         */
+        fun charset(charset: Charset) = apply { this.charset = charset }
+
+        /**
+         * @param maxWriteBatchBytes The maximum number of bytes to coalesce into a single write
+         */
+        fun maxWriteBatchBytes(maxWriteBatchBytes: Int) = apply {
+            require(maxWriteBatchBytes > 0) { "maxWriteBatchBytes must be positive" }
+            this.maxWriteBatchBytes = maxWriteBatchBytes
+        }
+
+        /**
+         * @param writeLingerMicros How long to wait for more messages before writing a batch that is not full
+         */
+        fun writeLingerMicros(writeLingerMicros: Long) = apply {
+            require(writeLingerMicros >= 0) { "writeLingerMicros must not be negative" }
+            this.writeLingerMicros = writeLingerMicros
+        }
+
+        /**
+         * @param sendChunkBytes The size of the chunks that larger messages are written in
+         */
+        fun sendChunkBytes(sendChunkBytes: Int) = apply {
+            require(sendChunkBytes > 0) { "sendChunkBytes must be positive" }
+            this.sendChunkBytes = sendChunkBytes
+        }
+
+        /**
+         * @param streamBufferCapacity The number of received messages each stream may buffer
+         */
+        fun streamBufferCapacity(streamBufferCapacity: Int) = apply {
+            require(streamBufferCapacity > 0) { "streamBufferCapacity must be positive" }
+            this.streamBufferCapacity = streamBufferCapacity
+        }
+
+        /**
+         * @param backpressurePolicy What a stream does when its buffer is full
+         */
+        fun backpressurePolicy(backpressurePolicy: BackpressurePolicy) = apply { this.backpressurePolicy = backpressurePolicy }
+
+        /**
+         * @param readBufferSize The size of the buffer the reader thread reads into
+         */
+        fun readBufferSize(readBufferSize: Int) = apply {
+            require(readBufferSize > 0) { "readBufferSize must be positive" }
+            this.readBufferSize = readBufferSize
+        }
+
+        /**
+         * @param readerThreadPriority The priority of the reader thread, between
+         * [Thread.MIN_PRIORITY] and [Thread.MAX_PRIORITY]
+         */
+        fun readerThreadPriority(readerThreadPriority: Int) = apply {
+            require(readerThreadPriority in Thread.MIN_PRIORITY..Thread.MAX_PRIORITY) { "Invalid thread priority" }
+            this.readerThreadPriority = readerThreadPriority
+        }
+
+        /**
+         * @param reconnectPolicy How to reconnect after the connection drops,
+         * or null to disable reconnection
+         */
+        fun reconnectPolicy(reconnectPolicy: ReconnectPolicy?) = apply { this.reconnectPolicy = reconnectPolicy }
+
+        /**
+         * @param compression How to compress the connection if the device accepts it,
+         * or null to disable compression
+         */
+        fun compression(compression: CompressionOptions?) = apply { this.compression = compression }
+
+        /**
+         * @param recorder Where to record the bytes the device receives and sends,
+         * or null to not record them. The recorder is not closed with the device.
+         */
+        fun recorder(recorder: TrafficRecorder?) = apply { this.recorder = recorder }
+
+        /**
+         * @param flowControl How the device grants the writer credit to send,
+         * or null to disable flow control
+         */
+        fun flowControl(flowControl: FlowControlOptions?) = apply { this.flowControl = flowControl }
+
+        fun build() = DeviceOptions(this)
+    }
+
+    companion object {
+        const val DEFAULT_MAX_WRITE_BATCH_BYTES = 4096
+        const val DEFAULT_SEND_CHUNK_BYTES = 4096
+        const val DEFAULT_STREAM_BUFFER_CAPACITY = 1024
+        const val DEFAULT_READ_BUFFER_SIZE = 4096
+
+        /**
+         * The options used when none are specified
+         */
+        @JvmField
+        val DEFAULT = Builder().build()
+    }
+}
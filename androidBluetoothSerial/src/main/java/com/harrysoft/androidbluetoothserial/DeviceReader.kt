@@ -0,0 +1,160 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Receives the bytes read by a [DeviceReader], package-private.
+ * All methods are called on the reader thread.
+ */
+internal interface ReadListener {
+    /**
+     * @param buffer The reader's buffer. Its contents are only valid until this method returns.
+     * @param offset The offset of the first byte read
+     * @param length The number of bytes read
+     */
+    fun onBytes(buffer: ByteArray, offset: Int, length: Int)
+
+    fun onError(error: Throwable)
+
+    fun onEndOfStream()
+
+    /**
+     * Called after every listener has been given a chunk of bytes
+     */
+    fun onDispatched() {
+    }
+
+    /**
+     * Called after the connection dropped and was re-established, so that
+     * any partially received message from the old connection can be discarded.
+     */
+    fun onReconnected() {
+    }
+
+    /**
+     * @return The number of decoded items the listener is holding for a subscriber
+     */
+    val buffered: Int get() = 0
+}
+
+/**
+ * Owns the thread that reads from a device's input stream, package-private.
+ * The thread is started when the first listener is added, reads into a
+ * single reusable buffer, and passes each chunk to every listener in turn.
+ * Listeners are held in a copy-on-write list, so the read loop never takes a lock.
+ * While there are no listeners the thread parks instead of reading, so that
+ * unread data stays in the transport until someone subscribes again.
+ * If the connection fails or ends, the reader waits for the [DeviceConnection]
+ * to recover it and carries on reading from the new transport, so listeners
+ * only see the failure if the connection cannot be recovered.
+ */
+internal class DeviceReader(
+        private val threadName: String,
+        private val connection: DeviceConnection,
+        private val bufferSize: Int,
+        private val threadPriority: Int,
+        private val metrics: DeviceMetrics,
+        private val recorder: TrafficRecorder?
+) {
+    private val listeners = CopyOnWriteArrayList<ReadListener>()
+    @Volatile private var thread: Thread? = null
+    @Volatile private var closed = false
+    @Volatile private var finished = false
+    @Volatile private var failure: Throwable? = null
+
+    fun addListener(listener: ReadListener) {
+        listeners.add(listener)
+        LockSupport.unpark(thread)
+        synchronized(this) {
+            if (thread == null && !closed) {
+                val newThread = Thread(::run, threadName)
+                newThread.isDaemon = true
+                newThread.priority = threadPriority
+                thread = newThread
+                newThread.start()
+            }
+        }
+        // If the reader has already stopped, the listener may have missed the end of the stream
+        if (finished || closed) {
+            if (listeners.remove(listener)) {
+                val error = failure
+                if (error != null) listener.onError(error) else listener.onEndOfStream()
+            }
+        }
+    }
+
+    /**
+     * @return The number of decoded items the listeners are holding for subscribers
+     */
+    val backlog: Int get() = listeners.sumBy { it.buffered }
+
+    fun removeListener(listener: ReadListener) {
+        listeners.remove(listener)
+    }
+
+    /**
+     * Stops the reader. The connection must also be closed to interrupt a blocked read.
+     */
+    fun close() {
+        closed = true
+        LockSupport.unpark(thread)
+    }
+
+    private fun run() {
+        val buffer = ByteArray(bufferSize)
+        var transport = connection.transport
+        try {
+            while (!closed) {
+                if (listeners.isEmpty()) {
+                    LockSupport.park(this)
+                    continue
+                }
+                val read = try {
+                    transport.inputStream.read(buffer, 0, buffer.size)
+                } catch (e: IOException) {
+                    if (closed) break
+                    metrics.readErrors.incrementAndGet()
+                    transport = connection.recover(transport) ?: throw e
+                    onReconnected()
+                    continue
+                }
+                if (read < 0) {
+                    if (closed) break
+                    transport = connection.recover(transport)
+                            ?: if (connection.canReconnect) throw IOException("Connection lost") else break
+                    onReconnected()
+                    continue
+                }
+                if (read > 0) {
+                    val readNanos = System.nanoTime()
+                    metrics.bytesReceived.addAndGet(read.toLong())
+                    recorder?.record(TraceRecord.Direction.RECEIVED, buffer, 0, read)
+                    for (listener in listeners) {
+                        listener.onBytes(buffer, 0, read)
+                    }
+                    for (listener in listeners) {
+                        listener.onDispatched()
+                    }
+                    metrics.handOffLatency.record(System.nanoTime() - readNanos)
+                }
+            }
+        } catch (e: Exception) {
+            if (!closed) failure = e
+        }
+        finished = true
+        val error = failure
+        for (listener in listeners) {
+            if (listeners.remove(listener)) {
+                if (error != null) listener.onError(error) else listener.onEndOfStream()
+            }
+        }
+    }
+
+    private fun onReconnected() {
+        for (listener in listeners) {
+            listener.onReconnected()
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * A snapshot of a device's counters, taken by [BluetoothSerialDevice.stats].
+ * Counts are totals since the device was connected. Rates can be
+ * calculated over the whole connection, or between two snapshots
+ * by passing the earlier one to the rate methods.
+ */
+class DeviceStats internal constructor(
+        /**
+         * @return The MAC address of the device, or null if these
+         * are the combined stats of several devices
+         */
+        val mac: String?,
+        /**
+         * @return The value of System.nanoTime() when the snapshot was taken
+         */
+        val timestampNanos: Long,
+        /**
+         * @return How long, in nanoseconds, the device has been connected
+         */
+        val uptimeNanos: Long,
+        /**
+         * @return The number of bytes read from the device
+         */
+        val bytesReceived: Long,
+        /**
+         * @return The number of bytes written to the device
+         */
+        val bytesSent: Long,
+        /**
+         * @return The number of compressed bytes read from the link while the
+         * connection was compressed, which decompressed to part of [bytesReceived]
+         */
+        val compressedBytesReceived: Long,
+        /**
+         * @return The number of compressed bytes written to the link while the
+         * connection was compressed. See [CompressionOptions].
+         */
+        val compressedBytesSent: Long,
+        /**
+         * @return The number of messages decoded by the device's streams.
+         * A message received while two streams are open is counted twice.
+         */
+        val messagesReceived: Long,
+        /**
+         * @return The number of messages written to the device
+         */
+        val messagesSent: Long,
+        /**
+         * @return The number of sends that failed
+         */
+        val failedSends: Long,
+        /**
+         * @return The number of times reading from the device failed
+         */
+        val readErrors: Long,
+        /**
+         * @return The number of times writing to the device failed
+         */
+        val writeErrors: Long,
+        /**
+         * @return The number of times the device reconnected after its connection dropped
+         */
+        val reconnects: Long,
+        /**
+         * @return The number of times a received message found its stream's buffer full
+         */
+        val overflowCount: Long,
+        /**
+         * @return The number of received messages discarded because their stream's buffer was full
+         */
+        val droppedMessageCount: Long,
+        /**
+         * @return The number of messages waiting to be written
+         */
+        val sendBacklog: Int,
+        /**
+         * @return The number of received messages buffered for subscribers, across all streams
+         */
+        val receiveBacklog: Int,
+        /**
+         * @return How long messages took from being sent until they had been written and flushed
+         */
+        val sendLatency: LatencyHistogram,
+        /**
+         * @return How long the reader thread took to decode each chunk read from the device and
+         * hand it to every open stream. This does not include the time until subscribers receive it.
+         */
+        val handOffLatency: LatencyHistogram
+) {
+    /**
+     * @param since An earlier snapshot, or null to use the whole connection
+     * @return The number of bytes received per second
+     */
+    @JvmOverloads
+    fun bytesReceivedPerSecond(since: DeviceStats? = null) = rate(bytesReceived, since?.bytesReceived, since)
+
+    /**
+     * @param since An earlier snapshot, or null to use the whole connection
+     * @return The number of bytes sent per second
+     */
+    @JvmOverloads
+    fun bytesSentPerSecond(since: DeviceStats? = null) = rate(bytesSent, since?.bytesSent, since)
+
+    /**
+     * @param since An earlier snapshot, or null to use the whole connection
+     * @return The number of messages received per second
+     */
+    @JvmOverloads
+    fun messagesReceivedPerSecond(since: DeviceStats? = null) = rate(messagesReceived, since?.messagesReceived, since)
+
+    /**
+     * @param since An earlier snapshot, or null to use the whole connection
+     * @return The number of messages sent per second
+     */
+    @JvmOverloads
+    fun messagesSentPerSecond(since: DeviceStats? = null) = rate(messagesSent, since?.messagesSent, since)
+
+    /**
+     * @return How many bytes were sent per byte written to the link, or 1 if the
+     * connection has not been compressed. Only meaningful if every connection to the
+     * device was compressed, as bytes sent uncompressed are counted as well.
+     */
+    val sendCompressionRatio: Double get() = compressionRatio(bytesSent, compressedBytesSent)
+
+    /**
+     * @return How many bytes were received per byte read from the link, or 1 if the
+     * connection has not been compressed, as for [sendCompressionRatio]
+     */
+    val receiveCompressionRatio: Double get() = compressionRatio(bytesReceived, compressedBytesReceived)
+
+    private fun compressionRatio(bytes: Long, compressedBytes: Long): Double {
+        return if (compressedBytes == 0L) 1.0 else bytes.toDouble() / compressedBytes
+    }
+
+    private fun rate(count: Long, previousCount: Long?, since: DeviceStats?): Double {
+        val elapsed = if (since != null) timestampNanos - since.timestampNanos else uptimeNanos
+        if (elapsed <= 0) return 0.0
+        return (count - (previousCount ?: 0)) * TimeUnit.SECONDS.toNanos(1).toDouble() / elapsed
+    }
+
+    internal operator fun plus(other: DeviceStats): DeviceStats {
+        return DeviceStats(null, maxOf(timestampNanos, other.timestampNanos), maxOf(uptimeNanos, other.uptimeNanos),
+                bytesReceived + other.bytesReceived, bytesSent + other.bytesSent,
+                compressedBytesReceived + other.compressedBytesReceived, compressedBytesSent + other.compressedBytesSent,
+                messagesReceived + other.messagesReceived, messagesSent + other.messagesSent,
+                failedSends + other.failedSends, readErrors + other.readErrors, writeErrors + other.writeErrors,
+                reconnects + other.reconnects, overflowCount + other.overflowCount,
+                droppedMessageCount + other.droppedMessageCount, sendBacklog + other.sendBacklog,
+                receiveBacklog + other.receiveBacklog, sendLatency + other.sendLatency,
+                handOffLatency + other.handOffLatency)
+    }
+
+    override fun toString(): String {
+        return "DeviceStats(mac=$mac, bytesReceived=$bytesReceived, bytesSent=$bytesSent, " +
+                "compressedBytesReceived=$compressedBytesReceived, compressedBytesSent=$compressedBytesSent, " +
+                "messagesReceived=$messagesReceived, messagesSent=$messagesSent, failedSends=$failedSends, " +
+                "readErrors=$readErrors, writeErrors=$writeErrors, reconnects=$reconnects, " +
+                "overflowCount=$overflowCount, droppedMessageCount=$droppedMessageCount, " +
+                "sendBacklog=$sendBacklog, receiveBacklog=$receiveBacklog, " +
+                "sendLatency=$sendLatency, handOffLatency=$handOffLatency)"
+    }
+
+    companion object {
+        /**
+         * @return The combined stats of no devices
+         */
+        internal fun empty(): DeviceStats {
+            return DeviceStats(null, System.nanoTime(), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                    LatencyHistogram.EMPTY, LatencyHistogram.EMPTY)
+        }
+    }
+}
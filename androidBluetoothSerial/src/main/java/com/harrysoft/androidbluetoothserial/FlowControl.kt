@@ -0,0 +1,291 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.OutputStream
+
+/**
+ * The credit a device has granted its writer, package-private.
+ * See [FlowControlOptions]. Granted by the reader, or whichever thread reads
+ * the device's input, and spent by the writer, which waits while there is none.
+ * Credit belongs to the connection it was granted on: each connection has its own
+ * generation, and credit is only spent on, granted to or refunded to the current one,
+ * so that the writer never spends a new connection's credit on one that has dropped.
+ */
+internal class CreditGate(val options: FlowControlOptions) {
+    private val lock = Object()
+    private var credits = options.initialCredits
+    private var generation = 0
+    private var closed = false
+
+    /**
+     * @return The credit currently available
+     */
+    val available: Long get() = synchronized(lock) { credits }
+
+    /**
+     * Replaces the credit with [FlowControlOptions.initialCredits], for a new connection
+     *
+     * @return The new connection's generation
+     */
+    fun reset(): Int {
+        synchronized(lock) {
+            generation++
+            credits = options.initialCredits
+            lock.notifyAll()
+            return generation
+        }
+    }
+
+    /**
+     * Adds [count] credits, if [generation] is still the current connection
+     */
+    fun grant(count: Long, generation: Int) {
+        synchronized(lock) {
+            if (generation != this.generation) return
+            credits = if (credits + count < 0) Long.MAX_VALUE else credits + count
+            lock.notifyAll()
+        }
+    }
+
+    /**
+     * Returns credit that was spent but not used, if [generation] is still the current connection
+     */
+    fun refund(count: Long, generation: Int) {
+        grant(count, generation)
+    }
+
+    /**
+     * Waits until there is credit, then spends as much of it as possible, up to [max]
+     *
+     * @param generation The connection the credit will be spent on
+     * @return The credit spent, which is at least one
+     * @throws ConnectionReplacedException If [generation] is, or while waiting becomes, out of date
+     * @throws IOException If the gate is closed while waiting
+     */
+    @Throws(IOException::class)
+    fun acquire(max: Long, generation: Int): Long {
+        synchronized(lock) {
+            try {
+                while (credits <= 0 && !closed && generation == this.generation) {
+                    lock.wait()
+                }
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("Interrupted waiting for credit")
+            }
+            if (closed) throw IOException("Device connection closed")
+            if (generation != this.generation) throw ConnectionReplacedException()
+            val spent = minOf(credits, max)
+            credits -= spent
+            return spent
+        }
+    }
+
+    /**
+     * @return Whether a single credit was available for [generation], and has been spent
+     */
+    fun tryAcquireOne(generation: Int): Boolean {
+        synchronized(lock) {
+            if (credits <= 0 || closed || generation != this.generation) return false
+            credits--
+            return true
+        }
+    }
+
+    /**
+     * Wakes the writer if it is waiting, and makes it fail
+     */
+    fun close() {
+        synchronized(lock) {
+            closed = true
+            lock.notifyAll()
+        }
+    }
+}
+
+/**
+ * Thrown to a writer waiting for credit for a connection that has since been replaced, package-private.
+ * It is not a write error: the writer should wait for the new connection and write there instead.
+ */
+internal class ConnectionReplacedException : IOException("Connection replaced while waiting for credit")
+
+/**
+ * A transport that hands the credit its device grants to [gate], package-private.
+ * Once connected, its input stream is [delegate]'s with the grant lines removed,
+ * and each connection starts with the initial credit.
+ */
+internal class FlowControlTransport(val delegate: SerialTransport, private val gate: CreditGate) : SerialTransport {
+    @Volatile private var input: InputStream? = null
+
+    /**
+     * @return The generation of the credit that may be spent writing to this connection, once started
+     */
+    @Volatile var generation = 0
+        private set
+
+    override val inputStream: InputStream get() = input ?: delegate.inputStream
+    override val outputStream: OutputStream get() = delegate.outputStream
+
+    override fun connect() {
+        delegate.connect()
+        start()
+    }
+
+    /**
+     * Starts filtering and resets the credit, once [delegate] is connected
+     */
+    fun start() {
+        generation = gate.reset()
+        input = CreditFilterInputStream(delegate.inputStream, gate, generation)
+    }
+
+    override fun close() {
+        delegate.close()
+    }
+}
+
+/**
+ * A ReadListener that ignores the bytes it is given, package-private.
+ * Keeps the reader reading, so that credit is taken from the device's input, while no stream is subscribed.
+ * Once the reader stops, no more credit can arrive, so it closes [gate], which fails
+ * the message the writer is waiting to send and every message sent after it.
+ */
+internal class CreditReadListener(private val gate: CreditGate) : ReadListener {
+    override fun onBytes(buffer: ByteArray, offset: Int, length: Int) {
+    }
+
+    override fun onError(error: Throwable) {
+        gate.close()
+    }
+
+    override fun onEndOfStream() {
+        gate.close()
+    }
+}
+
+/**
+ * Removes the grant lines, `#CREDIT <n>\n`, from the start of any line read from [input],
+ * and passes their credit to [gate] for connection [generation], package-private.
+ * The bytes of a line that starts like a grant are held back until it turns out
+ * not to be one, so they may be delivered a little later than the bytes around them.
+ */
+internal class CreditFilterInputStream(
+        private val input: InputStream,
+        private val gate: CreditGate,
+        private val generation: Int
+) : InputStream() {
+    private val raw = ByteArray(BUFFER_SIZE)
+
+    // Filtered bytes waiting to be read
+    private var ready = ByteArray(BUFFER_SIZE)
+    private var readyStart = 0
+    private var readyEnd = 0
+
+    // The bytes of a possible grant line, held back until it is complete
+    private val pending = ByteArray(PREFIX.size + MAX_DIGITS + 1)
+    private var pendingLength = 0
+    private var credits = 0L
+    private var digits = 0
+    private var atLineStart = true
+    private var ended = false
+
+    private val single = ByteArray(1)
+
+    override fun read(): Int {
+        return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (readyStart == readyEnd) {
+            if (ended) return -1
+            val count = input.read(raw, 0, minOf(raw.size, len))
+            if (count < 0) {
+                // The device will never finish the line, so it was not a grant
+                readyStart = 0
+                readyEnd = 0
+                releasePending()
+                ended = true
+            } else {
+                filter(count)
+            }
+        }
+        val count = minOf(len, readyEnd - readyStart)
+        System.arraycopy(ready, readyStart, b, off, count)
+        readyStart += count
+        return count
+    }
+
+    override fun available(): Int {
+        return if (readyStart < readyEnd) readyEnd - readyStart else input.available()
+    }
+
+    override fun close() {
+        input.close()
+    }
+
+    private fun filter(count: Int) {
+        readyStart = 0
+        readyEnd = 0
+        // Every byte read, and any held back, may be released at once
+        if (ready.size < count + pending.size) ready = ByteArray(count + pending.size)
+        for (i in 0 until count) {
+            val b = raw[i]
+            if (pendingLength == 0) {
+                if (atLineStart && b == PREFIX[0]) {
+                    pending[pendingLength++] = b
+                } else {
+                    emit(b)
+                }
+            } else if (pendingLength < PREFIX.size) {
+                if (b == PREFIX[pendingLength]) {
+                    pending[pendingLength++] = b
+                } else {
+                    releasePending()
+                    emit(b)
+                }
+            } else if (b in ZERO..NINE && digits < MAX_DIGITS && pending[pendingLength - 1] != CR) {
+                pending[pendingLength++] = b
+                credits = credits * 10 + (b - ZERO)
+                digits++
+            } else if (b == CR && digits > 0 && pending[pendingLength - 1] != CR) {
+                pending[pendingLength++] = b
+            } else if (b == LF && digits > 0) {
+                if (credits > 0) gate.grant(credits, generation)
+                pendingLength = 0
+                credits = 0
+                digits = 0
+                atLineStart = true
+            } else {
+                releasePending()
+                emit(b)
+            }
+        }
+    }
+
+    private fun emit(b: Byte) {
+        ready[readyEnd++] = b
+        atLineStart = b == LF
+    }
+
+    private fun releasePending() {
+        System.arraycopy(pending, 0, ready, readyEnd, pendingLength)
+        readyEnd += pendingLength
+        if (pendingLength > 0) atLineStart = false
+        pendingLength = 0
+        credits = 0
+        digits = 0
+    }
+
+    private companion object {
+        const val BUFFER_SIZE = 4096
+        const val MAX_DIGITS = 18
+        val PREFIX = FlowControlOptions.GRANT_PREFIX.toByteArray(Charsets.US_ASCII)
+        const val ZERO = '0'.toByte()
+        const val NINE = '9'.toByte()
+        const val CR = '\r'.toByte()
+        const val LF = '\n'.toByte()
+    }
+}
@@ -0,0 +1,89 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Enables credit-based flow control of everything sent to a device, for devices whose
+ * receive buffers are too small to keep up with writes as fast as the connection accepts them.
+ * Set on [DeviceOptions.Builder.flowControl]. Create instances using [Builder].
+ *
+ * The device's writer may only send as much as the device has granted it credit for,
+ * and pauses once the credit is used up until the device grants more. Credit is counted
+ * in bytes, as written before any compression, or in messages, depending on [unit].
+ * The device grants credit by sending the line `#CREDIT <n>\n`, where `<n>` is the number
+ * of credits to add in decimal, typically once it has processed that much from its buffer.
+ * Grant lines are removed from the device's input before it reaches the device's streams,
+ * or [BluetoothSerialDevice.inputStream]. Each time the device connects, or reconnects,
+ * the writer starts with [initialCredits], which is usually the size of the device's buffer.
+ *
+ * So that credit arrives even when no stream is subscribed, the device's input is read
+ * continuously while flow control is enabled, and anything received while no stream
+ * is subscribed is discarded rather than left unread.
+ */
+class FlowControlOptions private constructor(builder: Builder) {
+    /**
+     * What a credit allows the writer to send
+     */
+    enum class CreditUnit {
+        /**
+         * One byte
+         */
+        BYTES,
+        /**
+         * One message, however long, as passed to [BluetoothSerialDevice.send]
+         */
+        MESSAGES
+    }
+
+    /**
+     * @return What each credit allows the writer to send
+     */
+    val unit: CreditUnit = builder.unit
+
+    /**
+     * @return The credit the writer starts with each time the device connects
+     */
+    val initialCredits: Long = builder.initialCredits
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    class Builder() {
+        internal var unit = CreditUnit.BYTES
+        internal var initialCredits = 0L
+
+        internal constructor(options: FlowControlOptions) : this() {
+            unit = options.unit
+            initialCredits = options.initialCredits
+        }
+
+        /**
+         * @param unit What each credit allows the writer to send
+         */
+        fun unit(unit: CreditUnit) = apply { this.unit = unit }
+
+        /**
+         * @param initialCredits The credit the writer starts with each time the device connects
+         */
+        fun initialCredits(initialCredits: Long) = apply {
+            require(initialCredits >= 0) { "initialCredits must not be negative" }
+            this.initialCredits = initialCredits
+        }
+
+        fun build() = FlowControlOptions(this)
+    }
+
+    companion object {
+        const val GRANT_PREFIX = "#CREDIT "
+
+        /**
+         * @param credits The number of credits to grant
+         * @return The line a device sends to grant [credits], for devices emulated on the peer of a [MemoryTransport]
+         */
+        @JvmStatic
+        fun grantLine(credits: Long): ByteArray {
+            require(credits > 0) { "credits must be positive" }
+            return "$GRANT_PREFIX$credits\n".toByteArray(Charsets.US_ASCII)
+        }
+    }
+}
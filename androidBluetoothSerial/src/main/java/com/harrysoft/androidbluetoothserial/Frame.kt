@@ -0,0 +1,63 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A chunk of raw bytes received from a device.
+ * Frames are pooled by the device that emitted them, so
+ * once you have finished reading a frame you should call
+ * [release] to hand its buffer back for reuse.
+ * A frame must not be accessed after it has been released.
+ */
+class Frame internal constructor(private val pool: FramePool, capacity: Int) {
+    internal val released = AtomicBoolean(false)
+
+    internal var array = ByteArray(capacity)
+        private set
+
+    /**
+     * @return A ByteBuffer view of the frame's contents, positioned
+     * at the first byte with its limit set to the end of the frame.
+     */
+    var buffer: ByteBuffer = ByteBuffer.wrap(array, 0, 0)
+        private set
+
+    /**
+     * @return The number of bytes in the frame
+     */
+    val length: Int get() = buffer.limit()
+
+    /**
+     * @return A copy of the frame's contents.
+     * This allocates, so prefer reading [buffer] directly.
+     */
+    fun toByteArray(): ByteArray = array.copyOf(length)
+
+    /**
+     * Returns this frame to the pool it came from.
+     * Calling this more than once has no effect.
+     */
+    fun release() {
+        pool.release(this)
+    }
+
+    /**
+     * Ensures the backing array can hold at least [capacity] bytes,
+     * discarding its current contents if it has to grow.
+     */
+    internal fun ensureCapacity(capacity: Int) {
+        if (array.size < capacity) {
+            array = ByteArray(capacity)
+            buffer = ByteBuffer.wrap(array, 0, 0)
+        }
+    }
+
+    /**
+     * Marks the first [length] bytes of the backing array as the frame's contents.
+     */
+    internal fun setLength(length: Int) {
+        buffer.clear()
+        buffer.limit(length)
+    }
+}
@@ -0,0 +1,35 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.nio.ByteBuffer
+
+/**
+ * Splits the raw bytes received from a device into frames.
+ * Decoders are incremental: bytes may arrive in chunks of any size,
+ * and a frame may be split across several calls to [decode].
+ * Decoders are stateful, so an instance must only be used by one stream at a time.
+ * Implementations of common framings are available from [FrameDecoders].
+ */
+interface FrameDecoder {
+    /**
+     * Consumes all of the remaining bytes in [input],
+     * calling [sink] once for each complete frame found.
+     *
+     * @param input The bytes received from the device
+     * @param sink The callback to receive decoded frames
+     * @throws FrameDecodingException If the input is not valid for this framing
+     */
+    fun decode(input: ByteBuffer, sink: FrameSink)
+
+    /**
+     * Discards any partially decoded frame.
+     */
+    fun reset()
+
+    interface FrameSink {
+        /**
+         * @param frame The decoded frame. The buffer is owned by the decoder
+         * and is only valid until this method returns, so copy out anything you need.
+         */
+        fun onFrame(frame: ByteBuffer)
+    }
+}
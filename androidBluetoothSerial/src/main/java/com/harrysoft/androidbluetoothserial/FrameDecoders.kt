@@ -0,0 +1,327 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Factory methods for the built-in [FrameDecoder]s.
+ * All of them decode incrementally and reuse a single frame buffer,
+ * so no allocation happens per frame once the buffer has grown to fit.
+ */
+object FrameDecoders {
+    /**
+     * The default maximum length of a frame, in bytes.
+     */
+    const val DEFAULT_MAX_FRAME_LENGTH = 64 * 1024
+
+    /**
+     * @param delimiter The byte sequence that terminates each frame
+     * @param maxFrameLength The maximum length of a frame, not including the delimiter
+     * @return A FrameDecoder that splits frames on a delimiter, which is not included in the frame
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun delimited(delimiter: ByteArray, maxFrameLength: Int = DEFAULT_MAX_FRAME_LENGTH): FrameDecoder {
+        return DelimiterFrameDecoder(delimiter, maxFrameLength)
+    }
+
+    /**
+     * @param lengthFieldSize The size of the length prefix in bytes; 1, 2 or 4
+     * @param byteOrder The byte order of the length prefix
+     * @param maxFrameLength The maximum length of a frame, not including the prefix
+     * @return A FrameDecoder for frames preceded by a fixed-size length field, which is not included in the frame
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun lengthPrefixed(lengthFieldSize: Int, byteOrder: ByteOrder = ByteOrder.BIG_ENDIAN, maxFrameLength: Int = DEFAULT_MAX_FRAME_LENGTH): FrameDecoder {
+        return LengthPrefixedFrameDecoder(lengthFieldSize, byteOrder, maxFrameLength)
+    }
+
+    /**
+     * @param maxFrameLength The maximum length of a frame, not including the prefix
+     * @return A FrameDecoder for frames preceded by an unsigned LEB128 varint length, which is not included in the frame
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun varintLengthPrefixed(maxFrameLength: Int = DEFAULT_MAX_FRAME_LENGTH): FrameDecoder {
+        return LengthPrefixedFrameDecoder(LengthPrefixedFrameDecoder.VARINT, ByteOrder.BIG_ENDIAN, maxFrameLength)
+    }
+
+    /**
+     * @param maxFrameLength The maximum length of a decoded frame
+     * @return A FrameDecoder for SLIP (RFC 1055) framed data
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun slip(maxFrameLength: Int = DEFAULT_MAX_FRAME_LENGTH): FrameDecoder {
+        return SlipFrameDecoder(maxFrameLength)
+    }
+
+    /**
+     * @param maxFrameLength The maximum length of a decoded frame
+     * @return A FrameDecoder for COBS encoded frames terminated by a zero byte.
+     * Malformed frames are dropped and decoding resumes at the next zero byte.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun cobs(maxFrameLength: Int = DEFAULT_MAX_FRAME_LENGTH): FrameDecoder {
+        return CobsFrameDecoder(maxFrameLength)
+    }
+}
+
+/**
+ * Base class for decoders that collect a frame into a reusable buffer, package-private
+ */
+internal abstract class AccumulatingFrameDecoder(private val maxFrameLength: Int) : FrameDecoder {
+    private var frame = ByteArray(minOf(maxFrameLength, INITIAL_CAPACITY))
+    private var frameView = ByteBuffer.wrap(frame)
+    protected var length = 0
+        private set
+
+    init {
+        require(maxFrameLength > 0) { "maxFrameLength must be positive" }
+    }
+
+    protected fun append(b: Byte) {
+        ensureCapacity(length + 1)
+        frame[length++] = b
+    }
+
+    protected fun append(input: ByteBuffer, count: Int) {
+        ensureCapacity(length + count)
+        input.get(frame, length, count)
+        length += count
+    }
+
+    protected fun truncate(newLength: Int) {
+        length = newLength
+    }
+
+    protected fun emit(sink: FrameDecoder.FrameSink) {
+        frameView.clear()
+        frameView.limit(length)
+        length = 0
+        sink.onFrame(frameView)
+    }
+
+    protected fun discard() {
+        length = 0
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity > maxFrameLength) {
+            reset()
+            throw FrameDecodingException("Frame exceeds maximum length of $maxFrameLength bytes")
+        }
+        if (capacity > frame.size) {
+            frame = frame.copyOf(minOf(maxFrameLength, maxOf(capacity, frame.size * 2)))
+            frameView = ByteBuffer.wrap(frame)
+        }
+    }
+
+    override fun reset() {
+        length = 0
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+    }
+}
+
+/**
+ * Splits frames on an arbitrary delimiter, package-private.
+ * Uses a KMP failure table so the input is scanned exactly once.
+ */
+internal class DelimiterFrameDecoder(delimiter: ByteArray, maxFrameLength: Int) : AccumulatingFrameDecoder(maxFrameLength + delimiter.size) {
+    private val delimiter = delimiter.copyOf()
+    private val failure = IntArray(delimiter.size)
+    private var matched = 0
+
+    init {
+        require(delimiter.isNotEmpty()) { "Delimiter must not be empty" }
+        var k = 0
+        for (i in 1 until delimiter.size) {
+            while (k > 0 && delimiter[i] != delimiter[k]) k = failure[k - 1]
+            if (delimiter[i] == delimiter[k]) k++
+            failure[i] = k
+        }
+    }
+
+    override fun decode(input: ByteBuffer, sink: FrameDecoder.FrameSink) {
+        while (input.hasRemaining()) {
+            val b = input.get()
+            append(b)
+            while (matched > 0 && b != delimiter[matched]) matched = failure[matched - 1]
+            if (b == delimiter[matched]) matched++
+            if (matched == delimiter.size) {
+                matched = 0
+                truncate(length - delimiter.size)
+                emit(sink)
+            }
+        }
+    }
+
+    override fun reset() {
+        super.reset()
+        matched = 0
+    }
+}
+
+/**
+ * Decodes frames preceded by a fixed-size or varint length field, package-private
+ */
+internal class LengthPrefixedFrameDecoder(
+        private val lengthFieldSize: Int,
+        private val byteOrder: ByteOrder,
+        private val maxFrameLength: Int
+) : AccumulatingFrameDecoder(maxOf(maxFrameLength, 1)) {
+    private var header = 0L
+    private var headerBytes = 0
+    private var remaining = -1
+
+    init {
+        require(lengthFieldSize == VARINT || lengthFieldSize == 1 || lengthFieldSize == 2 || lengthFieldSize == 4) { "lengthFieldSize must be 1, 2 or 4" }
+    }
+
+    override fun decode(input: ByteBuffer, sink: FrameDecoder.FrameSink) {
+        while (input.hasRemaining()) {
+            if (remaining < 0) {
+                readHeaderByte(input.get().toInt() and 0xFF)
+                if (remaining == 0) {
+                    remaining = -1
+                    emit(sink)
+                }
+            } else {
+                val count = minOf(remaining, input.remaining())
+                append(input, count)
+                remaining -= count
+                if (remaining == 0) {
+                    remaining = -1
+                    emit(sink)
+                }
+            }
+        }
+    }
+
+    private fun readHeaderByte(b: Int) {
+        if (lengthFieldSize == VARINT) {
+            header = header or ((b and 0x7F).toLong() shl (7 * headerBytes))
+            headerBytes++
+            if (b and 0x80 == 0) {
+                onLength(header)
+            } else if (headerBytes == MAX_VARINT_BYTES) {
+                reset()
+                throw FrameDecodingException("Malformed varint length prefix")
+            }
+        } else {
+            header = if (byteOrder == ByteOrder.BIG_ENDIAN) {
+                (header shl 8) or b.toLong()
+            } else {
+                header or (b.toLong() shl (8 * headerBytes))
+            }
+            headerBytes++
+            if (headerBytes == lengthFieldSize) {
+                onLength(header)
+            }
+        }
+    }
+
+    private fun onLength(frameLength: Long) {
+        header = 0
+        headerBytes = 0
+        if (frameLength > maxFrameLength) {
+            throw FrameDecodingException("Frame length $frameLength exceeds maximum length of $maxFrameLength bytes")
+        }
+        remaining = frameLength.toInt()
+    }
+
+    override fun reset() {
+        super.reset()
+        header = 0
+        headerBytes = 0
+        remaining = -1
+    }
+
+    companion object {
+        const val VARINT = 0
+        private const val MAX_VARINT_BYTES = 5
+    }
+}
+
+/**
+ * Decodes SLIP (RFC 1055) framed data, package-private
+ */
+internal class SlipFrameDecoder(maxFrameLength: Int) : AccumulatingFrameDecoder(maxFrameLength) {
+    private var escaped = false
+
+    override fun decode(input: ByteBuffer, sink: FrameDecoder.FrameSink) {
+        while (input.hasRemaining()) {
+            val b = input.get()
+            if (escaped) {
+                escaped = false
+                append(when (b) {
+                    ESC_END -> END
+                    ESC_ESC -> ESC
+                    else -> b
+                })
+            } else when (b) {
+                END -> if (length > 0) emit(sink)
+                ESC -> escaped = true
+                else -> append(b)
+            }
+        }
+    }
+
+    override fun reset() {
+        super.reset()
+        escaped = false
+    }
+
+    companion object {
+        private const val END = 0xC0.toByte()
+        private const val ESC = 0xDB.toByte()
+        private const val ESC_END = 0xDC.toByte()
+        private const val ESC_ESC = 0xDD.toByte()
+    }
+}
+
+/**
+ * Decodes COBS encoded frames terminated by a zero byte, package-private
+ */
+internal class CobsFrameDecoder(maxFrameLength: Int) : AccumulatingFrameDecoder(maxFrameLength) {
+    private var remaining = 0
+    private var pendingZero = false
+    private var started = false
+
+    override fun decode(input: ByteBuffer, sink: FrameDecoder.FrameSink) {
+        while (input.hasRemaining()) {
+            val b = input.get()
+            if (b.toInt() == 0) {
+                if (started && remaining == 0) {
+                    emit(sink)
+                } else {
+                    discard()
+                }
+                remaining = 0
+                pendingZero = false
+                started = false
+            } else if (remaining == 0) {
+                if (pendingZero) append(0)
+                val code = b.toInt() and 0xFF
+                remaining = code - 1
+                pendingZero = code != 0xFF
+                started = true
+            } else {
+                append(b)
+                remaining--
+            }
+        }
+    }
+
+    override fun reset() {
+        super.reset()
+        remaining = 0
+        pendingZero = false
+        started = false
+    }
+}
@@ -0,0 +1,5 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+
+class FrameDecodingException(message: String) : IOException(message)
@@ -0,0 +1,35 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * A bounded pool of [Frame]s, package-private.
+ * If the pool is empty a new frame is allocated, and if
+ * it is full a released frame is left to the garbage collector.
+ */
+internal class FramePool(private val frameCapacity: Int, poolSize: Int) {
+    private val frames = ArrayBlockingQueue<Frame>(poolSize)
+
+    /**
+     * @param minCapacity The minimum number of bytes the frame must be able to hold
+     * @return An empty frame, taken from the pool if possible
+     */
+    fun acquire(minCapacity: Int = frameCapacity): Frame {
+        val frame = frames.poll() ?: Frame(this, maxOf(frameCapacity, minCapacity))
+        frame.released.set(false)
+        frame.ensureCapacity(minCapacity)
+        frame.setLength(0)
+        return frame
+    }
+
+    fun release(frame: Frame) {
+        if (frame.released.compareAndSet(false, true)) {
+            frames.offer(frame)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_FRAME_CAPACITY = 4096
+        const val DEFAULT_POOL_SIZE = 32
+    }
+}
@@ -0,0 +1,96 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A snapshot of a latency distribution, recorded in nanoseconds.
+ * Latencies are counted in power-of-two buckets: bucket `i` holds latencies
+ * of at least 2^i and less than 2^(i+1) nanoseconds, so percentiles
+ * are accurate to within a factor of two.
+ */
+class LatencyHistogram internal constructor(
+        private val buckets: LongArray,
+        /**
+         * @return The number of latencies recorded
+         */
+        val count: Long,
+        private val totalNanos: Long,
+        /**
+         * @return The highest latency recorded, in nanoseconds
+         */
+        val maxNanos: Long
+) {
+    /**
+     * @return The mean latency, in nanoseconds, or zero if none were recorded
+     */
+    val meanNanos: Long get() = if (count == 0L) 0 else totalNanos / count
+
+    /**
+     * @param bucket The bucket index, between 0 and [BUCKET_COUNT] - 1
+     * @return The number of latencies recorded in the bucket
+     */
+    fun bucketCount(bucket: Int): Long = buckets[bucket]
+
+    /**
+     * @param percentile The percentile to find, between 0 and 100
+     * @return An upper bound, in nanoseconds, on the latency below which
+     * [percentile] percent of the recorded latencies fall
+     */
+    fun percentileNanos(percentile: Double): Long {
+        require(percentile in 0.0..100.0) { "percentile must be between 0 and 100" }
+        if (count == 0L) return 0
+        val target = maxOf(1L, Math.ceil(count * percentile / 100).toLong())
+        var seen = 0L
+        for (bucket in buckets.indices) {
+            seen += buckets[bucket]
+            if (seen >= target) {
+                return if (bucket >= BUCKET_COUNT - 2) maxNanos else minOf(maxNanos, (1L shl (bucket + 1)) - 1)
+            }
+        }
+        return maxNanos
+    }
+
+    internal operator fun plus(other: LatencyHistogram): LatencyHistogram {
+        return LatencyHistogram(LongArray(BUCKET_COUNT) { buckets[it] + other.buckets[it] },
+                count + other.count, totalNanos + other.totalNanos, maxOf(maxNanos, other.maxNanos))
+    }
+
+    override fun toString(): String {
+        return "LatencyHistogram(count=$count, meanNanos=$meanNanos, p50=${percentileNanos(50.0)}, " +
+                "p99=${percentileNanos(99.0)}, maxNanos=$maxNanos)"
+    }
+
+    companion object {
+        const val BUCKET_COUNT = 64
+
+        internal val EMPTY = LatencyHistogram(LongArray(BUCKET_COUNT), 0, 0, 0)
+    }
+}
+
+/**
+ * Records latencies into power-of-two buckets, package-private.
+ * Recording is a few uncontended atomic operations and never allocates.
+ */
+internal class LatencyRecorder {
+    private val buckets = AtomicLongArray(LatencyHistogram.BUCKET_COUNT)
+    private val count = AtomicLong()
+    private val totalNanos = AtomicLong()
+    private val maxNanos = AtomicLong()
+
+    fun record(nanos: Long) {
+        val latency = maxOf(nanos, 0L)
+        buckets.incrementAndGet(if (latency == 0L) 0 else 63 - java.lang.Long.numberOfLeadingZeros(latency))
+        count.incrementAndGet()
+        totalNanos.addAndGet(latency)
+        while (true) {
+            val max = maxNanos.get()
+            if (latency <= max || maxNanos.compareAndSet(max, latency)) return
+        }
+    }
+
+    fun snapshot(): LatencyHistogram {
+        return LatencyHistogram(LongArray(LatencyHistogram.BUCKET_COUNT) { buckets.get(it) },
+                count.get(), totalNanos.get(), maxNanos.get())
+    }
+}
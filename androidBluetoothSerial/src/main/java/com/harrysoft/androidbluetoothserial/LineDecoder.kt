@@ -0,0 +1,160 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.Charset
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.StandardCharsets
+
+/**
+ * Incrementally decodes bytes into lines of text, package-private.
+ * Lines may be terminated by '\n', '\r' or "\r\n". Empty lines are skipped.
+ *
+ * For ASCII-compatible charsets (UTF-8, US-ASCII and ISO-8859-1) lines are split
+ * on the raw bytes, as a line terminator byte can never be part of a multi-byte
+ * character. Lines that turn out to be pure ASCII, or any ISO-8859-1 line, are
+ * then widened to chars directly, and only other lines go through the CharsetDecoder.
+ * Other charsets are decoded first and split afterwards.
+ * All buffers, and the decoder itself, are reused, so nothing is allocated per line.
+ */
+internal class LineDecoder(charset: Charset) {
+    private val splitBytes = charset == StandardCharsets.UTF_8 || charset == StandardCharsets.US_ASCII || charset == StandardCharsets.ISO_8859_1
+    private val latin1 = charset == StandardCharsets.ISO_8859_1
+    private val decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+    // The current line's bytes, when splitting on bytes
+    private var lineBytes = ByteArray(INITIAL_CAPACITY)
+    private var lineBytesView = ByteBuffer.wrap(lineBytes)
+    private var lineByteCount = 0
+    private var nonAscii = false
+
+    // The current line's chars
+    private var lineChars = CharArray(INITIAL_CAPACITY)
+    private var lineCharsView = CharBuffer.wrap(lineChars)
+    private var lineLength = 0
+
+    // Undecoded input and decoded output, when decoding before splitting
+    private var input = ByteBuffer.allocate(INITIAL_CAPACITY)
+    private val chars = CharBuffer.allocate(INITIAL_CAPACITY)
+
+    interface LineSink {
+        /**
+         * @param chars The decoder's buffer, which is only valid until this method returns
+         * @param length The number of chars in the line
+         */
+        fun onLine(chars: CharArray, length: Int)
+    }
+
+    fun decode(bytes: ByteArray, offset: Int, length: Int, sink: LineSink) {
+        if (splitBytes) {
+            splitThenDecode(bytes, offset, length, sink)
+        } else {
+            decodeThenSplit(bytes, offset, length, sink)
+        }
+    }
+
+    private fun splitThenDecode(bytes: ByteArray, offset: Int, length: Int, sink: LineSink) {
+        val end = offset + length
+        var start = offset
+        for (i in offset until end) {
+            val b = bytes[i]
+            if (b == LF || b == CR) {
+                appendBytes(bytes, start, i - start)
+                start = i + 1
+                if (lineByteCount > 0) {
+                    decodeLine()
+                    sink.onLine(lineChars, lineLength)
+                }
+                lineByteCount = 0
+                lineLength = 0
+                nonAscii = false
+            } else if (b < 0) {
+                nonAscii = true
+            }
+        }
+        appendBytes(bytes, start, end - start)
+    }
+
+    private fun appendBytes(bytes: ByteArray, offset: Int, length: Int) {
+        if (length == 0) return
+        if (lineByteCount + length > lineBytes.size) {
+            lineBytes = lineBytes.copyOf(maxOf(lineByteCount + length, lineBytes.size * 2))
+            lineBytesView = ByteBuffer.wrap(lineBytes)
+        }
+        System.arraycopy(bytes, offset, lineBytes, lineByteCount, length)
+        lineByteCount += length
+    }
+
+    private fun decodeLine() {
+        ensureCharCapacity(lineByteCount)
+        if (!nonAscii || latin1) {
+            for (i in 0 until lineByteCount) {
+                lineChars[i] = (lineBytes[i].toInt() and 0xFF).toChar()
+            }
+            lineLength = lineByteCount
+        } else {
+            lineBytesView.clear()
+            lineBytesView.limit(lineByteCount)
+            lineCharsView.clear()
+            decoder.reset()
+            decoder.decode(lineBytesView, lineCharsView, true)
+            decoder.flush(lineCharsView)
+            lineLength = lineCharsView.position()
+        }
+    }
+
+    private fun decodeThenSplit(bytes: ByteArray, offset: Int, length: Int, sink: LineSink) {
+        if (input.remaining() < length) {
+            val grown = ByteBuffer.allocate(input.position() + length)
+            input.flip()
+            grown.put(input)
+            input = grown
+        }
+        input.put(bytes, offset, length)
+        input.flip()
+        while (true) {
+            val result = decoder.decode(input, chars, false)
+            chars.flip()
+            while (chars.hasRemaining()) {
+                val c = chars.get()
+                if (c == '\n' || c == '\r') {
+                    if (lineLength > 0) {
+                        sink.onLine(lineChars, lineLength)
+                        lineLength = 0
+                    }
+                } else {
+                    ensureCharCapacity(lineLength + 1)
+                    lineChars[lineLength++] = c
+                }
+            }
+            chars.clear()
+            if (!result.isOverflow) break
+        }
+        // Keep any incomplete multi-byte sequence for the next call
+        input.compact()
+    }
+
+    private fun ensureCharCapacity(capacity: Int) {
+        if (capacity > lineChars.size) {
+            lineChars = lineChars.copyOf(maxOf(capacity, lineChars.size * 2))
+            lineCharsView = CharBuffer.wrap(lineChars)
+        }
+    }
+
+    fun reset() {
+        decoder.reset()
+        input.clear()
+        chars.clear()
+        lineByteCount = 0
+        lineLength = 0
+        nonAscii = false
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+        private const val LF = '\n'.toByte()
+        private const val CR = '\r'.toByte()
+    }
+}
@@ -0,0 +1,83 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * A bounded in-memory byte pipe, package-private.
+ * Unlike java.io.PipedInputStream, the reader and writer
+ * may be any threads, and may change over the pipe's lifetime.
+ */
+internal class MemoryPipe(capacity: Int) {
+    private val lock = Object()
+    private val buffer = ByteArray(capacity)
+    private var readIndex = 0
+    private var size = 0
+    private var writerClosed = false
+    private var readerClosed = false
+
+    val inputStream: InputStream = object : InputStream() {
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            synchronized(lock) {
+                while (size == 0) {
+                    if (readerClosed) throw IOException("Pipe closed")
+                    if (writerClosed) return -1
+                    lock.wait()
+                }
+                val count = minOf(len, size, buffer.size - readIndex)
+                System.arraycopy(buffer, readIndex, b, off, count)
+                readIndex = (readIndex + count) % buffer.size
+                size -= count
+                lock.notifyAll()
+                return count
+            }
+        }
+
+        override fun available(): Int = synchronized(lock) { size }
+
+        override fun close() {
+            synchronized(lock) {
+                readerClosed = true
+                lock.notifyAll()
+            }
+        }
+    }
+
+    val outputStream: OutputStream = object : OutputStream() {
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var offset = off
+            var remaining = len
+            synchronized(lock) {
+                while (remaining > 0) {
+                    while (size == buffer.size && !readerClosed && !writerClosed) lock.wait()
+                    if (readerClosed || writerClosed) throw IOException("Pipe closed")
+                    val writeIndex = (readIndex + size) % buffer.size
+                    val count = minOf(remaining, buffer.size - size, buffer.size - writeIndex)
+                    System.arraycopy(b, offset, buffer, writeIndex, count)
+                    size += count
+                    offset += count
+                    remaining -= count
+                    lock.notifyAll()
+                }
+            }
+        }
+
+        override fun close() {
+            synchronized(lock) {
+                writerClosed = true
+                lock.notifyAll()
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * One end of an in-memory connection. Whatever is written
+ * to this end's [outputStream] can be read from the [peer]'s
+ * [inputStream], and vice versa. Useful for running and
+ * load-testing the library on a plain JVM without a radio.
+ */
+class MemoryTransport private constructor(
+        private val incoming: MemoryPipe,
+        private val outgoing: MemoryPipe
+) : SerialTransport {
+    override val inputStream: InputStream get() = incoming.inputStream
+    override val outputStream: OutputStream get() = outgoing.outputStream
+
+    /**
+     * @return The other end of the connection
+     */
+    lateinit var peer: MemoryTransport
+        private set
+
+    override fun connect() {
+    }
+
+    override fun close() {
+        incoming.inputStream.close()
+        outgoing.outputStream.close()
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 64 * 1024
+
+        /**
+         * @param bufferSize The number of bytes each direction can buffer before writes block
+         * @return One end of a new connection. The other end is available from [peer].
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun createPair(bufferSize: Int = DEFAULT_BUFFER_SIZE): MemoryTransport {
+            val forward = MemoryPipe(bufferSize)
+            val backward = MemoryPipe(bufferSize)
+            val local = MemoryTransport(backward, forward)
+            val remote = MemoryTransport(forward, backward)
+            local.peer = remote
+            remote.peer = local
+            return local
+        }
+    }
+}
+
+/**
+ * A TransportFactory that connects every device to an in-memory peer.
+ * The peer end of each connection, which plays the role of the device,
+ * can be retrieved with [peer].
+ */
+class MemoryTransportFactory @JvmOverloads constructor(
+        private val bufferSize: Int = MemoryTransport.DEFAULT_BUFFER_SIZE
+) : TransportFactory {
+    private val peers = ConcurrentHashMap<String, MemoryTransport>()
+
+    override fun createTransport(mac: String): SerialTransport {
+        val transport = MemoryTransport.createPair(bufferSize)
+        peers[mac] = transport.peer
+        return transport
+    }
+
+    /**
+     * @param mac The MAC address the device was opened with
+     * @return The device end of the most recent connection to [mac], or null if there is none
+     */
+    fun peer(mac: String): MemoryTransport? = peers[mac]
+}
@@ -0,0 +1,42 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Matches replies to the requests they answer, for a [RequestChannel].
+ * Each request is given a correlation ID, which the correlator writes into
+ * the outgoing message, and which the device is expected to echo in its reply.
+ * Implementations of common schemes are available from [MessageCorrelators].
+ */
+interface MessageCorrelator {
+    /**
+     * @return The largest correlation ID the protocol can carry.
+     * IDs count up from zero and wrap around after this.
+     */
+    val maxCorrelationId: Long get() = Long.MAX_VALUE
+
+    /**
+     * @param correlationId The ID of the request
+     * @param request The request message
+     * @return The message to send to the device, including any terminator the device expects
+     */
+    fun encode(correlationId: Long, request: String): String
+
+    /**
+     * @param message A message received from the device
+     * @return The correlation ID of the request it answers,
+     * or [NO_CORRELATION_ID] if it is not a reply
+     */
+    fun correlationId(message: String): Long
+
+    /**
+     * @param reply A message received from the device, that [correlationId] matched to a request
+     * @return The reply to emit to the requester, for example with the correlation ID removed
+     */
+    fun decode(reply: String): String = reply
+
+    companion object {
+        /**
+         * Returned by [correlationId] for messages that are not replies
+         */
+        const val NO_CORRELATION_ID = -1L
+    }
+}
@@ -0,0 +1,50 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Factory methods for the built-in [MessageCorrelator]s.
+ */
+object MessageCorrelators {
+    /**
+     * @param separator The character between the correlation ID and the message
+     * @param maxCorrelationId The largest ID the device can echo
+     * @return A MessageCorrelator that prefixes each request with its decimal
+     * correlation ID and a separator and ends it with a newline, as in `42:GET TEMP\n`,
+     * and expects replies in the same form. The prefix is removed from the replies it emits.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun prefixed(separator: Char = ':', maxCorrelationId: Long = Long.MAX_VALUE): MessageCorrelator {
+        require(maxCorrelationId >= 0) { "maxCorrelationId must not be negative" }
+        return PrefixMessageCorrelator(separator, maxCorrelationId)
+    }
+}
+
+/**
+ * Implementation of MessageCorrelators.prefixed, package-private
+ */
+internal class PrefixMessageCorrelator(
+        private val separator: Char,
+        override val maxCorrelationId: Long
+) : MessageCorrelator {
+    override fun encode(correlationId: Long, request: String): String {
+        return StringBuilder(request.length + 22).append(correlationId).append(separator).append(request).append('\n').toString()
+    }
+
+    override fun correlationId(message: String): Long {
+        val end = message.indexOf(separator)
+        // Long.MAX_VALUE has 19 digits
+        if (end <= 0 || end > 19) return MessageCorrelator.NO_CORRELATION_ID
+        var id = 0L
+        for (i in 0 until end) {
+            val digit = message[i] - '0'
+            if (digit !in 0..9) return MessageCorrelator.NO_CORRELATION_ID
+            id = id * 10 + digit
+            if (id < 0) return MessageCorrelator.NO_CORRELATION_ID
+        }
+        return id
+    }
+
+    override fun decode(reply: String): String {
+        return reply.substring(reply.indexOf(separator) + 1)
+    }
+}
@@ -0,0 +1,57 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A message received from a device, exposed as a CharSequence
+ * over a pooled buffer instead of a newly allocated String.
+ * Once you have finished reading a view you should call
+ * [release] to hand its buffer back for reuse.
+ * A view must not be accessed after it has been released,
+ * so call [toString] to keep a copy of the message.
+ */
+class MessageView internal constructor(private val pool: MessageViewPool, capacity: Int) : CharSequence {
+    internal val released = AtomicBoolean(false)
+
+    internal var chars = CharArray(capacity)
+        private set
+
+    override var length: Int = 0
+        private set
+
+    override fun get(index: Int): Char {
+        if (index < 0 || index >= length) throw IndexOutOfBoundsException("index: $index, length: $length")
+        return chars[index]
+    }
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+        if (startIndex < 0 || endIndex > length || startIndex > endIndex) {
+            throw IndexOutOfBoundsException("start: $startIndex, end: $endIndex, length: $length")
+        }
+        return String(chars, startIndex, endIndex - startIndex)
+    }
+
+    /**
+     * @return A String copy of the message
+     */
+    override fun toString() = String(chars, 0, length)
+
+    /**
+     * Returns this view to the pool it came from.
+     * Calling this more than once has no effect.
+     */
+    fun release() {
+        pool.release(this)
+    }
+
+    /**
+     * Replaces the contents of this view with the first [length] chars of [source]
+     */
+    internal fun set(source: CharArray, length: Int) {
+        if (chars.size < length) {
+            chars = CharArray(length)
+        }
+        System.arraycopy(source, 0, chars, 0, length)
+        this.length = length
+    }
+}
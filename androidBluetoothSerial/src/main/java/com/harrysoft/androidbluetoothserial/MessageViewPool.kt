@@ -0,0 +1,29 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * A bounded pool of [MessageView]s, package-private.
+ * If the pool is empty a new view is allocated, and if
+ * it is full a released view is left to the garbage collector.
+ */
+internal class MessageViewPool(private val viewCapacity: Int, poolSize: Int) {
+    private val views = ArrayBlockingQueue<MessageView>(poolSize)
+
+    fun acquire(): MessageView {
+        val view = views.poll() ?: MessageView(this, viewCapacity)
+        view.released.set(false)
+        return view
+    }
+
+    fun release(view: MessageView) {
+        if (view.released.compareAndSet(false, true)) {
+            views.offer(view)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_VIEW_CAPACITY = 256
+        const val DEFAULT_POOL_SIZE = 32
+    }
+}
@@ -0,0 +1,149 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Controls how a device reconnects after its connection drops.
+ * Set on [DeviceOptions.Builder.reconnectPolicy] to make a connection resilient:
+ * instead of its streams erroring when the link is lost, the device reconnects
+ * in the background, waiting between attempts with jittered exponential backoff,
+ * and keeps the same [BluetoothSerialDevice] instance and open streams.
+ * Create instances using [Builder].
+ */
+class ReconnectPolicy private constructor(builder: Builder) {
+    /**
+     * @return How long, in milliseconds, to wait before the first reconnection attempt
+     */
+    val initialDelayMillis: Long = builder.initialDelayMillis
+
+    /**
+     * @return The longest, in milliseconds, to wait between reconnection attempts
+     */
+    val maxDelayMillis: Long = builder.maxDelayMillis
+
+    /**
+     * @return What the delay is multiplied by after each failed attempt
+     */
+    val multiplier: Double = builder.multiplier
+
+    /**
+     * @return The fraction, between 0 and 1, by which each delay is randomly
+     * shortened or lengthened, so that many devices that dropped at the
+     * same time do not all try to reconnect at the same moment
+     */
+    val jitter: Double = builder.jitter
+
+    /**
+     * @return The number of failed attempts after which the device gives up
+     * and its streams error, or zero to keep trying until the device is closed
+     */
+    val maxAttempts: Int = builder.maxAttempts
+
+    /**
+     * @return The number of outgoing messages that may be queued while the
+     * device is reconnecting. Sending once this many are waiting fails.
+     */
+    val outageBufferCapacity: Int = builder.outageBufferCapacity
+
+    /**
+     * @return A Builder initialised with this policy
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    /**
+     * @param attempt The number of attempts that have already failed
+     * @return How long, in milliseconds, to wait before the next attempt
+     */
+    internal fun delayMillis(attempt: Int): Long {
+        var delay = initialDelayMillis.toDouble()
+        for (i in 0 until attempt) {
+            delay *= multiplier
+            if (delay >= maxDelayMillis) break
+        }
+        delay = minOf(delay, maxDelayMillis.toDouble())
+        val spread = jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1)
+        return (delay * (1 + spread)).toLong()
+    }
+
+    class Builder() {
+        internal var initialDelayMillis = DEFAULT_INITIAL_DELAY_MILLIS
+        internal var maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS
+        internal var multiplier = DEFAULT_MULTIPLIER
+        internal var jitter = DEFAULT_JITTER
+        internal var maxAttempts = 0
+        internal var outageBufferCapacity = DEFAULT_OUTAGE_BUFFER_CAPACITY
+
+        internal constructor(policy: ReconnectPolicy) : this() {
+            initialDelayMillis = policy.initialDelayMillis
+            maxDelayMillis = policy.maxDelayMillis
+            multiplier = policy.multiplier
+            jitter = policy.jitter
+            maxAttempts = policy.maxAttempts
+            outageBufferCapacity = policy.outageBufferCapacity
+        }
+
+        /**
+         * @param initialDelayMillis How long to wait before the first reconnection attempt
+         */
+        fun initialDelayMillis(initialDelayMillis: Long) = apply {
+            require(initialDelayMillis >= 0) { "initialDelayMillis must not be negative" }
+            this.initialDelayMillis = initialDelayMillis
+        }
+
+        /**
+         * @param maxDelayMillis The longest to wait between reconnection attempts
+         */
+        fun maxDelayMillis(maxDelayMillis: Long) = apply {
+            require(maxDelayMillis >= 0) { "maxDelayMillis must not be negative" }
+            this.maxDelayMillis = maxDelayMillis
+        }
+
+        /**
+         * @param multiplier What the delay is multiplied by after each failed attempt
+         */
+        fun multiplier(multiplier: Double) = apply {
+            require(multiplier >= 1) { "multiplier must be at least 1" }
+            this.multiplier = multiplier
+        }
+
+        /**
+         * @param jitter The fraction by which each delay is randomly varied
+         */
+        fun jitter(jitter: Double) = apply {
+            require(jitter in 0.0..1.0) { "jitter must be between 0 and 1" }
+            this.jitter = jitter
+        }
+
+        /**
+         * @param maxAttempts The number of failed attempts after which to give up, or zero to never give up
+         */
+        fun maxAttempts(maxAttempts: Int) = apply {
+            require(maxAttempts >= 0) { "maxAttempts must not be negative" }
+            this.maxAttempts = maxAttempts
+        }
+
+        /**
+         * @param outageBufferCapacity The number of outgoing messages that may be queued while reconnecting
+         */
+        fun outageBufferCapacity(outageBufferCapacity: Int) = apply {
+            require(outageBufferCapacity > 0) { "outageBufferCapacity must be positive" }
+            this.outageBufferCapacity = outageBufferCapacity
+        }
+
+        fun build() = ReconnectPolicy(this)
+    }
+
+    companion object {
+        const val DEFAULT_INITIAL_DELAY_MILLIS = 250L
+        const val DEFAULT_MAX_DELAY_MILLIS = 30_000L
+        const val DEFAULT_MULTIPLIER = 2.0
+        const val DEFAULT_JITTER = 0.2
+        const val DEFAULT_OUTAGE_BUFFER_CAPACITY = 256
+
+        /**
+         * The policy used when reconnection is enabled without specifying one
+         */
+        @JvmField
+        val DEFAULT = Builder().build()
+    }
+}
@@ -0,0 +1,130 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.TimeUnit
+
+/**
+ * A transport that plays back the bytes a device received in a [TrafficTrace],
+ * for reproducing a recorded session or benchmarking against real traffic on a
+ * plain JVM. The received records are read back in the same chunks they were
+ * originally read in, timed relative to [connect], and the stream ends after
+ * the last of them. Whatever is written to the transport is discarded: the
+ * playback does not wait for the app to send what it sent in the recording.
+ *
+ * @param trace The trace to play back
+ * @param speed How many times faster than it was recorded to play the trace back,
+ * or [MAX_SPEED] to play it back as fast as it is read
+ */
+class ReplayTransport @JvmOverloads constructor(
+        private val trace: TrafficTrace,
+        private val speed: Double = ORIGINAL_SPEED
+) : SerialTransport {
+    private val lock = Object()
+    private val received = trace.records.filter { it.direction == TraceRecord.Direction.RECEIVED }
+    private var connectedNanos = 0L
+    private var connected = false
+    private var closed = false
+
+    init {
+        require(speed > 0) { "speed must be positive" }
+    }
+
+    override val inputStream: InputStream = ReplayInputStream()
+
+    override val outputStream: OutputStream = object : OutputStream() {
+        override fun write(b: Int) {
+            checkOpen()
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            checkOpen()
+        }
+    }
+
+    override fun connect() {
+        synchronized(lock) {
+            if (closed) throw IOException("Transport closed")
+            connectedNanos = System.nanoTime()
+            connected = true
+        }
+    }
+
+    override fun close() {
+        synchronized(lock) {
+            closed = true
+            lock.notifyAll()
+        }
+    }
+
+    private fun checkOpen() {
+        synchronized(lock) {
+            if (closed || !connected) throw IOException("Transport closed")
+        }
+    }
+
+    /**
+     * @return How long until [record] is due to be read, in nanoseconds
+     */
+    private fun untilDue(record: TraceRecord): Long {
+        if (speed == MAX_SPEED) return 0
+        val offset = record.timestampNanos - trace.records.first().timestampNanos
+        return connectedNanos + (offset / speed).toLong() - System.nanoTime()
+    }
+
+    private inner class ReplayInputStream : InputStream() {
+        private val single = ByteArray(1)
+        private var index = 0
+        private var offset = 0
+
+        override fun read(): Int {
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            checkOpen()
+            if (len == 0) return 0
+            val record = received.getOrNull(index) ?: return -1
+            if (offset == 0) awaitDue(record)
+            val count = minOf(len, record.bytes.size - offset)
+            System.arraycopy(record.bytes, offset, b, off, count)
+            offset += count
+            if (offset == record.bytes.size) {
+                index++
+                offset = 0
+            }
+            return count
+        }
+
+        override fun available(): Int {
+            val record = received.getOrNull(index) ?: return 0
+            return if (offset > 0 || untilDue(record) <= 0) record.bytes.size - offset else 0
+        }
+
+        override fun close() {
+            this@ReplayTransport.close()
+        }
+
+        private fun awaitDue(record: TraceRecord) {
+            synchronized(lock) {
+                while (!closed) {
+                    val remaining = untilDue(record)
+                    if (remaining <= 0) return
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining)
+                }
+                throw IOException("Transport closed")
+            }
+        }
+    }
+
+    companion object {
+        const val ORIGINAL_SPEED = 1.0
+
+        /**
+         * Plays the trace back as fast as it is read
+         */
+        @JvmField
+        val MAX_SPEED = Double.POSITIVE_INFINITY
+    }
+}
@@ -0,0 +1,48 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.Single
+import java.util.concurrent.TimeUnit
+
+/**
+ * Sends requests to a device and matches each reply to its request,
+ * so that many requests may be in flight at once.
+ * Create instances using [BluetoothSerialDevice.openRequestChannel].
+ * Messages from the device that are not replies are ignored by the channel,
+ * but are still delivered to the device's other streams.
+ */
+interface RequestChannel : AutoCloseable {
+    /**
+     * @return The number of requests waiting for a reply
+     */
+    val pendingRequestCount: Int
+
+    /**
+     * Sends a request, failing it if no reply arrives within the channel's default timeout.
+     *
+     * @param message The request to send
+     * @return An RxJava Single that emits the reply, or errors with a
+     * TimeoutException if the device does not reply in time
+     */
+    fun request(message: String): Single<String>
+
+    /**
+     * @param message The request to send
+     * @param timeout How long to wait for the reply
+     * @param unit The unit of [timeout]
+     * @return An RxJava Single that emits the reply, or errors with a
+     * TimeoutException if the device does not reply in time
+     */
+    fun request(message: String, timeout: Long, unit: TimeUnit): Single<String>
+
+    /**
+     * Stops listening for replies, failing any requests still waiting for one.
+     */
+    override fun close()
+
+    companion object {
+        /**
+         * The timeout of requests on a channel opened without specifying one
+         */
+        const val DEFAULT_TIMEOUT_MILLIS = 10_000L
+    }
+}
@@ -0,0 +1,79 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.Single
+import io.reactivex.SingleEmitter
+import io.reactivex.disposables.Disposable
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Implementation of RequestChannel, package-private.
+ * Waiting requests are held in a map keyed by correlation ID,
+ * so each reply is matched to its request in constant time.
+ */
+internal class RequestChannelImpl(
+        private val device: BluetoothSerialDevice,
+        private val correlator: MessageCorrelator,
+        private val defaultTimeoutNanos: Long
+) : RequestChannel {
+    private val pending = ConcurrentHashMap<Long, SingleEmitter<String>>()
+    private val nextId = AtomicLong()
+    @Volatile private var failure: Throwable? = null
+
+    private val replies: Disposable = device.openMessageStream().subscribe(::onMessage, ::onTerminated) {
+        onTerminated(IOException("Device connection closed"))
+    }
+
+    override val pendingRequestCount: Int get() = pending.size
+
+    override fun request(message: String): Single<String> {
+        return request(message, defaultTimeoutNanos, TimeUnit.NANOSECONDS)
+    }
+
+    override fun request(message: String, timeout: Long, unit: TimeUnit): Single<String> {
+        return Single.create<String> { emitter ->
+            val id = nextCorrelationId()
+            if (pending.putIfAbsent(id, emitter) != null) {
+                emitter.onError(IllegalStateException("Too many requests in flight for the correlator's ID range"))
+                return@create
+            }
+            emitter.setCancellable { pending.remove(id, emitter) }
+            // Checked after registering, so a concurrent failure cannot miss this request
+            failure?.let {
+                fail(id, emitter, it)
+                return@create
+            }
+            device.send(correlator.encode(id, message)).subscribe({ }, { error -> fail(id, emitter, error) })
+        }.timeout(timeout, unit)
+    }
+
+    override fun close() {
+        replies.dispose()
+        onTerminated(IOException("Request channel closed"))
+    }
+
+    private fun nextCorrelationId(): Long {
+        val count = nextId.getAndIncrement() and Long.MAX_VALUE
+        val max = correlator.maxCorrelationId
+        return if (max == Long.MAX_VALUE) count else count % (max + 1)
+    }
+
+    private fun onMessage(message: String) {
+        val id = correlator.correlationId(message)
+        if (id == MessageCorrelator.NO_CORRELATION_ID) return
+        pending.remove(id)?.onSuccess(correlator.decode(message))
+    }
+
+    private fun onTerminated(error: Throwable) {
+        if (failure == null) failure = error
+        for ((id, emitter) in pending) {
+            fail(id, emitter, error)
+        }
+    }
+
+    private fun fail(id: Long, emitter: SingleEmitter<String>, error: Throwable) {
+        if (pending.remove(id, emitter)) emitter.tryOnError(error)
+    }
+}
@@ -0,0 +1,29 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * How urgently a message should be written to the device, relative to
+ * the other messages waiting to be written. The device's writer always
+ * writes the most urgent message it has, and messages of the same
+ * priority are written in the order they were sent.
+ * Messages larger than [DeviceOptions.sendChunkBytes] are written a chunk
+ * at a time, so that a more urgent message sent while one is being
+ * written only waits for the current chunk.
+ */
+enum class SendPriority {
+    /**
+     * For control commands, such as stopping the device, that should
+     * go out ahead of anything else that is waiting
+     */
+    HIGH,
+
+    /**
+     * The priority of messages sent without specifying one
+     */
+    NORMAL,
+
+    /**
+     * For bulk data, such as configuration or firmware uploads,
+     * that should not hold up other messages
+     */
+    LOW
+}
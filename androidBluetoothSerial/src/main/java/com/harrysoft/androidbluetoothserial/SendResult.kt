@@ -0,0 +1,20 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * The outcome of sending a message to one device, as emitted by [BluetoothManager.broadcast].
+ */
+data class SendResult(
+        /**
+         * @return The MAC address of the device the message was sent to
+         */
+        val mac: String,
+        /**
+         * @return Why the message could not be sent, or null if it was sent
+         */
+        val error: Throwable?
+) {
+    /**
+     * @return Whether the message was sent
+     */
+    val isSuccess: Boolean get() = error == null
+}
@@ -0,0 +1,39 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * A bidirectional byte stream to a serial device,
+ * such as an RFCOMM socket, a TCP connection or an in-memory pipe.
+ */
+interface SerialTransport : Closeable {
+    /**
+     * @return The stream of bytes received from the device.
+     * Only valid after [connect] has returned.
+     */
+    val inputStream: InputStream
+
+    /**
+     * @return The stream of bytes to send to the device.
+     * Only valid after [connect] has returned.
+     */
+    val outputStream: OutputStream
+
+    /**
+     * Opens the connection, blocking until it is established.
+     * Closing the transport from another thread aborts the attempt.
+     *
+     * @throws java.io.IOException If the connection could not be established
+     */
+    @Throws(IOException::class)
+    fun connect()
+
+    /**
+     * Closes the connection. Any thread blocked reading from
+     * or writing to the transport will be interrupted with an exception.
+     */
+    override fun close()
+}
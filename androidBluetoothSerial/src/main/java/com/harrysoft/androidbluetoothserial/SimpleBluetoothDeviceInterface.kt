@@ -8,6 +8,12 @@ interface SimpleBluetoothDeviceInterface {
 
     fun sendMessage(message: String)
 
+    /**
+     * @param message The message to send
+     * @param priority How urgently to write the message, relative to others waiting to be written
+     */
+    fun sendMessage(message: String, priority: SendPriority)
+
     /**
      * Set all of the listeners for the interfact
      *
@@ -40,6 +46,26 @@ interface SimpleBluetoothDeviceInterface {
      */
     fun setErrorListener(listener: OnErrorListener?)
 
+    /**
+     * Set a listener that receives messages a batch at a time, if the interface
+     * was created with [DeliveryOptions.isBatching]. While it is set, it is called
+     * instead of the message received listener. Without batching, it is called
+     * with one message at a time.
+     *
+     * @param listener Receive messages callback
+     */
+    fun setMessagesReceivedListener(listener: OnMessagesReceivedListener?)
+
+    /**
+     * Set a listener that is told about sent messages a batch at a time, if the
+     * interface was created with [DeliveryOptions.isBatching]. While it is set, it is
+     * called instead of the message sent listener. Without batching, it is called
+     * with one message at a time.
+     *
+     * @param listener Send messages callback (indicates that the messages were successfully sent)
+     */
+    fun setMessagesSentListener(listener: OnMessagesSentListener?)
+
     interface OnMessageReceivedListener {
         fun onMessageReceived(message: String)
     }
@@ -48,6 +74,20 @@ interface SimpleBluetoothDeviceInterface {
         fun onMessageSent(message: String)
     }
 
+    interface OnMessagesReceivedListener {
+        /**
+         * @param messages The messages received since the last call, oldest first
+         */
+        fun onMessagesReceived(messages: List<String>)
+    }
+
+    interface OnMessagesSentListener {
+        /**
+         * @param messages The messages sent since the last call, in the order they were written
+         */
+        fun onMessagesSent(messages: List<String>)
+    }
+
     interface OnErrorListener {
         fun onError(error: Throwable)
     }
@@ -2,31 +2,106 @@ package com.harrysoft.androidbluetoothserial
 
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.CompositeDisposable
-import io.reactivex.schedulers.Schedulers
+import io.reactivex.disposables.Disposables
+import io.reactivex.exceptions.CompositeException
+import io.reactivex.exceptions.Exceptions
+import io.reactivex.plugins.RxJavaPlugins
 
 /**
- * Implementation of SimpleBluetoothDeviceInterface, package-private
+ * Implementation of SimpleBluetoothDeviceInterface, package-private.
+ * Without batching, every message is posted to the scheduler individually.
+ * With batching, received messages and sent confirmations each go through
+ * a [DeliveryBatcher], so the scheduler gets at most one post per batch.
+ * In direct mode, RxJava is bypassed: the interface registers its own
+ * listener with the reader and queues its own writes, and calls the
+ * listeners from the reader and writer threads. Whatever a listener throws
+ * there is passed to the error listener, as RxJava would, so that it cannot
+ * stop the device's other streams or fail other messages.
  */
-internal class SimpleBluetoothDeviceInterfaceImpl(override val device: BluetoothSerialDeviceImpl) : SimpleBluetoothDeviceInterface {
+internal class SimpleBluetoothDeviceInterfaceImpl(
+        override val device: BluetoothSerialDeviceImpl,
+        private val options: DeliveryOptions
+) : SimpleBluetoothDeviceInterface {
     private val compositeDisposable = CompositeDisposable()
+    private val scheduler by lazy { options.scheduler ?: AndroidSchedulers.mainThread() }
 
-    private var messageReceivedListener: SimpleBluetoothDeviceInterface.OnMessageReceivedListener? = null
-    private var messageSentListener: SimpleBluetoothDeviceInterface.OnMessageSentListener? = null
-    private var errorListener: SimpleBluetoothDeviceInterface.OnErrorListener? = null
+    // Volatile as they may be read on the reader and writer threads
+    @Volatile private var messageReceivedListener: SimpleBluetoothDeviceInterface.OnMessageReceivedListener? = null
+    @Volatile private var messageSentListener: SimpleBluetoothDeviceInterface.OnMessageSentListener? = null
+    @Volatile private var messagesReceivedListener: SimpleBluetoothDeviceInterface.OnMessagesReceivedListener? = null
+    @Volatile private var messagesSentListener: SimpleBluetoothDeviceInterface.OnMessagesSentListener? = null
+    @Volatile private var errorListener: SimpleBluetoothDeviceInterface.OnErrorListener? = null
+
+    private val sentBatcher = if (options.isBatching && !options.isDirect) {
+        DeliveryBatcher(scheduler, options.batchWindowMillis, options.maxBatchSize, ::onMessagesSent, ::onError)
+    } else null
 
     init {
-        compositeDisposable.add(device.openMessageStream()
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe({ messageReceivedListener?.onMessageReceived(it) }, { errorListener?.onError(it) }))
+        when {
+            options.isDirect -> {
+                val listener = device.messageListener(DirectEmitter())
+                compositeDisposable.add(Disposables.fromAction { device.reader.removeListener(listener) })
+                device.reader.addListener(listener)
+            }
+            sentBatcher != null -> {
+                val receivedBatcher = DeliveryBatcher(scheduler, options.batchWindowMillis, options.maxBatchSize, ::onMessagesReceived, ::onError)
+                compositeDisposable.add(receivedBatcher)
+                compositeDisposable.add(sentBatcher)
+                device.openMessageStream().subscribe(receivedBatcher)
+            }
+            else -> compositeDisposable.add(device.openMessageStream()
+                    .observeOn(scheduler)
+                    .subscribe(::onMessageReceived, ::onError))
+        }
     }
 
     override fun sendMessage(message: String) {
+        sendMessage(message, SendPriority.NORMAL)
+    }
+
+    override fun sendMessage(message: String, priority: SendPriority) {
         device.checkNotClosed()
-        compositeDisposable.add(device.send(message)
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe({ messageSentListener?.onMessageSent(message) }, { errorListener?.onError(it) }))
+        val batcher = sentBatcher
+        when {
+            options.isDirect -> device.enqueue(DirectPendingWrite(message, priority))
+            batcher != null -> compositeDisposable.add(device.send(message, priority)
+                    .subscribe({ batcher.onNext(message) }, { error -> scheduler.scheduleDirect { onError(error) } }))
+            else -> compositeDisposable.add(device.send(message, priority)
+                    .observeOn(scheduler)
+                    .subscribe({ onMessageSent(message) }, ::onError))
+        }
+    }
+
+    private fun onMessageReceived(message: String) {
+        val listener = messagesReceivedListener
+        if (listener != null) listener.onMessagesReceived(listOf(message)) else messageReceivedListener?.onMessageReceived(message)
+    }
+
+    private fun onMessagesReceived(messages: List<String>) {
+        val listener = messagesReceivedListener
+        if (listener != null) {
+            listener.onMessagesReceived(messages)
+        } else {
+            messageReceivedListener?.let { for (message in messages) it.onMessageReceived(message) }
+        }
+    }
+
+    private fun onMessageSent(message: String) {
+        val listener = messagesSentListener
+        if (listener != null) listener.onMessagesSent(listOf(message)) else messageSentListener?.onMessageSent(message)
+    }
+
+    private fun onMessagesSent(messages: List<String>) {
+        val listener = messagesSentListener
+        if (listener != null) {
+            listener.onMessagesSent(messages)
+        } else {
+            messageSentListener?.let { for (message in messages) it.onMessageSent(message) }
+        }
+    }
+
+    private fun onError(error: Throwable) {
+        errorListener?.onError(error)
     }
 
     override fun setListeners(messageReceivedListener: SimpleBluetoothDeviceInterface.OnMessageReceivedListener?,
@@ -49,7 +124,80 @@ internal class SimpleBluetoothDeviceInterfaceImpl(override val device: Bluetooth
         errorListener = listener
     }
 
+    override fun setMessagesReceivedListener(listener: SimpleBluetoothDeviceInterface.OnMessagesReceivedListener?) {
+        messagesReceivedListener = listener
+    }
+
+    override fun setMessagesSentListener(listener: SimpleBluetoothDeviceInterface.OnMessagesSentListener?) {
+        messagesSentListener = listener
+    }
+
     fun close() {
         compositeDisposable.dispose()
     }
+
+    /**
+     * Calls a listener on the reader or writer thread. If it throws, the error goes to the
+     * error listener, or to RxJavaPlugins.onError if there is none.
+     */
+    private inline fun callDirect(call: () -> Unit) {
+        try {
+            call()
+        } catch (e: Throwable) {
+            Exceptions.throwIfFatal(e)
+            if (errorListener != null) onDirectError(e) else RxJavaPlugins.onError(e)
+        }
+    }
+
+    /**
+     * Calls the error listener on the reader or writer thread. If it throws, the error goes to RxJavaPlugins.onError.
+     */
+    private fun onDirectError(error: Throwable) {
+        try {
+            onError(error)
+        } catch (inner: Throwable) {
+            Exceptions.throwIfFatal(inner)
+            RxJavaPlugins.onError(CompositeException(error, inner))
+        }
+    }
+
+    /**
+     * Calls the listeners as the reader decodes each message
+     */
+    private inner class DirectEmitter : ItemEmitter<String> {
+        override val isCancelled: Boolean get() = compositeDisposable.isDisposed
+
+        override val size: Int get() = 0
+
+        override fun onNext(item: String) {
+            callDirect { onMessageReceived(item) }
+        }
+
+        override fun onError(error: Throwable) {
+            onDirectError(error)
+        }
+
+        override fun onComplete() {
+        }
+
+        override fun cancel() {
+            compositeDisposable.dispose()
+        }
+    }
+
+    /**
+     * A message that calls the listeners from the writer thread once it has been written
+     */
+    private inner class DirectPendingWrite(
+            private val message: String,
+            priority: SendPriority
+    ) : PendingWrite(message.toByteArray(device.charset), priority) {
+        override fun onWritten() {
+            callDirect { onMessageSent(message) }
+        }
+
+        override fun onFailed(error: Throwable) {
+            onDirectError(error)
+        }
+    }
 }
@@ -0,0 +1,57 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.net.Socket
+
+/**
+ * A TransportFactory that connects to devices over TCP,
+ * for example to a device simulator on the local machine.
+ */
+class TcpTransportFactory @JvmOverloads constructor(
+        private val resolver: AddressResolver,
+        private val connectTimeoutMillis: Int = DEFAULT_CONNECT_TIMEOUT_MILLIS
+) : TransportFactory {
+    /**
+     * Connects every device to the same host and port.
+     */
+    @JvmOverloads
+    constructor(host: String, port: Int, connectTimeoutMillis: Int = DEFAULT_CONNECT_TIMEOUT_MILLIS) : this(object : AddressResolver {
+        override fun resolve(mac: String) = InetSocketAddress(host, port)
+    }, connectTimeoutMillis)
+
+    override fun createTransport(mac: String): SerialTransport {
+        return TcpTransport(resolver.resolve(mac), connectTimeoutMillis)
+    }
+
+    interface AddressResolver {
+        /**
+         * @param mac The MAC address the device was opened with
+         * @return The address to connect to for that device
+         */
+        fun resolve(mac: String): InetSocketAddress
+    }
+
+    companion object {
+        const val DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000
+    }
+}
+
+/**
+ * A SerialTransport over a TCP socket, package-private
+ */
+internal class TcpTransport(private val address: InetSocketAddress, private val connectTimeoutMillis: Int) : SerialTransport {
+    private val socket = Socket()
+    override val inputStream: InputStream get() = socket.getInputStream()
+    override val outputStream: OutputStream get() = socket.getOutputStream()
+
+    override fun connect() {
+        socket.tcpNoDelay = true
+        socket.connect(address, connectTimeoutMillis)
+    }
+
+    override fun close() {
+        socket.close()
+    }
+}
@@ -0,0 +1,101 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A batch of numeric samples received from a device, stored as one primitive
+ * array per column of its [format], so that reading a sample allocates nothing.
+ * Row `i` of every column holds the `i`th sample, for `i` below [size].
+ * The arrays are longer than [size], and anything beyond it is not part of the batch.
+ * Batches are pooled by the stream that emitted them, so once you have finished
+ * reading a batch you should call [release] to hand its arrays back for reuse.
+ * A batch must not be accessed after it has been released, so copy out any values you want to keep.
+ */
+class TelemetryBatch internal constructor(private val pool: TelemetryBatchPool, val format: TelemetryFormat) {
+    internal val released = AtomicBoolean(false)
+
+    internal val longs: Array<LongArray?> = Array(format.fieldCount) {
+        if (format.fieldTypes[it] == TelemetryFormat.FieldType.LONG) LongArray(format.maxBatchSize) else null
+    }
+
+    internal val doubles: Array<DoubleArray?> = Array(format.fieldCount) {
+        if (format.fieldTypes[it] == TelemetryFormat.FieldType.DOUBLE) DoubleArray(format.maxBatchSize) else null
+    }
+
+    /**
+     * @return The number of samples in the batch
+     */
+    var size: Int = 0
+        internal set
+
+    /**
+     * @return The number of lines skipped because they did not match the format
+     * since the previous batch was emitted
+     */
+    var skippedLineCount: Int = 0
+        internal set
+
+    /**
+     * @param column The index of a [TelemetryFormat.FieldType.LONG] column
+     * @return The column's values, of which the first [size] belong to this batch
+     */
+    fun longColumn(column: Int): LongArray {
+        return longs[column] ?: throw IllegalArgumentException("Column $column does not hold longs")
+    }
+
+    /**
+     * @param column The index of a [TelemetryFormat.FieldType.DOUBLE] column
+     * @return The column's values, of which the first [size] belong to this batch
+     */
+    fun doubleColumn(column: Int): DoubleArray {
+        return doubles[column] ?: throw IllegalArgumentException("Column $column does not hold doubles")
+    }
+
+    /**
+     * @param name The name of a [TelemetryFormat.FieldType.LONG] column
+     * @return The column's values, as in [longColumn]
+     */
+    fun longColumn(name: String): LongArray = longColumn(indexOf(name))
+
+    /**
+     * @param name The name of a [TelemetryFormat.FieldType.DOUBLE] column
+     * @return The column's values, as in [doubleColumn]
+     */
+    fun doubleColumn(name: String): DoubleArray = doubleColumn(indexOf(name))
+
+    /**
+     * @param column The index of a [TelemetryFormat.FieldType.LONG] column
+     * @param row The index of a sample, below [size]
+     * @return The sample's value in the column
+     */
+    fun getLong(column: Int, row: Int): Long = longColumn(column)[checkRow(row)]
+
+    /**
+     * @param column The index of any column
+     * @param row The index of a sample, below [size]
+     * @return The sample's value in the column, converted to a double if the column holds longs
+     */
+    fun getDouble(column: Int, row: Int): Double {
+        checkRow(row)
+        return doubles[column]?.get(row) ?: longColumn(column)[row].toDouble()
+    }
+
+    /**
+     * Returns this batch to the pool it came from.
+     * Calling this more than once has no effect.
+     */
+    fun release() {
+        pool.release(this)
+    }
+
+    private fun indexOf(name: String): Int {
+        val column = format.columnIndex(name)
+        require(column >= 0) { "No column named $name" }
+        return column
+    }
+
+    private fun checkRow(row: Int): Int {
+        if (row < 0 || row >= size) throw IndexOutOfBoundsException("row: $row, size: $size")
+        return row
+    }
+}
@@ -0,0 +1,33 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * A bounded pool of [TelemetryBatch]es for one format, package-private.
+ * If the pool is empty a new batch is allocated, and if
+ * it is full a released batch is left to the garbage collector.
+ */
+internal class TelemetryBatchPool(private val format: TelemetryFormat, poolSize: Int) {
+    private val batches = ArrayBlockingQueue<TelemetryBatch>(poolSize)
+
+    /**
+     * @return An empty batch, taken from the pool if possible
+     */
+    fun acquire(): TelemetryBatch {
+        val batch = batches.poll() ?: TelemetryBatch(this, format)
+        batch.released.set(false)
+        batch.size = 0
+        batch.skippedLineCount = 0
+        return batch
+    }
+
+    fun release(batch: TelemetryBatch) {
+        if (batch.released.compareAndSet(false, true)) {
+            batches.offer(batch)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_POOL_SIZE = 16
+    }
+}
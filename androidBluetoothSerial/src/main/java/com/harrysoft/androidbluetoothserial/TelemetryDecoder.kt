@@ -0,0 +1,354 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.nio.charset.Charset
+
+/**
+ * Incrementally parses lines of numeric samples, as described by a [TelemetryFormat],
+ * straight from received bytes into the columns of pooled [TelemetryBatch]es, package-private.
+ * Lines may be terminated by '\n', '\r' or "\r\n". A line longer than
+ * [TelemetryFormat.maxLineLength] is dropped and counted as skipped, so that a device
+ * that never sends a line terminator cannot make the decoder buffer without limit.
+ *
+ * Lines that arrive whole within one chunk are parsed in place, and only a line split
+ * across chunks is copied, into a reusable buffer. Numbers are parsed without creating
+ * Strings: integers directly, and decimals by collecting up to 18 significant digits and
+ * scaling them by an exactly representable power of ten, which gives the correctly rounded
+ * result when the digits fit in a double's mantissa and the exponent is at most 22.
+ * Only other decimals, which sensors rarely send, fall back to [java.lang.Double.parseDouble].
+ */
+internal class TelemetryDecoder(private val format: TelemetryFormat, private val pool: TelemetryBatchPool) {
+    private val delimiter = format.delimiter.toByte()
+    private val keySeparator = format.keySeparator.toByte()
+    private val names = format.fieldNameBytes
+    private val isLong = BooleanArray(format.fieldCount) { format.fieldTypes[it] == TelemetryFormat.FieldType.LONG }
+
+    // The start of a line split across chunks
+    private var carry = ByteArray(minOf(INITIAL_CAPACITY, format.maxLineLength))
+    private var carryLength = 0
+
+    // Whether the current line has grown too long, and is being dropped until it ends
+    private var discarding = false
+
+    private var batch: TelemetryBatch? = null
+    private var skipped = 0
+
+    // The line each column was last filled on, so nothing needs clearing between lines
+    private val filledOnLine = IntArray(format.fieldCount)
+    private var line = 0
+
+    // The result of the last successful parseLong or parseDouble
+    private var parsedLong = 0L
+    private var parsedDouble = 0.0
+
+    interface BatchSink {
+        /**
+         * @param batch A batch holding at least one sample, which the sink now owns
+         */
+        fun onBatch(batch: TelemetryBatch)
+    }
+
+    /**
+     * Parses every complete line in the bytes, then hands any samples found to [sink] as a single batch,
+     * or several if there are more than [TelemetryFormat.maxBatchSize]
+     */
+    fun decode(bytes: ByteArray, offset: Int, length: Int, sink: BatchSink) {
+        val end = offset + length
+        var start = offset
+        for (i in offset until end) {
+            val b = bytes[i]
+            if (b == LF || b == CR) {
+                if (discarding) {
+                    discarding = false
+                } else if (carryLength > 0) {
+                    appendCarry(bytes, start, i - start)
+                    if (!discarding) parseLine(carry, 0, carryLength)
+                    discarding = false
+                    carryLength = 0
+                } else if (i - start > format.maxLineLength) {
+                    skip()
+                } else if (i > start) {
+                    parseLine(bytes, start, i)
+                }
+                start = i + 1
+                if (batch?.size == format.maxBatchSize) emit(sink)
+            }
+        }
+        appendCarry(bytes, start, end - start)
+        if ((batch?.size ?: 0) > 0) emit(sink)
+    }
+
+    private fun emit(sink: BatchSink) {
+        val full = batch ?: return
+        batch = null
+        full.skippedLineCount = skipped
+        skipped = 0
+        sink.onBatch(full)
+    }
+
+    /**
+     * Keeps the start of a line split across chunks, or drops the line if it has grown too long
+     */
+    private fun appendCarry(bytes: ByteArray, offset: Int, length: Int) {
+        if (length == 0 || discarding) return
+        if (carryLength + length > format.maxLineLength) {
+            carryLength = 0
+            discarding = true
+            skip()
+            return
+        }
+        if (carryLength + length > carry.size) {
+            carry = carry.copyOf(minOf(maxOf(carryLength + length, carry.size * 2), format.maxLineLength))
+        }
+        System.arraycopy(bytes, offset, carry, carryLength, length)
+        carryLength += length
+    }
+
+    /**
+     * Parses the line between [start] and [end] into the next row of the current batch,
+     * which only becomes part of the batch if every column was filled
+     */
+    private fun parseLine(bytes: ByteArray, start: Int, end: Int) {
+        val target = batch ?: pool.acquire().also { batch = it }
+        val row = target.size
+        line++
+        var filled = 0
+        var field = 0
+        var tokenStart = start
+        while (tokenStart <= end) {
+            var tokenEnd = tokenStart
+            while (tokenEnd < end && bytes[tokenEnd] != delimiter) tokenEnd++
+            val next = tokenEnd + 1
+            // Trim the field
+            var s = tokenStart
+            var e = tokenEnd
+            while (s < e && isSpace(bytes[s])) s++
+            while (e > s && isSpace(bytes[e - 1])) e--
+            if (s == e) {
+                // An empty line, or a trailing delimiter
+                if (field == 0 && next > end) return
+            } else {
+                var separator = s
+                while (separator < e && bytes[separator] != keySeparator) separator++
+                val column: Int
+                if (separator < e) {
+                    column = columnOf(bytes, s, trimEnd(bytes, s, separator), field)
+                    s = separator + 1
+                    while (s < e && isSpace(bytes[s])) s++
+                } else {
+                    column = if (field < names.size) field else -1
+                }
+                if (column >= 0) {
+                    if (isLong[column]) {
+                        if (!parseLong(bytes, s, e)) return skip()
+                        target.longs[column]!![row] = parsedLong
+                    } else {
+                        if (!parseDouble(bytes, s, e)) return skip()
+                        target.doubles[column]!![row] = parsedDouble
+                    }
+                    if (filledOnLine[column] != line) {
+                        filledOnLine[column] = line
+                        filled++
+                    }
+                }
+            }
+            field++
+            tokenStart = next
+        }
+        if (filled == names.size) target.size = row + 1 else skip()
+    }
+
+    private fun skip() {
+        skipped++
+    }
+
+    /**
+     * @return The column named by the bytes between [start] and [end], or -1 if there is none.
+     * The column at the field's position is checked first, as devices usually send fields in order.
+     */
+    private fun columnOf(bytes: ByteArray, start: Int, end: Int, field: Int): Int {
+        if (field < names.size && nameEquals(names[field], bytes, start, end)) return field
+        for (column in names.indices) {
+            if (column != field && nameEquals(names[column], bytes, start, end)) return column
+        }
+        return -1
+    }
+
+    private fun nameEquals(name: ByteArray, bytes: ByteArray, start: Int, end: Int): Boolean {
+        if (name.size != end - start) return false
+        for (i in name.indices) {
+            if (name[i] != bytes[start + i]) return false
+        }
+        return true
+    }
+
+    private fun trimEnd(bytes: ByteArray, start: Int, end: Int): Int {
+        var e = end
+        while (e > start && isSpace(bytes[e - 1])) e--
+        return e
+    }
+
+    /**
+     * Parses a decimal integer into [parsedLong], accumulating it as a negative
+     * number so that [Long.MIN_VALUE] can be represented
+     *
+     * @return Whether the bytes were a valid integer that fits in a long
+     */
+    private fun parseLong(bytes: ByteArray, start: Int, end: Int): Boolean {
+        var i = start
+        var negative = false
+        if (i < end && (bytes[i] == MINUS || bytes[i] == PLUS)) {
+            negative = bytes[i] == MINUS
+            i++
+        }
+        if (i == end) return false
+        var value = 0L
+        while (i < end) {
+            val digit = bytes[i] - ZERO
+            if (digit < 0 || digit > 9) return false
+            if (value < Long.MIN_VALUE / 10) return false
+            value *= 10
+            if (value < Long.MIN_VALUE + digit) return false
+            value -= digit
+            i++
+        }
+        if (!negative && value == Long.MIN_VALUE) return false
+        parsedLong = if (negative) value else -value
+        return true
+    }
+
+    /**
+     * Parses a decimal number into [parsedDouble]
+     *
+     * @return Whether the bytes were a valid number
+     */
+    private fun parseDouble(bytes: ByteArray, start: Int, end: Int): Boolean {
+        var i = start
+        var negative = false
+        if (i < end && (bytes[i] == MINUS || bytes[i] == PLUS)) {
+            negative = bytes[i] == MINUS
+            i++
+        }
+        var mantissa = 0L
+        var significantDigits = 0
+        var exponent = 0
+        var digits = 0
+        var truncated = false
+        while (i < end && bytes[i] - ZERO in 0..9) {
+            if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                mantissa = mantissa * 10 + (bytes[i] - ZERO)
+                if (mantissa != 0L) significantDigits++
+            } else {
+                exponent++
+                truncated = true
+            }
+            digits++
+            i++
+        }
+        if (i < end && bytes[i] == DOT) {
+            i++
+            while (i < end && bytes[i] - ZERO in 0..9) {
+                if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                    mantissa = mantissa * 10 + (bytes[i] - ZERO)
+                    if (mantissa != 0L) significantDigits++
+                    exponent--
+                } else {
+                    truncated = true
+                }
+                digits++
+                i++
+            }
+        }
+        if (digits == 0) {
+            // Only NaN and Infinity are numbers without digits
+            return i < end && (bytes[i] == UPPER_N || bytes[i] == UPPER_I) && parseDoubleSlowly(bytes, start, end)
+        }
+        if (i < end && (bytes[i] == LOWER_E || bytes[i] == UPPER_E)) {
+            i++
+            var negativeExponent = false
+            if (i < end && (bytes[i] == MINUS || bytes[i] == PLUS)) {
+                negativeExponent = bytes[i] == MINUS
+                i++
+            }
+            if (i == end) return false
+            var explicit = 0
+            while (i < end) {
+                val digit = bytes[i] - ZERO
+                if (digit < 0 || digit > 9) return false
+                // Anything this large overflows or underflows whatever the mantissa
+                if (explicit < MAX_EXPONENT) explicit = explicit * 10 + digit
+                i++
+            }
+            exponent += if (negativeExponent) -explicit else explicit
+        }
+        if (i != end) return false
+        if (mantissa == 0L) {
+            parsedDouble = if (negative) -0.0 else 0.0
+            return true
+        }
+        if (truncated || mantissa > MAX_EXACT_MANTISSA || exponent < -MAX_EXACT_POWER || exponent > MAX_EXACT_POWER) {
+            return parseDoubleSlowly(bytes, start, end)
+        }
+        val value = if (exponent < 0) mantissa / POWERS_OF_TEN[-exponent] else mantissa * POWERS_OF_TEN[exponent]
+        parsedDouble = if (negative) -value else value
+        return true
+    }
+
+    /**
+     * Parses a number the fast path cannot, such as one with more digits than
+     * a double holds, or `NaN`, by way of a String
+     */
+    private fun parseDoubleSlowly(bytes: ByteArray, start: Int, end: Int): Boolean {
+        return try {
+            parsedDouble = java.lang.Double.parseDouble(String(bytes, start, end - start, Charsets.ISO_8859_1))
+            true
+        } catch (e: NumberFormatException) {
+            false
+        }
+    }
+
+    private fun isSpace(b: Byte) = b == SPACE || b == TAB
+
+    /**
+     * Discards any partially received line and the samples not yet emitted
+     */
+    fun reset() {
+        carryLength = 0
+        discarding = false
+        batch?.release()
+        batch = null
+        skipped = 0
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+        private const val MAX_SIGNIFICANT_DIGITS = 18
+        private const val MAX_EXPONENT = 100_000
+        private const val MAX_EXACT_POWER = 22
+        private const val MAX_EXACT_MANTISSA = 1L shl 53
+        private const val LF = '\n'.toByte()
+        private const val CR = '\r'.toByte()
+        private const val SPACE = ' '.toByte()
+        private const val TAB = '\t'.toByte()
+        private const val MINUS = '-'.toByte()
+        private const val PLUS = '+'.toByte()
+        private const val DOT = '.'.toByte()
+        private const val LOWER_E = 'e'.toByte()
+        private const val UPPER_E = 'E'.toByte()
+        private const val ZERO = '0'.toByte()
+        private const val UPPER_N = 'N'.toByte()
+        private const val UPPER_I = 'I'.toByte()
+
+        private val POWERS_OF_TEN = DoubleArray(MAX_EXACT_POWER + 1).also { powers ->
+            powers[0] = 1.0
+            for (i in 1 until powers.size) powers[i] = powers[i - 1] * 10
+        }
+
+        /**
+         * @return Whether [charset] encodes everything the format is made of as ASCII, so it can be parsed as bytes
+         */
+        fun supports(charset: Charset, format: TelemetryFormat): Boolean {
+            val probe = "0123456789+-.eE \t\r\n${format.delimiter}${format.keySeparator}${format.fieldNames.joinToString("")}"
+            return probe.toByteArray(charset).contentEquals(probe.toByteArray(Charsets.US_ASCII))
+        }
+    }
+}
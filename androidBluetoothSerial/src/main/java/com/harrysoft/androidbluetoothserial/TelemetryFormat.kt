@@ -0,0 +1,176 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Describes the numeric samples a device sends, one per line, for
+ * [BluetoothSerialDevice.openTelemetryStream]. Create instances using [Builder].
+ *
+ * Each line is split on [delimiter] into fields. A field may be named, as in `ax=0.12`,
+ * in which case its value goes into the column with that name and fields with unknown
+ * names are ignored, or bare, as in `0.12`, in which case it goes into the column at
+ * the same position and any fields beyond the last column are ignored.
+ * Spaces and tabs around fields are ignored, and empty lines are skipped.
+ * A line that is missing a column, whose values cannot be parsed, or that is longer
+ * than [maxLineLength], is skipped and counted in [TelemetryBatch.skippedLineCount].
+ *
+ * [FieldType.LONG] values are decimal integers, with an optional sign.
+ * [FieldType.DOUBLE] values are decimal numbers with an optional fraction and exponent,
+ * such as `-1.5`, `42` or `6.02e23`, or `NaN` and `Infinity`.
+ */
+class TelemetryFormat private constructor(builder: Builder) {
+    /**
+     * The types of value a column can hold
+     */
+    enum class FieldType {
+        /**
+         * Integers, stored in a `long[]` column
+         */
+        LONG,
+        /**
+         * Decimal numbers, stored in a `double[]` column
+         */
+        DOUBLE
+    }
+
+    /**
+     * @return The names of the columns, in order
+     */
+    val fieldNames: List<String> = builder.fieldNames.toList()
+
+    /**
+     * @return The types of the columns, in the same order as [fieldNames]
+     */
+    val fieldTypes: List<FieldType> = builder.fieldTypes.toList()
+
+    /**
+     * @return The character separating fields within a line
+     */
+    val delimiter: Char = builder.delimiter
+
+    /**
+     * @return The character separating a field's name from its value
+     */
+    val keySeparator: Char = builder.keySeparator
+
+    /**
+     * @return The most samples delivered in one [TelemetryBatch]
+     */
+    val maxBatchSize: Int = builder.maxBatchSize
+
+    /**
+     * @return The longest line, in bytes and not including its terminator, that is parsed rather than skipped
+     */
+    val maxLineLength: Int = builder.maxLineLength
+
+    /**
+     * @return The number of columns
+     */
+    val fieldCount: Int get() = fieldNames.size
+
+    /**
+     * The names as ASCII bytes, for matching against received bytes
+     */
+    internal val fieldNameBytes: Array<ByteArray> = Array(fieldNames.size) { fieldNames[it].toByteArray(Charsets.US_ASCII) }
+
+    /**
+     * @param name The name of a column
+     * @return The index of the column, or -1 if there is no column with that name
+     */
+    fun columnIndex(name: String): Int = fieldNames.indexOf(name)
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    class Builder() {
+        internal val fieldNames = ArrayList<String>()
+        internal val fieldTypes = ArrayList<FieldType>()
+        internal var delimiter = DEFAULT_DELIMITER
+        internal var keySeparator = DEFAULT_KEY_SEPARATOR
+        internal var maxBatchSize = DEFAULT_MAX_BATCH_SIZE
+        internal var maxLineLength = DEFAULT_MAX_LINE_LENGTH
+
+        internal constructor(format: TelemetryFormat) : this() {
+            fieldNames.addAll(format.fieldNames)
+            fieldTypes.addAll(format.fieldTypes)
+            delimiter = format.delimiter
+            keySeparator = format.keySeparator
+            maxBatchSize = format.maxBatchSize
+            maxLineLength = format.maxLineLength
+        }
+
+        /**
+         * Adds a column after those already added
+         *
+         * @param name The name of the field, which must be ASCII and unique
+         * @param type The type of the field's values
+         */
+        fun field(name: String, type: FieldType) = apply {
+            require(name.isNotEmpty() && name.all { it < '\u0080' }) { "Field names must be non-empty ASCII" }
+            require(name !in fieldNames) { "Duplicate field name $name" }
+            fieldNames.add(name)
+            fieldTypes.add(type)
+        }
+
+        /**
+         * @param name The name of an integer field to add
+         */
+        fun longField(name: String) = field(name, FieldType.LONG)
+
+        /**
+         * @param name The name of a decimal field to add
+         */
+        fun doubleField(name: String) = field(name, FieldType.DOUBLE)
+
+        /**
+         * @param delimiter The ASCII character separating fields within a line
+         */
+        fun delimiter(delimiter: Char) = apply {
+            requireSeparator(delimiter)
+            this.delimiter = delimiter
+        }
+
+        /**
+         * @param keySeparator The ASCII character separating a field's name from its value
+         */
+        fun keySeparator(keySeparator: Char) = apply {
+            requireSeparator(keySeparator)
+            this.keySeparator = keySeparator
+        }
+
+        /**
+         * @param maxBatchSize The most samples to deliver in one batch
+         */
+        fun maxBatchSize(maxBatchSize: Int) = apply {
+            require(maxBatchSize > 0) { "maxBatchSize must be positive" }
+            this.maxBatchSize = maxBatchSize
+        }
+
+        /**
+         * @param maxLineLength The longest line, in bytes, to parse. Longer lines are skipped.
+         */
+        fun maxLineLength(maxLineLength: Int) = apply {
+            require(maxLineLength > 0) { "maxLineLength must be positive" }
+            this.maxLineLength = maxLineLength
+        }
+
+        private fun requireSeparator(c: Char) {
+            require(c < '\u0080' && c != '\n' && c != '\r' && !c.isLetterOrDigit() && c != '.' && c != '-' && c != '+') {
+                "Separators must be ASCII and not part of a number"
+            }
+        }
+
+        fun build(): TelemetryFormat {
+            require(fieldNames.isNotEmpty()) { "At least one field is required" }
+            require(delimiter != keySeparator) { "The delimiter and key separator must differ" }
+            return TelemetryFormat(this)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_DELIMITER = ','
+        const val DEFAULT_KEY_SEPARATOR = '='
+        const val DEFAULT_MAX_BATCH_SIZE = 256
+        const val DEFAULT_MAX_LINE_LENGTH = 4096
+    }
+}
@@ -0,0 +1,164 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Records every byte a device receives and sends, with the time it was read or
+ * written, to a trace file that can be read back with [TrafficTrace] and played
+ * back with [ReplayTransport]. Set on [DeviceOptions.Builder.recorder], and use
+ * one recorder per device.
+ *
+ * The file is a ring of [capacityBytes]: once it is full, the oldest records are
+ * overwritten, so it always holds the most recent traffic. It is memory-mapped, so
+ * recording a chunk is a copy into memory rather than a system call, and everything
+ * recorded up to the moment the app crashes is still in the file.
+ *
+ * Bytes are recorded as the reader reads them and as the writer writes them,
+ * after decompression and before compression, so the records keep the
+ * original chunking. Bytes written directly to [BluetoothSerialDevice.outputStream]
+ * or read directly from [BluetoothSerialDevice.inputStream] are not recorded.
+ *
+ * @param file The trace file, which is replaced if it exists
+ * @param capacityBytes The size of the ring, in bytes
+ */
+class TrafficRecorder @JvmOverloads constructor(
+        file: File,
+        val capacityBytes: Int = DEFAULT_CAPACITY_BYTES
+) : Closeable {
+    private val startNanos = System.nanoTime()
+    private val maxPayloadBytes = capacityBytes / 2 - TraceFormat.RECORD_HEADER_BYTES
+    private val buffer: MappedByteBuffer
+
+    // Logical positions in the ring, which only ever increase
+    private var head = 0L
+    private var tail = 0L
+    private var closed = false
+
+    init {
+        require(capacityBytes in MIN_CAPACITY_BYTES..Int.MAX_VALUE - TraceFormat.HEADER_BYTES) { "Invalid capacity" }
+        buffer = RandomAccessFile(file, "rw").use { raf ->
+            raf.setLength(0)
+            raf.setLength((TraceFormat.HEADER_BYTES + capacityBytes).toLong())
+            raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length())
+        }
+        buffer.putInt(TraceFormat.MAGIC_OFFSET, TraceFormat.MAGIC)
+        buffer.putInt(TraceFormat.VERSION_OFFSET, TraceFormat.VERSION)
+        buffer.putInt(TraceFormat.CAPACITY_OFFSET, capacityBytes)
+        buffer.putLong(TraceFormat.HEAD_OFFSET, head)
+        buffer.putLong(TraceFormat.TAIL_OFFSET, tail)
+        buffer.putLong(TraceFormat.START_MILLIS_OFFSET, System.currentTimeMillis())
+    }
+
+    /**
+     * Appends a record, splitting it if it is more than half the size of the ring.
+     * Called by the reader and writer threads.
+     */
+    internal fun record(direction: TraceRecord.Direction, bytes: ByteArray, offset: Int, length: Int) {
+        val nanos = System.nanoTime() - startNanos
+        synchronized(this) {
+            if (closed) return
+            var position = offset
+            val end = offset + length
+            while (position < end) {
+                val count = minOf(end - position, maxPayloadBytes)
+                append(direction, nanos, bytes, position, count)
+                position += count
+            }
+        }
+    }
+
+    private fun append(direction: TraceRecord.Direction, nanos: Long, bytes: ByteArray, offset: Int, length: Int) {
+        val size = TraceFormat.RECORD_HEADER_BYTES + length
+        // Records never wrap around the end of the ring, so skip to its start if this one would
+        val toEnd = capacityBytes - (head % capacityBytes).toInt()
+        val padding = if (toEnd < size) toEnd else 0
+        while (capacityBytes - (head - tail) < padding + size) {
+            dropOldest()
+        }
+        // Publish the new tail before overwriting what it has moved past
+        buffer.putLong(TraceFormat.TAIL_OFFSET, tail)
+        if (padding > 0) {
+            if (padding >= 4) buffer.putInt(TraceFormat.HEADER_BYTES + capacityBytes - padding, TraceFormat.WRAP)
+            head += padding
+        }
+        val at = TraceFormat.HEADER_BYTES + (head % capacityBytes).toInt()
+        buffer.putInt(at, length)
+        buffer.put(at + 4, direction.ordinal.toByte())
+        buffer.putLong(at + 5, nanos)
+        buffer.position(at + TraceFormat.RECORD_HEADER_BYTES)
+        buffer.put(bytes, offset, length)
+        head += size
+        buffer.putLong(TraceFormat.HEAD_OFFSET, head)
+    }
+
+    private fun dropOldest() {
+        val at = (tail % capacityBytes).toInt()
+        val toEnd = capacityBytes - at
+        val length = if (toEnd < 4) TraceFormat.WRAP else buffer.getInt(TraceFormat.HEADER_BYTES + at)
+        tail += if (length == TraceFormat.WRAP) toEnd.toLong() else (TraceFormat.RECORD_HEADER_BYTES + length).toLong()
+    }
+
+    /**
+     * Writes everything recorded so far to storage, so that it survives the device losing power
+     */
+    fun flush() {
+        synchronized(this) {
+            if (!closed) buffer.force()
+        }
+    }
+
+    /**
+     * Stops recording and writes the trace to storage. The mapping
+     * itself is released once the recorder is garbage collected.
+     */
+    override fun close() {
+        synchronized(this) {
+            if (closed) return
+            buffer.force()
+            closed = true
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024
+        const val MIN_CAPACITY_BYTES = 1024
+    }
+}
+
+/**
+ * The layout of a trace file, package-private. A header is followed by the ring:
+ *
+ * | Offset | Bytes | Field |
+ * |---|---|---|
+ * | 0 | 4 | Magic number `BTRC` |
+ * | 4 | 4 | Format version |
+ * | 8 | 4 | Capacity of the ring |
+ * | 16 | 8 | Logical position after the newest record |
+ * | 24 | 8 | Logical position of the oldest record |
+ * | 32 | 8 | Wall clock time the recording started, in milliseconds |
+ *
+ * A logical position modulo the capacity is an offset into the ring. Each record is
+ * its payload length (4 bytes), direction (1 byte), nanoseconds since the recording
+ * started (8 bytes) and payload. A record that would not fit before the end of the
+ * ring starts at its beginning instead, and a length of -1, or fewer than 4 bytes
+ * left, marks the skipped space. All values are big-endian.
+ */
+internal object TraceFormat {
+    const val MAGIC = 0x42545243
+    const val VERSION = 1
+
+    const val MAGIC_OFFSET = 0
+    const val VERSION_OFFSET = 4
+    const val CAPACITY_OFFSET = 8
+    const val HEAD_OFFSET = 16
+    const val TAIL_OFFSET = 24
+    const val START_MILLIS_OFFSET = 32
+    const val HEADER_BYTES = 64
+
+    const val RECORD_HEADER_BYTES = 13
+    const val WRAP = -1
+}
@@ -0,0 +1,104 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
+
+/**
+ * A chunk of bytes that a device received or sent, read from a trace file
+ *
+ * @param direction Whether the bytes were received or sent
+ * @param timestampNanos When the bytes were read or written, in nanoseconds since the recording started
+ * @param bytes The bytes, in the chunks they were read or written in
+ */
+class TraceRecord(val direction: Direction, val timestampNanos: Long, val bytes: ByteArray) {
+    enum class Direction {
+        RECEIVED,
+        SENT
+    }
+
+    override fun toString(): String {
+        return "TraceRecord(direction=$direction, timestampNanos=$timestampNanos, length=${bytes.size})"
+    }
+}
+
+/**
+ * The contents of a trace file written by a [TrafficRecorder], oldest record first.
+ * Play it back with [ReplayTransport].
+ */
+class TrafficTrace(
+        /**
+         * @return The wall clock time the recording started, in milliseconds since the epoch
+         */
+        val startMillis: Long,
+        /**
+         * @return The records, oldest first
+         */
+        val records: List<TraceRecord>
+) {
+    /**
+     * @return The time between the first and last records, in nanoseconds
+     */
+    val durationNanos: Long get() = if (records.isEmpty()) 0 else records.last().timestampNanos - records.first().timestampNanos
+
+    /**
+     * @return The number of bytes received in the trace
+     */
+    val bytesReceived: Long get() = records.filter { it.direction == TraceRecord.Direction.RECEIVED }.sumBy { it.bytes.size }.toLong()
+
+    /**
+     * @return The number of bytes sent in the trace
+     */
+    val bytesSent: Long get() = records.filter { it.direction == TraceRecord.Direction.SENT }.sumBy { it.bytes.size }.toLong()
+
+    companion object {
+        /**
+         * Reads a trace file. A file left behind by an app that crashed
+         * while recording holds everything recorded until the crash.
+         *
+         * @param file The trace file
+         * @return The trace
+         * @throws IOException If the file cannot be read or is not a valid trace
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun read(file: File): TrafficTrace {
+            val buffer = RandomAccessFile(file, "r").use { raf ->
+                raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+            }
+            if (buffer.capacity() < TraceFormat.HEADER_BYTES || buffer.getInt(TraceFormat.MAGIC_OFFSET) != TraceFormat.MAGIC) {
+                throw IOException("Not a trace file")
+            }
+            val version = buffer.getInt(TraceFormat.VERSION_OFFSET)
+            if (version != TraceFormat.VERSION) throw IOException("Unsupported trace version $version")
+            val capacity = buffer.getInt(TraceFormat.CAPACITY_OFFSET)
+            val head = buffer.getLong(TraceFormat.HEAD_OFFSET)
+            var position = buffer.getLong(TraceFormat.TAIL_OFFSET)
+            if (capacity <= 0 || buffer.capacity() < TraceFormat.HEADER_BYTES + capacity || position > head || head - position > capacity) {
+                throw IOException("Corrupt trace file")
+            }
+            val directions = TraceRecord.Direction.values()
+            val records = ArrayList<TraceRecord>()
+            while (position < head) {
+                val at = (position % capacity).toInt()
+                val toEnd = capacity - at
+                val length = if (toEnd < 4) TraceFormat.WRAP else buffer.getInt(TraceFormat.HEADER_BYTES + at)
+                if (length == TraceFormat.WRAP) {
+                    position += toEnd
+                    continue
+                }
+                val direction = buffer.get(TraceFormat.HEADER_BYTES + at + 4).toInt()
+                if (length < 0 || length > toEnd - TraceFormat.RECORD_HEADER_BYTES || direction !in directions.indices) {
+                    throw IOException("Corrupt trace file")
+                }
+                val bytes = ByteArray(length)
+                buffer.position(TraceFormat.HEADER_BYTES + at + TraceFormat.RECORD_HEADER_BYTES)
+                buffer.get(bytes)
+                records.add(TraceRecord(directions[direction], buffer.getLong(TraceFormat.HEADER_BYTES + at + 5), bytes))
+                position += TraceFormat.RECORD_HEADER_BYTES + length
+            }
+            return TrafficTrace(buffer.getLong(TraceFormat.START_MILLIS_OFFSET), records)
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Options controlling a bulk transfer started with [BluetoothSerialDevice.transfer].
+ * Create instances using [Builder].
+ */
+class TransferOptions private constructor(builder: Builder) {
+    /**
+     * @return The number of payload bytes sent in each chunk
+     */
+    val chunkBytes: Int = builder.chunkBytes
+
+    /**
+     * @return The number of chunks that may be sent before the first of them is acknowledged
+     */
+    val windowSize: Int = builder.windowSize
+
+    /**
+     * @return How long, in milliseconds, to wait for a chunk to be acknowledged
+     * after it has been written before sending it again
+     */
+    val ackTimeoutMillis: Long = builder.ackTimeoutMillis
+
+    /**
+     * @return The number of times a chunk may be sent again, after a timeout or a
+     * negative acknowledgement, before the transfer fails
+     */
+    val maxRetransmits: Int = builder.maxRetransmits
+
+    /**
+     * @return The priority the transfer's chunks are sent with
+     */
+    val priority: SendPriority = builder.priority
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    class Builder() {
+        internal var chunkBytes = DEFAULT_CHUNK_BYTES
+        internal var windowSize = DEFAULT_WINDOW_SIZE
+        internal var ackTimeoutMillis = DEFAULT_ACK_TIMEOUT_MILLIS
+        internal var maxRetransmits = DEFAULT_MAX_RETRANSMITS
+        internal var priority = SendPriority.LOW
+
+        internal constructor(options: TransferOptions) : this() {
+            chunkBytes = options.chunkBytes
+            windowSize = options.windowSize
+            ackTimeoutMillis = options.ackTimeoutMillis
+            maxRetransmits = options.maxRetransmits
+            priority = options.priority
+        }
+
+        /**
+         * @param chunkBytes The number of payload bytes in each chunk, up to [MAX_CHUNK_BYTES]
+         */
+        fun chunkBytes(chunkBytes: Int) = apply {
+            require(chunkBytes in 1..MAX_CHUNK_BYTES) { "chunkBytes must be between 1 and $MAX_CHUNK_BYTES" }
+            this.chunkBytes = chunkBytes
+        }
+
+        /**
+         * @param windowSize The number of unacknowledged chunks that may be in flight
+         */
+        fun windowSize(windowSize: Int) = apply {
+            require(windowSize > 0) { "windowSize must be positive" }
+            this.windowSize = windowSize
+        }
+
+        /**
+         * @param ackTimeoutMillis How long to wait for an acknowledgement before sending a chunk again
+         */
+        fun ackTimeoutMillis(ackTimeoutMillis: Long) = apply {
+            require(ackTimeoutMillis > 0) { "ackTimeoutMillis must be positive" }
+            this.ackTimeoutMillis = ackTimeoutMillis
+        }
+
+        /**
+         * @param maxRetransmits The number of times a chunk may be sent again before the transfer fails
+         */
+        fun maxRetransmits(maxRetransmits: Int) = apply {
+            require(maxRetransmits >= 0) { "maxRetransmits must not be negative" }
+            this.maxRetransmits = maxRetransmits
+        }
+
+        /**
+         * @param priority The priority to send chunks with
+         */
+        fun priority(priority: SendPriority) = apply { this.priority = priority }
+
+        fun build() = TransferOptions(this)
+    }
+
+    companion object {
+        const val DEFAULT_CHUNK_BYTES = 1024
+        const val DEFAULT_WINDOW_SIZE = 16
+        const val DEFAULT_ACK_TIMEOUT_MILLIS = 2000L
+        const val DEFAULT_MAX_RETRANSMITS = 5
+
+        /**
+         * The largest chunk the transfer protocol can carry
+         */
+        const val MAX_CHUNK_BYTES = 0xFFFF
+
+        /**
+         * The options used when none are specified
+         */
+        @JvmField
+        val DEFAULT = Builder().build()
+    }
+}
@@ -0,0 +1,38 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * How far a bulk transfer has got, as emitted by [BluetoothSerialDevice.transfer].
+ */
+data class TransferProgress(
+        /**
+         * @return The number of payload bytes the device has acknowledged
+         */
+        val bytesAcknowledged: Long,
+        /**
+         * @return The size of the payload, or -1 if it is not known in advance
+         */
+        val totalBytes: Long,
+        /**
+         * @return The number of chunks that have been sent again, after a timeout or a negative acknowledgement
+         */
+        val retransmissions: Long,
+        /**
+         * @return How long, in nanoseconds, the transfer has been running
+         */
+        val elapsedNanos: Long,
+        /**
+         * @return Whether the device has acknowledged the whole payload
+         */
+        val isComplete: Boolean
+) {
+    /**
+     * @return The fraction of the payload acknowledged so far, between 0 and 1,
+     * or NaN if the size of the payload is not known
+     */
+    val fraction: Double get() = if (totalBytes < 0) Double.NaN else if (totalBytes == 0L) 1.0 else bytesAcknowledged.toDouble() / totalBytes
+
+    /**
+     * @return The average rate, in bytes per second, at which the payload has been acknowledged
+     */
+    val bytesPerSecond: Double get() = if (elapsedNanos <= 0) 0.0 else bytesAcknowledged * 1e9 / elapsedNanos
+}
@@ -0,0 +1,145 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.zip.CRC32
+
+/**
+ * The framing used by bulk transfers, package-private. See [TransferReceiver] for the format.
+ */
+internal object TransferProtocol {
+    const val MAGIC = 0xB5.toByte()
+    const val DATA = 'D'.toByte()
+    const val END = 'E'.toByte()
+    const val ACK = 'A'.toByte()
+    const val NAK = 'N'.toByte()
+    const val ABORT = 'X'.toByte()
+
+    /**
+     * The magic byte, type, sequence number, payload length and its complement
+     */
+    const val HEADER_BYTES = 10
+    const val CRC_BYTES = 4
+
+    /**
+     * @return A frame of [type] for [seq], carrying [length] bytes of [payload] from [offset]
+     */
+    fun encode(crc: CRC32, type: Byte, seq: Int, payload: ByteArray, offset: Int, length: Int): ByteArray {
+        val frame = ByteArray(HEADER_BYTES + length + CRC_BYTES)
+        frame[0] = MAGIC
+        frame[1] = type
+        putInt(frame, 2, seq)
+        frame[6] = (length ushr 8).toByte()
+        frame[7] = length.toByte()
+        frame[8] = (length ushr 8).inv().toByte()
+        frame[9] = length.inv().toByte()
+        System.arraycopy(payload, offset, frame, HEADER_BYTES, length)
+        crc.reset()
+        crc.update(frame, 1, HEADER_BYTES - 1 + length)
+        putInt(frame, HEADER_BYTES + length, crc.value.toInt())
+        return frame
+    }
+
+    /**
+     * @return A frame of [type] for [seq] with no payload
+     */
+    fun encode(crc: CRC32, type: Byte, seq: Int): ByteArray = encode(crc, type, seq, EMPTY, 0, 0)
+
+    fun getInt(buffer: ByteArray, offset: Int): Int {
+        return (buffer[offset].toInt() and 0xFF shl 24) or
+                (buffer[offset + 1].toInt() and 0xFF shl 16) or
+                (buffer[offset + 2].toInt() and 0xFF shl 8) or
+                (buffer[offset + 3].toInt() and 0xFF)
+    }
+
+    private fun putInt(buffer: ByteArray, offset: Int, value: Int) {
+        buffer[offset] = (value ushr 24).toByte()
+        buffer[offset + 1] = (value ushr 16).toByte()
+        buffer[offset + 2] = (value ushr 8).toByte()
+        buffer[offset + 3] = value.toByte()
+    }
+
+    private val EMPTY = ByteArray(0)
+}
+
+/**
+ * Incrementally parses transfer frames from a byte stream, package-private.
+ * Bytes before a magic byte are skipped. The length is checked against its
+ * complement before waiting for the rest of a frame, so that a corrupt length
+ * cannot swallow the frames after it, and the bytes of a frame that fails
+ * either check are scanned again for the start of the next one.
+ */
+internal class TransferFrameParser(private val maxPayloadBytes: Int, private val sink: FrameSink) {
+    private val frame = ByteArray(TransferProtocol.HEADER_BYTES + maxPayloadBytes + TransferProtocol.CRC_BYTES)
+    private val crc = CRC32()
+    private var length = 0
+    private var needed = 0
+
+    interface FrameSink {
+        /**
+         * @param payload A buffer owned by the parser, only valid until this method returns
+         */
+        fun onFrame(type: Byte, seq: Int, payload: ByteArray, offset: Int, length: Int)
+
+        /**
+         * Called for a frame whose checksum does not match. Its sequence number may itself be corrupt.
+         */
+        fun onCorrupt(type: Byte, seq: Int)
+    }
+
+    fun parse(buffer: ByteArray, offset: Int, count: Int) {
+        var i = offset
+        val end = offset + count
+        while (i < end) {
+            if (length == 0) {
+                if (buffer[i++] == TransferProtocol.MAGIC) {
+                    frame[length++] = TransferProtocol.MAGIC
+                    needed = TransferProtocol.HEADER_BYTES
+                }
+                continue
+            }
+            val copied = minOf(needed - length, end - i)
+            System.arraycopy(buffer, i, frame, length, copied)
+            length += copied
+            i += copied
+            if (length < needed) continue
+            if (needed == TransferProtocol.HEADER_BYTES) {
+                val payloadBytes = (frame[6].toInt() and 0xFF shl 8) or (frame[7].toInt() and 0xFF)
+                val check = (frame[8].toInt() and 0xFF shl 8) or (frame[9].toInt() and 0xFF)
+                if (payloadBytes > maxPayloadBytes || payloadBytes != check.inv() and 0xFFFF) {
+                    rescan()
+                    continue
+                }
+                needed = TransferProtocol.HEADER_BYTES + payloadBytes + TransferProtocol.CRC_BYTES
+            } else {
+                emit()
+            }
+        }
+    }
+
+    fun reset() {
+        length = 0
+    }
+
+    private fun emit() {
+        val payloadBytes = needed - TransferProtocol.HEADER_BYTES - TransferProtocol.CRC_BYTES
+        val type = frame[1]
+        val seq = TransferProtocol.getInt(frame, 2)
+        crc.reset()
+        crc.update(frame, 1, TransferProtocol.HEADER_BYTES - 1 + payloadBytes)
+        if (crc.value.toInt() == TransferProtocol.getInt(frame, needed - TransferProtocol.CRC_BYTES)) {
+            length = 0
+            sink.onFrame(type, seq, frame, TransferProtocol.HEADER_BYTES, payloadBytes)
+        } else {
+            sink.onCorrupt(type, seq)
+            rescan()
+        }
+    }
+
+    /**
+     * Discards the magic byte of the frame being parsed, and parses the bytes after it again
+     */
+    private fun rescan() {
+        val rest = frame.copyOfRange(1, length)
+        length = 0
+        parse(rest, 0, rest.size)
+    }
+}
@@ -0,0 +1,116 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.CRC32
+
+/**
+ * The receiving end of a bulk transfer started with [BluetoothSerialDevice.transfer].
+ * Run it against the peer of a [MemoryTransport] to test transfers end to end on a
+ * plain JVM, or use it as a model for the device's firmware.
+ *
+ * Every frame, in both directions, has the form
+ *
+ * | Bytes | Field |
+ * |---|---|
+ * | 1 | Magic byte `0xB5` |
+ * | 1 | Type: `D` data, `E` end, `A` ack, `N` nak or `X` abort |
+ * | 4 | Sequence number, big-endian |
+ * | 2 | Payload length, big-endian |
+ * | 2 | The payload length with every bit inverted |
+ * | n | Payload, only in data frames |
+ * | 4 | CRC-32 of the type, sequence number, length and payload, big-endian |
+ *
+ * The payload is sent in data frames numbered from zero. The receiver replies
+ * to each data frame with an ack carrying its sequence number, including frames
+ * it has already received, or with a nak if the checksum does not match.
+ * Frames may arrive out of order after a retransmission, and the receiver
+ * reassembles them. Once every data frame has been acknowledged, the sender
+ * sends an end frame whose sequence number is the number of data frames,
+ * and the receiver acks it once it has all of them. An abort frame means the
+ * sender has given up.
+ *
+ * @param inputStream The stream the sender's frames are read from
+ * @param outputStream The stream acks and naks are written to
+ * @param maxBufferedChunks The number of chunks received ahead of a missing one that are held
+ * for reassembly. Chunks beyond this are not acknowledged, so the sender will send them again.
+ */
+class TransferReceiver @JvmOverloads constructor(
+        private val inputStream: InputStream,
+        private val outputStream: OutputStream,
+        private val maxBufferedChunks: Int = DEFAULT_MAX_BUFFERED_CHUNKS
+) {
+    /**
+     * Receives a single transfer, writing its payload to [sink] in order.
+     * Blocks until the sender's end frame has been acknowledged.
+     *
+     * @param sink Where to write the payload
+     * @return The number of payload bytes received
+     * @throws IOException If the sender aborts, or the connection fails or ends first
+     */
+    @Throws(IOException::class)
+    fun receive(sink: OutputStream): Long {
+        val crc = CRC32()
+        val pending = HashMap<Int, ByteArray>()
+        var next = 0
+        var received = 0L
+        var finished = false
+        var aborted = false
+        val parser = TransferFrameParser(TransferOptions.MAX_CHUNK_BYTES, object : TransferFrameParser.FrameSink {
+            override fun onFrame(type: Byte, seq: Int, payload: ByteArray, offset: Int, length: Int) {
+                when (type) {
+                    TransferProtocol.DATA -> {
+                        if (seq >= next && seq !in pending) {
+                            if (seq == next) {
+                                sink.write(payload, offset, length)
+                                received += length
+                                next++
+                                while (true) {
+                                    val chunk = pending.remove(next) ?: break
+                                    sink.write(chunk)
+                                    received += chunk.size
+                                    next++
+                                }
+                            } else if (pending.size < maxBufferedChunks) {
+                                pending[seq] = payload.copyOfRange(offset, offset + length)
+                            } else {
+                                return
+                            }
+                        }
+                        reply(TransferProtocol.ACK, seq)
+                    }
+                    TransferProtocol.END -> if (seq == next) {
+                        reply(TransferProtocol.ACK, seq)
+                        finished = true
+                    }
+                    TransferProtocol.ABORT -> aborted = true
+                }
+            }
+
+            override fun onCorrupt(type: Byte, seq: Int) {
+                if (type == TransferProtocol.DATA) reply(TransferProtocol.NAK, seq)
+            }
+
+            private fun reply(type: Byte, seq: Int) {
+                outputStream.write(TransferProtocol.encode(crc, type, seq))
+                outputStream.flush()
+            }
+        })
+        val buffer = ByteArray(READ_BUFFER_SIZE)
+        while (!finished) {
+            val count = inputStream.read(buffer)
+            if (count < 0) throw IOException("Connection ended during transfer")
+            parser.parse(buffer, 0, count)
+            if (aborted) throw IOException("Transfer aborted by sender")
+        }
+        sink.flush()
+        return received
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BUFFERED_CHUNKS = 1024
+
+        private const val READ_BUFFER_SIZE = 8192
+    }
+}
@@ -0,0 +1,12 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * Creates the [SerialTransport]s that a [BluetoothManager] connects devices over.
+ */
+interface TransportFactory {
+    /**
+     * @param mac The MAC address (or other identifier) of the device
+     * @return A new, unconnected transport to the device
+     */
+    fun createTransport(mac: String): SerialTransport
+}
@@ -0,0 +1,109 @@
+package com.harrysoft.androidbluetoothserial
+
+/**
+ * A summary of the samples that fell into one window, emitted by
+ * [BluetoothSerialDevice.openAggregateStream]. Every column of the [format]
+ * is summarised, with integer columns converted to doubles.
+ */
+class WindowAggregate internal constructor(
+        /**
+         * @return The format of the samples that were summarised
+         */
+        val format: TelemetryFormat,
+        /**
+         * @return Where the window starts, inclusive: the number of the window's first
+         * sample for count-based windows, or a time in nanoseconds for time-based windows,
+         * on [System.nanoTime]'s clock, or the [WindowOptions.timeField]'s if there is one
+         */
+        val start: Long,
+        /**
+         * @return Where the window ends, exclusive, in the same units as [start]
+         */
+        val end: Long,
+        /**
+         * @return The number of samples in the window, which is always at least one
+         */
+        val count: Int,
+        private val mins: DoubleArray,
+        private val maxes: DoubleArray,
+        private val sums: DoubleArray,
+        private val lasts: DoubleArray
+) {
+    /**
+     * @param column The index of a column
+     * @return The smallest value in the window
+     */
+    fun min(column: Int): Double = mins[column]
+
+    /**
+     * @param column The index of a column
+     * @return The largest value in the window
+     */
+    fun max(column: Int): Double = maxes[column]
+
+    /**
+     * @param column The index of a column
+     * @return The sum of the values in the window
+     */
+    fun sum(column: Int): Double = sums[column]
+
+    /**
+     * @param column The index of a column
+     * @return The mean of the values in the window
+     */
+    fun mean(column: Int): Double = sums[column] / count
+
+    /**
+     * @param column The index of a column
+     * @return The most recent value in the window
+     */
+    fun last(column: Int): Double = lasts[column]
+
+    /**
+     * @param name The name of a column
+     * @return The smallest value in the window
+     */
+    fun min(name: String): Double = min(indexOf(name))
+
+    /**
+     * @param name The name of a column
+     * @return The largest value in the window
+     */
+    fun max(name: String): Double = max(indexOf(name))
+
+    /**
+     * @param name The name of a column
+     * @return The sum of the values in the window
+     */
+    fun sum(name: String): Double = sum(indexOf(name))
+
+    /**
+     * @param name The name of a column
+     * @return The mean of the values in the window
+     */
+    fun mean(name: String): Double = mean(indexOf(name))
+
+    /**
+     * @param name The name of a column
+     * @return The most recent value in the window
+     */
+    fun last(name: String): Double = last(indexOf(name))
+
+    private fun indexOf(name: String): Int {
+        val column = format.columnIndex(name)
+        require(column >= 0) { "No column named $name" }
+        return column
+    }
+
+    override fun toString(): String {
+        val builder = StringBuilder("WindowAggregate(start=$start, end=$end, count=$count")
+        for (column in 0 until format.fieldCount) {
+            builder.append(", ").append(format.fieldNames[column])
+                    .append("=[min=").append(mins[column])
+                    .append(", max=").append(maxes[column])
+                    .append(", mean=").append(mean(column))
+                    .append(", last=").append(lasts[column]).append(']')
+        }
+        return builder.append(')').toString()
+    }
+}
@@ -0,0 +1,185 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Summarises samples over the windows described by [WindowOptions], package-private.
+ *
+ * Samples are folded into panes, each [WindowOptions.slide] long, as they arrive, so the
+ * state is one min, max, sum and last value per column for each of the `size / slide`
+ * panes in a window, however many samples a window holds. When a pane is complete, the
+ * window ending with it is emitted by combining its panes. Count-based panes are complete
+ * as soon as their last sample arrives, and time-based panes once a later sample does, or,
+ * for windows measured by receive time, once [flush] is called after the pane has ended.
+ * Windows with no samples are not emitted. If time goes backwards by more than a window,
+ * as when a device restarts and its clock with it, the open windows are emitted and windowing
+ * starts again from that sample.
+ */
+internal class WindowAggregator(
+        private val format: TelemetryFormat,
+        private val window: WindowOptions,
+        private val emit: (WindowAggregate) -> Unit
+) {
+    private val columns = format.fieldCount
+    private val panes = (window.size / window.slide).toInt()
+    private val timeColumn = timeColumnOf(format, window)
+    private val timeFieldNanos = window.timeFieldUnit.toNanos(1)
+
+    // One slot per pane of the current window, indexed by pane number modulo panes
+    private val counts = IntArray(panes)
+    private val mins = DoubleArray(panes * columns)
+    private val maxes = DoubleArray(panes * columns)
+    private val sums = DoubleArray(panes * columns)
+    private val lasts = DoubleArray(panes * columns)
+
+    private var started = false
+    // The position panes are numbered from: the first sample's time, or sample number 0
+    private var origin = 0L
+    private var samples = 0L
+    private var pane = 0L
+
+    /**
+     * @return Whether windows are measured by the time samples are received,
+     * so that [flush] can close them when no more samples arrive
+     */
+    val isReceiveTimed: Boolean get() = window.isTimeBased && timeColumn < 0
+
+    /**
+     * Adds every sample in [batch]
+     *
+     * @param receivedNanos When the batch was received, on [System.nanoTime]'s clock
+     */
+    fun add(batch: TelemetryBatch, receivedNanos: Long) {
+        for (row in 0 until batch.size) {
+            if (window.isTimeBased) {
+                val time = if (timeColumn >= 0) batch.longs[timeColumn]!![row] * timeFieldNanos else receivedNanos
+                if (!started || time - origin < (pane - panes) * window.slide) {
+                    restart(time)
+                }
+                val sinceOrigin = time - origin
+                if (sinceOrigin >= 0 && sinceOrigin / window.slide > pane) advanceTo(sinceOrigin / window.slide)
+                addSample(batch, row)
+            } else {
+                if (!started) restart(0)
+                addSample(batch, row)
+                samples++
+                if (samples % window.slide == 0L) advanceTo(pane + 1)
+            }
+        }
+    }
+
+    /**
+     * Completes the panes that ended before [nowNanos], emitting their windows
+     * even though no later sample has arrived. Only applies to [isReceiveTimed] windows,
+     * as the time of a device's own timestamps is not known until the next sample.
+     *
+     * @param nowNanos The current time, on [System.nanoTime]'s clock
+     * @return Whether any pane was completed
+     */
+    fun flush(nowNanos: Long): Boolean {
+        if (!started || !isReceiveTimed) return false
+        val current = (nowNanos - origin) / window.slide
+        if (nowNanos < origin || current <= pane) return false
+        advanceTo(current)
+        return true
+    }
+
+    private fun restart(origin: Long) {
+        // Emit every window still holding samples before starting again
+        if (started) advanceTo(pane + panes)
+        this.origin = origin
+        started = true
+        samples = 0
+        pane = 0
+        counts.fill(0)
+    }
+
+    /**
+     * Adds a sample to the current pane, which it falls in or, if it is a little
+     * out of order, which is the closest pane still open
+     */
+    private fun addSample(batch: TelemetryBatch, row: Int) {
+        val slot = (pane % panes).toInt()
+        val first = counts[slot] == 0
+        counts[slot]++
+        val base = slot * columns
+        for (column in 0 until columns) {
+            val value = batch.doubles[column]?.get(row) ?: batch.longs[column]!![row].toDouble()
+            val i = base + column
+            if (first) {
+                mins[i] = value
+                maxes[i] = value
+                sums[i] = value
+            } else {
+                mins[i] = Math.min(mins[i], value)
+                maxes[i] = Math.max(maxes[i], value)
+                sums[i] += value
+            }
+            lasts[i] = value
+        }
+    }
+
+    /**
+     * Completes every pane before [target], emitting the windows that end with them,
+     * and makes [target] the current pane
+     */
+    private fun advanceTo(target: Long) {
+        // After a full window of empty panes every window would be empty, so skip straight to the target
+        val last = minOf(target, pane + panes)
+        while (pane < last) {
+            emitWindowEndingAt(pane)
+            pane++
+            counts[(pane % panes).toInt()] = 0
+        }
+        if (pane < target) {
+            pane = target
+            counts.fill(0)
+        }
+    }
+
+    private fun emitWindowEndingAt(endPane: Long) {
+        var count = 0
+        for (slot in 0 until panes) count += counts[slot]
+        if (count == 0) return
+        val min = DoubleArray(columns) { Double.POSITIVE_INFINITY }
+        val max = DoubleArray(columns) { Double.NEGATIVE_INFINITY }
+        val sum = DoubleArray(columns)
+        val last = DoubleArray(columns)
+        // Oldest pane first, so that the last value comes from the newest pane with samples
+        for (p in endPane - panes + 1..endPane) {
+            if (p < 0) continue
+            val slot = (p % panes).toInt()
+            if (counts[slot] == 0) continue
+            val base = slot * columns
+            for (column in 0 until columns) {
+                min[column] = Math.min(min[column], mins[base + column])
+                max[column] = Math.max(max[column], maxes[base + column])
+                sum[column] += sums[base + column]
+                last[column] = lasts[base + column]
+            }
+        }
+        val end = origin + (endPane + 1) * window.slide
+        // The first windows of a sliding window start before the first sample, so are cut short
+        emit(WindowAggregate(format, maxOf(end - window.size, origin), end, count, min, max, sum, last))
+    }
+
+    companion object {
+        /**
+         * The shortest interval at which receive-time windows are flushed, however short their slide
+         */
+        val MIN_FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10)
+
+        /**
+         * @return The index of the window's time column in [format], or -1 if it uses the time samples are received
+         * @throws IllegalArgumentException If the format has no integer column with the window's time field's name
+         */
+        fun timeColumnOf(format: TelemetryFormat, window: WindowOptions): Int {
+            val name = window.timeField ?: return -1
+            val column = format.columnIndex(name)
+            require(column >= 0 && format.fieldTypes[column] == TelemetryFormat.FieldType.LONG) {
+                "The time field $name must be an integer column of the format"
+            }
+            return column
+        }
+    }
+}
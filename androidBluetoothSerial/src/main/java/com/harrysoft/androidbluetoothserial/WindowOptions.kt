@@ -0,0 +1,150 @@
+package com.harrysoft.androidbluetoothserial
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Describes the windows that [BluetoothSerialDevice.openAggregateStream] summarises samples over.
+ * Create instances using [Builder].
+ *
+ * A window is either a number of samples or a length of time, and each window starts
+ * [slide] after the previous one. Windows are tumbling, each sample falling into exactly
+ * one window, when the slide is the same as the size, which is the default, and sliding,
+ * overlapping one another, when it is smaller. The size must be a whole number of slides.
+ *
+ * Time windows are measured by the time each sample was received, which is the same for
+ * all the samples read in one chunk, or by a [timeField] holding the device's own
+ * timestamp, which is more accurate when the connection delivers samples in bursts.
+ * They start at the first sample's time. A window measured by receive time is emitted
+ * shortly after it ends, even if the device has gone quiet, but one measured by [timeField]
+ * is only emitted once a later sample shows it has ended, so the last window before a
+ * silence is held until the device sends again.
+ */
+class WindowOptions private constructor(builder: Builder) {
+    /**
+     * @return Whether windows are measured in time, rather than in samples
+     */
+    val isTimeBased: Boolean = builder.timeBased
+
+    /**
+     * @return The size of each window: a number of samples, or
+     * a number of nanoseconds if the windows are [isTimeBased]
+     */
+    val size: Long = builder.size
+
+    /**
+     * @return How far each window starts after the previous one, in the same units as [size]
+     */
+    val slide: Long = builder.slide ?: builder.size
+
+    /**
+     * @return The name of the [TelemetryFormat.FieldType.LONG] column holding each sample's
+     * timestamp, or null to use the time each sample was received
+     */
+    val timeField: String? = builder.timeField
+
+    /**
+     * @return The unit of the values in [timeField]
+     */
+    val timeFieldUnit: TimeUnit = builder.timeFieldUnit
+
+    /**
+     * @return A Builder initialised with these options
+     */
+    fun toBuilder(): Builder = Builder(this)
+
+    class Builder() {
+        internal var timeBased = true
+        internal var size = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WINDOW_MILLIS)
+        internal var slide: Long? = null
+        internal var timeField: String? = null
+        internal var timeFieldUnit = TimeUnit.MILLISECONDS
+
+        internal constructor(options: WindowOptions) : this() {
+            timeBased = options.isTimeBased
+            size = options.size
+            slide = options.slide
+            timeField = options.timeField
+            timeFieldUnit = options.timeFieldUnit
+        }
+
+        /**
+         * Makes the windows time-based
+         *
+         * @param size The length of each window
+         * @param unit The unit of [size]
+         */
+        fun size(size: Long, unit: TimeUnit) = apply {
+            require(size > 0) { "size must be positive" }
+            this.timeBased = true
+            this.size = unit.toNanos(size)
+            this.slide = null
+        }
+
+        /**
+         * Makes the windows count-based
+         *
+         * @param size The number of samples in each window
+         */
+        fun sizeInSamples(size: Long) = apply {
+            require(size > 0) { "size must be positive" }
+            this.timeBased = false
+            this.size = size
+            this.slide = null
+        }
+
+        /**
+         * Makes time-based windows slide. Call after [size].
+         *
+         * @param slide How long after the previous window each window starts
+         * @param unit The unit of [slide]
+         */
+        fun slide(slide: Long, unit: TimeUnit) = apply {
+            check(timeBased) { "The windows are not time-based" }
+            require(slide > 0) { "slide must be positive" }
+            this.slide = unit.toNanos(slide)
+        }
+
+        /**
+         * Makes count-based windows slide. Call after [sizeInSamples].
+         *
+         * @param slide How many samples after the previous window each window starts
+         */
+        fun slideInSamples(slide: Long) = apply {
+            check(!timeBased) { "The windows are not count-based" }
+            require(slide > 0) { "slide must be positive" }
+            this.slide = slide
+        }
+
+        /**
+         * @param name The name of the integer column holding each sample's timestamp,
+         * or null to use the time each sample was received
+         * @param unit The unit of the timestamps
+         */
+        fun timeField(name: String?, unit: TimeUnit) = apply {
+            this.timeField = name
+            this.timeFieldUnit = unit
+        }
+
+        fun build(): WindowOptions {
+            val slide = slide ?: size
+            require(slide <= size && size % slide == 0L) { "The size must be a whole number of slides" }
+            require(size / slide <= MAX_SLIDES_PER_WINDOW) { "A window may span at most $MAX_SLIDES_PER_WINDOW slides" }
+            return WindowOptions(this)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_MILLIS = 100L
+
+        /**
+         * The most slides one window may span, as the state kept per window is proportional to it
+         */
+        const val MAX_SLIDES_PER_WINDOW = 1024L
+
+        /**
+         * Tumbling windows of [DEFAULT_WINDOW_MILLIS], measured by the time samples are received
+         */
+        @JvmField
+        val DEFAULT = Builder().build()
+    }
+}
@@ -0,0 +1,433 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.CompletableEmitter
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * A message waiting to be written by a [WriteQueue], package-private
+ */
+internal open class PendingWrite(val bytes: ByteArray, val priority: SendPriority = SendPriority.NORMAL) {
+    /**
+     * The value of System.nanoTime() when the message was queued
+     */
+    var queuedNanos = 0L
+
+    /**
+     * The number of bytes written so far, for a message written in chunks
+     */
+    var written = 0
+
+    /**
+     * The generation of the connection whose message credit it holds, or 0 if it holds none
+     */
+    var creditGeneration = 0
+
+    /**
+     * @return Whether the sender has lost interest, in which case the message is skipped.
+     * A message is never abandoned once its first chunk has been written.
+     */
+    open val isCancelled: Boolean get() = false
+
+    open fun onWritten() {
+    }
+
+    open fun onFailed(error: Throwable) {
+    }
+}
+
+/**
+ * A PendingWrite that reports to an RxJava Completable, package-private
+ */
+internal class CompletablePendingWrite(bytes: ByteArray, priority: SendPriority, private val emitter: CompletableEmitter) : PendingWrite(bytes, priority) {
+    override val isCancelled: Boolean get() = emitter.isDisposed
+
+    override fun onWritten() {
+        emitter.onComplete()
+    }
+
+    override fun onFailed(error: Throwable) {
+        emitter.tryOnError(error)
+    }
+}
+
+/**
+ * Lock-free multi-producer queues of messages, one per [SendPriority], that are
+ * drained by a single writer thread, package-private. The writer always takes
+ * from the most urgent queue that has a message, and coalesces messages of that
+ * priority into one write of up to [maxBatchBytes], optionally waiting up to
+ * [lingerNanos] for more to arrive while the batch has room and nothing more
+ * urgent is waiting, and then reports completion to each message individually.
+ * A message larger than [chunkBytes] is written a chunk at a time, and more
+ * urgent messages are written between its chunks, so an
+ * urgent message waits for at most one chunk or batch rather than for
+ * everything queued ahead of it.
+ * If a write fails and the [DeviceConnection] recovers, the writer waits for
+ * the new transport and writes the batch again, and every chunked message from its
+ * start, so a message that was partly written before the connection dropped
+ * may be received twice. While the connection is being recovered at most
+ * [outageCapacity] messages may be queued.
+ * If the device uses flow control, the writer spends [credits] before writing,
+ * one per message or one per byte, splitting batches and chunks into
+ * whatever the device has granted, and waits whenever it has run out.
+ * Credit is only spent on the connection that granted it, so a message
+ * written again after a reconnect spends the new connection's credit.
+ */
+internal class WriteQueue(
+        private val name: String,
+        private val connection: DeviceConnection,
+        private val maxBatchBytes: Int,
+        private val lingerNanos: Long,
+        private val chunkBytes: Int,
+        private val outageCapacity: Int,
+        private val metrics: DeviceMetrics,
+        private val recorder: TrafficRecorder?,
+        private val credits: CreditGate?
+) {
+    private val queues = Array(PRIORITIES.size) { ConcurrentLinkedQueue<PendingWrite>() }
+    private val queued = AtomicInteger()
+    private val started = AtomicBoolean(false)
+    @Volatile private var closed = false
+    @Volatile private var writerParked = false
+    @Volatile private var writer: Thread? = null
+
+    private val byteCredits = credits?.takeIf { it.options.unit == FlowControlOptions.CreditUnit.BYTES }
+    private val messageCredits = credits?.takeIf { it.options.unit == FlowControlOptions.CreditUnit.MESSAGES }
+
+    private val batchBuffer = ByteArray(maxBatchBytes)
+    private val batch = ArrayList<PendingWrite>()
+
+    /**
+     * The chunked message being written at each priority, owned by the writer thread.
+     * Later messages of the same priority wait until it has been written.
+     */
+    private val chunked = arrayOfNulls<PendingWrite>(PRIORITIES.size)
+
+    /**
+     * The transport the writer last wrote to, owned by the writer thread
+     */
+    private var lastTransport: SerialTransport? = null
+
+    constructor(name: String, connection: DeviceConnection, options: DeviceOptions, metrics: DeviceMetrics, credits: CreditGate?) :
+            this(name, connection, options.maxWriteBatchBytes, TimeUnit.MICROSECONDS.toNanos(options.writeLingerMicros),
+                    options.sendChunkBytes, options.reconnectPolicy?.outageBufferCapacity ?: Int.MAX_VALUE, metrics, options.recorder,
+                    credits)
+
+    /**
+     * @return The number of messages waiting to be written
+     */
+    val backlog: Int get() = queued.get()
+
+    fun enqueue(write: PendingWrite) {
+        if (closed) {
+            fail(write, IOException("Device connection closed"))
+            return
+        }
+        if (queued.incrementAndGet() > outageCapacity && connection.isReconnecting) {
+            queued.decrementAndGet()
+            fail(write, IOException("Too many messages queued while reconnecting"))
+            return
+        }
+        write.queuedNanos = System.nanoTime()
+        queues[write.priority.ordinal].offer(write)
+        if (started.compareAndSet(false, true)) {
+            val thread = Thread(::runWriter, name)
+            thread.isDaemon = true
+            writer = thread
+            thread.start()
+        } else if (writerParked) {
+            LockSupport.unpark(writer)
+        }
+        if (closed) {
+            failRemaining()
+        }
+    }
+
+    fun close() {
+        closed = true
+        credits?.close()
+        LockSupport.unpark(writer)
+        if (!started.get()) failRemaining()
+    }
+
+    private fun runWriter() {
+        while (!closed) {
+            val priority = nextPriority()
+            if (priority < 0) {
+                park(0, PRIORITIES.size - 1)
+                continue
+            }
+            try {
+                val current = chunked[priority]
+                if (current != null) {
+                    writeChunk(current)
+                    continue
+                }
+                val first = poll(priority) ?: continue
+                if (first.isCancelled) continue
+                if (first.bytes.size > chunkBytes) {
+                    chunked[priority] = first
+                    writeChunk(first)
+                } else {
+                    writeBatch(first)
+                }
+            } catch (e: Exception) {
+                chunked[priority] = null
+                for (write in batch) fail(write, e)
+                batch.clear()
+            }
+        }
+        for (priority in chunked.indices) {
+            chunked[priority]?.let { fail(it, IOException("Device connection closed")) }
+            chunked[priority] = null
+        }
+        failRemaining()
+    }
+
+    /**
+     * @return The ordinal of the most urgent priority with a message to write, or -1 if there are none
+     */
+    private fun nextPriority(): Int {
+        for (priority in queues.indices) {
+            if (chunked[priority] != null || !queues[priority].isEmpty()) return priority
+        }
+        return -1
+    }
+
+    /**
+     * @return Whether a message more urgent than [priority] is waiting
+     */
+    private fun hasMoreUrgent(priority: Int): Boolean {
+        for (i in 0 until priority) {
+            if (chunked[i] != null || !queues[i].isEmpty()) return true
+        }
+        return false
+    }
+
+    private fun writeBatch(first: PendingWrite) {
+        batch.add(first)
+        val transport = acquireMessageCredit(first)
+        if (first.bytes.size >= maxBatchBytes) {
+            write(transport, first.bytes, first.bytes.size)
+            completeBatch()
+            return
+        }
+        val generation = generationOf(transport)
+        val priority = first.priority.ordinal
+        val queue = queues[priority]
+        System.arraycopy(first.bytes, 0, batchBuffer, 0, first.bytes.size)
+        var length = first.bytes.size
+        val deadline = System.nanoTime() + lingerNanos
+        while (true) {
+            val peeked = queue.peek()
+            if (peeked == null) {
+                val remaining = deadline - System.nanoTime()
+                if (remaining <= 0 || length == maxBatchBytes || closed || hasMoreUrgent(priority)) break
+                park(remaining, priority)
+                continue
+            }
+            if (length + peeked.bytes.size > maxBatchBytes || !tryAcquireMessageCredit(generation)) break
+            val next = poll(priority) ?: break
+            if (next.isCancelled) {
+                // Its credit was spent on it, but it will not be written
+                messageCredits?.refund(1, generation)
+                continue
+            }
+            if (messageCredits != null) next.creditGeneration = generation
+            System.arraycopy(next.bytes, 0, batchBuffer, length, next.bytes.size)
+            length += next.bytes.size
+            batch.add(next)
+        }
+        write(transport, batchBuffer, length)
+        completeBatch()
+    }
+
+    /**
+     * Writes the next chunk of a message that is larger than [chunkBytes],
+     * completing it once its last chunk has been written.
+     */
+    private fun writeChunk(write: PendingWrite) {
+        batch.add(write)
+        var transport = currentTransport()
+        var length: Int
+        while (true) {
+            try {
+                spendMessageCredit(write, transport)
+                length = minOf(chunkBytes, write.bytes.size - write.written)
+                writeOut(transport, write.bytes, write.written, length)
+                break
+            } catch (e: IOException) {
+                transport = recover(transport, e)
+            }
+        }
+        write.written += length
+        if (write.written == write.bytes.size) {
+            chunked[write.priority.ordinal] = null
+            completeBatch()
+        } else {
+            batch.clear()
+        }
+    }
+
+    /**
+     * Writes [length] bytes of the batch to [transport], waiting for the connection
+     * to recover and trying again if it drops, until it cannot be recovered.
+     */
+    private fun write(transport: SerialTransport, bytes: ByteArray, length: Int) {
+        var current = transport
+        while (true) {
+            try {
+                for (write in batch) spendMessageCredit(write, current)
+                writeOut(current, bytes, 0, length)
+                return
+            } catch (e: IOException) {
+                current = recover(current, e)
+            }
+        }
+    }
+
+    /**
+     * Waits for the connection that [failed] belonged to to be replaced, after a write to it threw [error]
+     *
+     * @return The new transport
+     * @throws IOException [error], if the connection will not be recovered
+     */
+    private fun recover(failed: SerialTransport, error: IOException): SerialTransport {
+        if (closed) throw error
+        if (error !is ConnectionReplacedException) metrics.writeErrors.incrementAndGet()
+        connection.recover(failed) ?: throw error
+        return currentTransport()
+    }
+
+    /**
+     * @return The connection's transport. If it has been replaced since the writer last wrote,
+     * whether the writer or the reader noticed the drop, every chunked message at any priority
+     * is started again, as its earlier chunks went to the connection that dropped.
+     */
+    private fun currentTransport(): SerialTransport {
+        val transport = connection.transport
+        if (transport !== lastTransport) {
+            for (write in chunked) {
+                write?.written = 0
+            }
+            lastTransport = transport
+        }
+        return transport
+    }
+
+    /**
+     * Writes and flushes [length] bytes, a piece at a time if they must wait for the device to grant credit.
+     * Credit spent on a piece that could not be written is refunded.
+     */
+    private fun writeOut(transport: SerialTransport, bytes: ByteArray, offset: Int, length: Int) {
+        val generation = generationOf(transport)
+        val out = transport.outputStream
+        var written = 0
+        while (written < length) {
+            val allowed = byteCredits?.acquire((length - written).toLong(), generation)?.toInt() ?: length - written
+            try {
+                out.write(bytes, offset + written, allowed)
+                out.flush()
+            } catch (e: IOException) {
+                byteCredits?.refund(allowed.toLong(), generation)
+                throw e
+            }
+            recorder?.record(TraceRecord.Direction.SENT, bytes, offset + written, allowed)
+            written += allowed
+        }
+    }
+
+    /**
+     * Spends a message credit on [write], if the device uses message credits,
+     * waiting for a replaced connection to be recovered as for a failed write
+     *
+     * @return The transport the credit may be spent on
+     */
+    private fun acquireMessageCredit(write: PendingWrite): SerialTransport {
+        var transport = currentTransport()
+        while (true) {
+            try {
+                spendMessageCredit(write, transport)
+                return transport
+            } catch (e: IOException) {
+                transport = recover(transport, e)
+            }
+        }
+    }
+
+    /**
+     * Spends a message credit of [transport]'s connection on [write],
+     * if the device uses message credits and it does not already hold one
+     */
+    private fun spendMessageCredit(write: PendingWrite, transport: SerialTransport) {
+        val credits = messageCredits ?: return
+        val generation = generationOf(transport)
+        if (write.creditGeneration == generation) return
+        credits.acquire(1, generation)
+        write.creditGeneration = generation
+    }
+
+    /**
+     * @return Whether another message may be added to the batch, which is always the case without message credits
+     */
+    private fun tryAcquireMessageCredit(generation: Int): Boolean = messageCredits?.tryAcquireOne(generation) ?: true
+
+    /**
+     * @return The generation of the credit that may be spent writing to [transport]
+     */
+    private fun generationOf(transport: SerialTransport): Int = (transport as? FlowControlTransport)?.generation ?: 0
+
+    private fun poll(priority: Int): PendingWrite? {
+        val write = queues[priority].poll()
+        if (write != null) queued.decrementAndGet()
+        return write
+    }
+
+    private fun completeBatch() {
+        val now = System.nanoTime()
+        var bytes = 0L
+        for (write in batch) {
+            bytes += write.bytes.size
+            metrics.sendLatency.record(now - write.queuedNanos)
+            write.onWritten()
+        }
+        metrics.bytesSent.addAndGet(bytes)
+        metrics.messagesSent.addAndGet(batch.size.toLong())
+        batch.clear()
+    }
+
+    private fun fail(write: PendingWrite, error: Throwable) {
+        metrics.failedSends.incrementAndGet()
+        write.onFailed(error)
+    }
+
+    /**
+     * Parks the writer until a producer wakes it, or for at most [nanos] if positive.
+     * It does not park if a message of [priority] or a more urgent one is waiting, but
+     * less urgent messages do not stop it, so that lingering on one priority does not spin.
+     */
+    private fun park(nanos: Long, priority: Int) {
+        writerParked = true
+        if (queues[priority].isEmpty() && !hasMoreUrgent(priority) && !closed) {
+            if (nanos > 0) LockSupport.parkNanos(this, nanos) else LockSupport.park(this)
+        }
+        writerParked = false
+    }
+
+    private fun failRemaining() {
+        for (priority in queues.indices) {
+            while (true) {
+                val write = poll(priority) ?: break
+                fail(write, IOException("Device connection closed"))
+            }
+        }
+    }
+
+    private companion object {
+        val PRIORITIES = SendPriority.values()
+    }
+}
@@ -0,0 +1,166 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.subscribers.TestSubscriber
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class BoundedEmitterTest {
+    private val metrics = DeviceMetrics()
+    private val discarded: MutableList<Int> = Collections.synchronizedList(ArrayList())
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun blockParksTheProducerUntilThereIsRoom() {
+        val subscriber = TestSubscriber<Int>(0)
+        val emitter = emitter(subscriber, 2, BackpressurePolicy.BLOCK)
+        val produced = CountDownLatch(1)
+        val producer = Thread {
+            (1..4).forEach(emitter::onNext)
+            emitter.onComplete()
+            produced.countDown()
+        }
+        producer.start()
+        awaitParked(producer)
+        assertEquals(1, metrics.overflows.get())
+
+        subscriber.request(1)
+        // Taking one item lets 3 in, and 4 then blocks in turn
+        while (metrics.overflows.get() < 2) Thread.sleep(1)
+        awaitParked(producer)
+        subscriber.assertValues(1)
+        subscriber.request(Long.MAX_VALUE)
+        assertTrue(produced.await(5, TimeUnit.SECONDS))
+
+        subscriber.assertValues(1, 2, 3, 4)
+        subscriber.assertComplete()
+        assertEquals(2, metrics.overflows.get())
+        assertEquals(0, metrics.dropped.get())
+        assertEquals(4, metrics.messagesReceived.get())
+        assertTrue(discarded.isEmpty())
+    }
+
+    @Test(timeout = 10_000)
+    fun cancellingReleasesABlockedProducer() {
+        val subscriber = TestSubscriber<Int>(0)
+        val emitter = emitter(subscriber, 1, BackpressurePolicy.BLOCK)
+        val producer = Thread { (1..3).forEach(emitter::onNext) }
+        producer.start()
+        awaitParked(producer)
+        subscriber.cancel()
+        producer.join(5_000)
+
+        assertFalse(producer.isAlive)
+        subscriber.assertNoValues()
+        // The buffered item, the one the producer was blocked on, and the one offered after cancelling
+        assertEquals(listOf(1, 2, 3), discarded.sorted())
+        assertEquals(0, metrics.dropped.get())
+    }
+
+    @Test
+    fun dropNewestDiscardsWhatDoesNotFit() {
+        val subscriber = TestSubscriber<Int>(0)
+        val emitter = emitter(subscriber, 2, BackpressurePolicy.DROP_NEWEST)
+        (1..5).forEach(emitter::onNext)
+        emitter.onComplete()
+        subscriber.request(Long.MAX_VALUE)
+
+        subscriber.assertValues(1, 2)
+        subscriber.assertComplete()
+        assertEquals(listOf(3, 4, 5), discarded)
+        assertEquals(3, metrics.overflows.get())
+        assertEquals(3, metrics.dropped.get())
+        assertEquals(5, metrics.messagesReceived.get())
+    }
+
+    @Test
+    fun dropOldestDiscardsTheLongestBuffered() {
+        val subscriber = TestSubscriber<Int>(0)
+        val emitter = emitter(subscriber, 2, BackpressurePolicy.DROP_OLDEST)
+        (1..5).forEach(emitter::onNext)
+        subscriber.request(1)
+        emitter.onNext(6)
+        emitter.onError(IllegalStateException())
+        subscriber.request(Long.MAX_VALUE)
+
+        subscriber.assertValues(4, 5, 6)
+        subscriber.assertError(IllegalStateException::class.java)
+        assertEquals(listOf(1, 2, 3), discarded)
+        assertEquals(3, metrics.overflows.get())
+        assertEquals(3, metrics.dropped.get())
+    }
+
+    @Test
+    fun keepLatestDeliversOnlyTheNewest() {
+        val subscriber = TestSubscriber<Int>(0)
+        // As BoundedReadFlowable does, KEEP_LATEST buffers a single item
+        val emitter = emitter(subscriber, 1, BackpressurePolicy.KEEP_LATEST)
+        (1..4).forEach(emitter::onNext)
+        subscriber.request(1)
+        subscriber.assertValues(4)
+        emitter.onNext(5)
+        emitter.onNext(6)
+        emitter.onComplete()
+        subscriber.request(1)
+
+        subscriber.assertValues(4, 6)
+        subscriber.assertComplete()
+        assertEquals(listOf(1, 2, 3, 5), discarded)
+        assertEquals(4, metrics.overflows.get())
+        assertEquals(4, metrics.dropped.get())
+    }
+
+    @Test
+    fun itemsRequestedInAdvanceAreNotBuffered() {
+        val subscriber = TestSubscriber<Int>(3)
+        val emitter = emitter(subscriber, 1, BackpressurePolicy.DROP_NEWEST)
+        (1..3).forEach(emitter::onNext)
+
+        subscriber.assertValues(1, 2, 3)
+        assertEquals(0, metrics.overflows.get())
+        assertTrue(discarded.isEmpty())
+    }
+
+    @Test(timeout = 10_000)
+    fun deviceReportsOverflowsInItsStats() {
+        val options = DeviceOptions.Builder()
+                .streamBufferCapacity(5)
+                .backpressurePolicy(BackpressurePolicy.KEEP_LATEST)
+                .build()
+        val device = manager.openSerialDevice(MAC, options).blockingGet()
+        val messages = device.openMessageStream().test(0)
+        factory.peer(MAC)!!.outputStream.write("a\nb\nc\n".toByteArray())
+        while (device.droppedMessageCount < 2) Thread.sleep(10)
+        messages.request(1)
+
+        messages.assertValues("c")
+        assertEquals(2, device.overflowCount)
+        assertEquals(2, device.droppedMessageCount)
+        assertEquals(2, device.stats.droppedMessageCount)
+    }
+
+    private fun emitter(subscriber: TestSubscriber<Int>, capacity: Int, policy: BackpressurePolicy): BoundedEmitter<Int> {
+        val emitter = BoundedEmitter(subscriber, capacity, policy, metrics) { discarded.add(it) }
+        subscriber.onSubscribe(emitter)
+        return emitter
+    }
+
+    private fun awaitParked(thread: Thread) {
+        while (thread.state != Thread.State.WAITING) Thread.sleep(1)
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
@@ -0,0 +1,170 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.zip.Deflater
+
+class CompressionTest {
+    private val executor = Executors.newSingleThreadExecutor()
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test(timeout = 10_000)
+    fun acceptedHandshakeCompressesBothWays() {
+        val options = CompressionOptions.Builder().dictionary("temperature=".toByteArray()).build()
+        val local = MemoryTransport.createPair()
+        val device = executor.submit(Callable { options.accept(local.peer) })
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        transport.negotiate()
+        val accepted = device.get(5, TimeUnit.SECONDS)
+        assertTrue(transport.isCompressed)
+
+        transport.outputStream.write("temperature=21\n".toByteArray())
+        transport.outputStream.flush()
+        assertEquals("temperature=21", readLine(accepted.inputStream))
+        accepted.outputStream.write("temperature=22\n".toByteArray())
+        accepted.outputStream.flush()
+        assertEquals("temperature=22", readLine(transport.inputStream))
+        transport.close()
+        accepted.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun refusedHandshakeCarriesOnUncompressed() {
+        val options = CompressionOptions.Builder().build()
+        val local = MemoryTransport.createPair()
+        val peer = local.peer
+        val device = executor.submit(Callable {
+            val handshake = readLine(peer.inputStream)
+            peer.outputStream.write("early\n#COMPRESS NO\n".toByteArray())
+            handshake
+        })
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        transport.negotiate()
+        assertEquals("#COMPRESS deflate:0", device.get(5, TimeUnit.SECONDS))
+        assertFalse(transport.isCompressed)
+
+        // Lines sent before the reply are kept, and the reply itself is not delivered
+        peer.outputStream.write("later\n".toByteArray())
+        assertEquals("early", readLine(transport.inputStream))
+        assertEquals("later", readLine(transport.inputStream))
+        transport.outputStream.write("plain\n".toByteArray())
+        assertEquals("plain", readLine(peer.inputStream))
+        transport.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun lateReplyIsRefusedAndDiscarded() {
+        val options = CompressionOptions.Builder().handshakeTimeoutMillis(50).build()
+        val local = MemoryTransport.createPair()
+        val peer = local.peer
+        // Part of a line, which may turn out to be the reply, arrives before the timeout
+        peer.outputStream.write("#COMP".toByteArray())
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        transport.negotiate()
+        assertFalse(transport.isCompressed)
+        assertEquals("#COMPRESS deflate:0", readLine(peer.inputStream))
+        assertEquals(CompressingTransport.REFUSED, readLine(peer.inputStream))
+
+        peer.outputStream.write("RESS OK\n#COMPRESSED data\n#COMPRESS OK\nafter\n".toByteArray())
+        assertEquals("#COMPRESSED data", readLine(transport.inputStream))
+        // Only the first reply is discarded
+        assertEquals("#COMPRESS OK", readLine(transport.inputStream))
+        assertEquals("after", readLine(transport.inputStream))
+        transport.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun lateReplySplitAcrossReadsIsDiscarded() {
+        val options = CompressionOptions.Builder().handshakeTimeoutMillis(50).build()
+        val local = MemoryTransport.createPair()
+        val peer = local.peer
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        transport.negotiate()
+        assertFalse(transport.isCompressed)
+
+        val reader = executor.submit(Callable { readLine(transport.inputStream) })
+        for (b in "#COMPRESS OK\r\nfirst\n".toByteArray()) {
+            peer.outputStream.write(b.toInt())
+            Thread.sleep(1)
+        }
+        assertEquals("first", reader.get(5, TimeUnit.SECONDS))
+        transport.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun dataInTheSameReadAsTheReplyIsDecompressed() {
+        val options = CompressionOptions.Builder().build()
+        val local = MemoryTransport.createPair()
+        val deflater = Deflater(options.level, true)
+        deflater.setInput("hello\n".toByteArray())
+        val compressed = ByteArray(64)
+        val count = deflater.deflate(compressed, 0, compressed.size, Deflater.SYNC_FLUSH)
+        deflater.end()
+        local.peer.outputStream.write("#COMPRESS OK\n".toByteArray() + compressed.copyOf(count))
+
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        transport.negotiate()
+        assertTrue(transport.isCompressed)
+        assertEquals("hello", readLine(transport.inputStream))
+        transport.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun closingTheTransportAbortsTheHandshakeAtOnce() {
+        val options = CompressionOptions.Builder().handshakeTimeoutMillis(5_000).build()
+        val local = MemoryTransport.createPair()
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        executor.submit {
+            Thread.sleep(50)
+            transport.close()
+        }
+        assertHandshakeFailsWithin(transport, 2_000)
+    }
+
+    @Test(timeout = 10_000)
+    fun peerHangingUpEndsTheHandshakeAtOnce() {
+        val options = CompressionOptions.Builder().handshakeTimeoutMillis(5_000).build()
+        val local = MemoryTransport.createPair()
+        val transport = CompressingTransport(local, DeflateCodec(options), null, true)
+        executor.submit {
+            Thread.sleep(50)
+            local.peer.outputStream.close()
+        }
+        assertHandshakeFailsWithin(transport, 2_000)
+    }
+
+    private fun assertHandshakeFailsWithin(transport: CompressingTransport, millis: Long) {
+        val started = System.nanoTime()
+        try {
+            transport.negotiate()
+            fail("The handshake did not fail")
+        } catch (expected: IOException) {
+        }
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+        assertTrue("The handshake took ${elapsed}ms to fail", elapsed < millis)
+    }
+
+    private fun readLine(input: InputStream): String {
+        val line = ByteArrayOutputStream()
+        while (true) {
+            val b = input.read()
+            if (b < 0) throw IOException("Stream ended")
+            if (b == '\n'.toInt()) return line.toString("US-ASCII").trimEnd('\r')
+            line.write(b)
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.harrysoft.androidbluetoothserial
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class CoroutinesTest {
+    private val memory = MemoryTransportFactory()
+    @Volatile private var stalled: StalledTransport? = null
+    private val manager = BluetoothManager.create(object : TransportFactory {
+        override fun createTransport(mac: String): SerialTransport = stalled ?: memory.createTransport(mac)
+    })
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun connectsOnAnUnconfinedDispatcher() {
+        val device = runBlocking { manager.connect(MAC, dispatcher = Dispatchers.Unconfined) }
+        assertEquals(MAC, device.device.mac)
+    }
+
+    @Test(timeout = 10_000)
+    fun cancellingAbortsAConnectBlockedInTheTransport() {
+        val transport = StalledTransport()
+        stalled = transport
+        runBlocking {
+            val job = launch(Dispatchers.Default) { manager.connect(MAC) }
+            assertTrue(transport.connecting.await(5, TimeUnit.SECONDS))
+            job.cancelAndJoin()
+        }
+        assertTrue("The blocked connect was not aborted", transport.closed.await(5, TimeUnit.SECONDS))
+
+        // The abandoned attempt is not joined by the next one
+        stalled = null
+        val device = runBlocking { manager.connect(MAC) }
+        assertNotNull(memory.peer(MAC))
+        assertEquals(MAC, device.device.mac)
+    }
+
+    /**
+     * A transport whose connect blocks until it is closed
+     */
+    private class StalledTransport : SerialTransport {
+        val connecting = CountDownLatch(1)
+        val closed = CountDownLatch(1)
+
+        override val inputStream: InputStream get() = throw IOException("Not connected")
+        override val outputStream: OutputStream get() = throw IOException("Not connected")
+
+        override fun connect() {
+            connecting.countDown()
+            closed.await()
+            throw IOException("Connect aborted")
+        }
+
+        override fun close() {
+            closed.countDown()
+        }
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
@@ -0,0 +1,108 @@
+package com.harrysoft.androidbluetoothserial
+
+import io.reactivex.Flowable
+import io.reactivex.schedulers.TestScheduler
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+class DeliveryBatcherTest {
+    private val scheduler = TestScheduler()
+    // Each batch delivered, and each error, in the order they were delivered
+    private val events = ArrayList<Any>()
+
+    @Test
+    fun itemsWaitForTheWindowAndArriveInOrder() {
+        val batcher = batcher(maxBatchSize = 10)
+        (1..5).forEach(batcher::onNext)
+        scheduler.advanceTimeBy(WINDOW_MILLIS - 1, TimeUnit.MILLISECONDS)
+        assertTrue(events.isEmpty())
+        batcher.onNext(6)
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+
+        // The window starts at the first item, and later ones join its batch
+        assertEquals(listOf<Any>(listOf(1, 2, 3, 4, 5, 6)), events)
+        batcher.onNext(7)
+        scheduler.advanceTimeBy(WINDOW_MILLIS, TimeUnit.MILLISECONDS)
+        assertEquals(listOf(listOf(1, 2, 3, 4, 5, 6), listOf(7)), events)
+    }
+
+    @Test
+    fun batchesAreLimitedAndTheStreamIsBackpressured() {
+        val batcher = batcher(maxBatchSize = 3)
+        val requests = ArrayList<Long>()
+        Flowable.range(1, 20).doOnRequest { requests.add(it) }.subscribe(batcher)
+        scheduler.advanceTimeBy(WINDOW_MILLIS, TimeUnit.MILLISECONDS)
+
+        // Once the window has passed, the batches waiting follow one another straight away
+        assertEquals((1..20).chunked(3), events)
+        // Two batches ahead, then one more for each batch delivered
+        assertEquals(listOf(6L) + List(6) { 3L } + 2L, requests)
+    }
+
+    @Test
+    fun errorIsDeliveredAfterTheItemsBeforeIt() {
+        val batcher = batcher(maxBatchSize = 2)
+        val error = IOException()
+        Flowable.range(1, 5).concatWith(Flowable.error(error)).subscribe(batcher)
+        scheduler.advanceTimeBy(WINDOW_MILLIS, TimeUnit.MILLISECONDS)
+
+        assertEquals(listOf(listOf(1, 2), listOf(3, 4), listOf(5), error), events)
+    }
+
+    @Test
+    fun errorWithNothingWaitingWaitsForTheWindow() {
+        val batcher = batcher(maxBatchSize = 2)
+        val error = IOException()
+        batcher.onError(error)
+        assertTrue(events.isEmpty())
+        scheduler.advanceTimeBy(WINDOW_MILLIS, TimeUnit.MILLISECONDS)
+
+        assertEquals(listOf<Any>(error), events)
+    }
+
+    @Test
+    fun completionDeliversTheItemsBeforeItAndNothingMore() {
+        val batcher = batcher(maxBatchSize = 10)
+        Flowable.just(1, 2, 3).subscribe(batcher)
+        scheduler.advanceTimeBy(WINDOW_MILLIS * 10, TimeUnit.MILLISECONDS)
+
+        assertEquals(listOf<Any>(listOf(1, 2, 3)), events)
+    }
+
+    @Test
+    fun disposingDropsWaitingItemsAndCancelsTheStream() {
+        val batcher = batcher(maxBatchSize = 10)
+        var cancelled = false
+        Flowable.just(1, 2).concatWith(Flowable.never()).doOnCancel { cancelled = true }.subscribe(batcher)
+        batcher.dispose()
+        batcher.onNext(3)
+        batcher.onError(IOException())
+        scheduler.advanceTimeBy(WINDOW_MILLIS * 10, TimeUnit.MILLISECONDS)
+
+        assertTrue(cancelled)
+        assertTrue(batcher.isDisposed)
+        assertTrue(events.isEmpty())
+    }
+
+    @Test
+    fun disposingBeforeSubscribingCancelsTheStream() {
+        val batcher = batcher(maxBatchSize = 10)
+        batcher.dispose()
+        var requested = false
+        var cancelled = false
+        Flowable.just(1).doOnRequest { requested = true }.doOnCancel { cancelled = true }.subscribe(batcher)
+
+        assertTrue(cancelled)
+        assertFalse(requested)
+    }
+
+    private fun batcher(maxBatchSize: Int) = DeliveryBatcher<Int>(scheduler, WINDOW_MILLIS, maxBatchSize, { events.add(it) }, { events.add(it) })
+
+    private companion object {
+        const val WINDOW_MILLIS = 10L
+    }
+}
@@ -0,0 +1,157 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.TimeUnit
+
+class FlowControlTest {
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test
+    fun grantSplitAcrossReadsIsTaken() {
+        val gate = CreditGate(FlowControlOptions.Builder().build())
+        val generation = gate.reset()
+        val filtered = filter("a\n#CREDIT 12\r\nb\n#CREDIT 3\n", gate, generation)
+        assertEquals("a\nb\n", filtered)
+        assertEquals(15L, gate.available)
+    }
+
+    @Test
+    fun linesThatOnlyStartLikeGrantsArePassedThrough() {
+        val gate = CreditGate(FlowControlOptions.Builder().build())
+        val generation = gate.reset()
+        val input = "#CREDITS 5\n#CREDIT x\nx#CREDIT 5\n#CREDIT \n#CREDIT 5 \n#CRED\n#CREDIT 7"
+        assertEquals(input, filter(input, gate, generation))
+        assertEquals(0L, gate.available)
+    }
+
+    @Test
+    fun grantForReplacedConnectionIsIgnored() {
+        val gate = CreditGate(FlowControlOptions.Builder().build())
+        val stale = gate.reset()
+        val current = gate.reset()
+        assertEquals("", filter("#CREDIT 4\n", gate, stale))
+        assertEquals(0L, gate.available)
+        assertEquals("", filter("#CREDIT 4\n", gate, current))
+        assertEquals(4L, gate.available)
+    }
+
+    @Test(expected = ConnectionReplacedException::class)
+    fun acquireForReplacedConnectionFails() {
+        val gate = CreditGate(FlowControlOptions.Builder().initialCredits(10).build())
+        val stale = gate.reset()
+        gate.reset()
+        gate.acquire(1, stale)
+    }
+
+    @Test(timeout = 10_000)
+    fun sendsWaitingForCreditGoToTheNewConnectionAfterReconnecting() {
+        val options = DeviceOptions.Builder()
+                .reconnectPolicy(ReconnectPolicy.Builder().initialDelayMillis(0).jitter(0.0).build())
+                .flowControl(FlowControlOptions.Builder().initialCredits(5).build())
+                .build()
+        val device = manager.openSerialDevice(MAC, options).blockingGet()
+        val peer = factory.peer(MAC)!!
+        device.send("abcde").blockingAwait()
+        assertArrayEquals("abcde".toByteArray(), readExactly(peer.inputStream, 5))
+
+        // Out of credit, so this waits until the connection is replaced
+        val waiting = device.send("hello").test()
+        peer.close()
+        var replaced = factory.peer(MAC)
+        while (replaced === peer) {
+            Thread.sleep(10)
+            replaced = factory.peer(MAC)
+        }
+
+        // The new connection's initial credit is enough, so no grant is needed
+        assertArrayEquals("hello".toByteArray(), readExactly(replaced!!.inputStream, 5))
+        waiting.awaitTerminalEvent()
+        waiting.assertComplete()
+    }
+
+    @Test(timeout = 10_000)
+    fun sendsWaitingForCreditFailWhenTheConnectionEnds() {
+        val options = DeviceOptions.Builder()
+                .flowControl(FlowControlOptions.Builder().build())
+                .build()
+        val device = manager.openSerialDevice(MAC, options).blockingGet()
+        val waiting = device.send("hello").test()
+        factory.peer(MAC)!!.close()
+        waiting.awaitTerminalEvent()
+        waiting.assertError(IOException::class.java)
+
+        val late = device.send("again").test()
+        late.awaitTerminalEvent(5, TimeUnit.SECONDS)
+        late.assertError(IOException::class.java)
+    }
+
+    @Test(timeout = 10_000)
+    fun grantsReleaseQueuedMessages() {
+        val options = DeviceOptions.Builder()
+                .flowControl(FlowControlOptions.Builder().unit(FlowControlOptions.CreditUnit.MESSAGES).build())
+                .build()
+        val device = manager.openSerialDevice(MAC, options).blockingGet()
+        val peer = factory.peer(MAC)!!
+        val first = device.send("one\n").test()
+        val second = device.send("two\n").test()
+        peer.outputStream.write(FlowControlOptions.grantLine(1))
+        assertArrayEquals("one\n".toByteArray(), readExactly(peer.inputStream, 4))
+        assertTrue(first.awaitTerminalEvent(5, TimeUnit.SECONDS))
+        second.assertNotTerminated()
+        peer.outputStream.write(FlowControlOptions.grantLine(1))
+        assertArrayEquals("two\n".toByteArray(), readExactly(peer.inputStream, 4))
+        second.awaitTerminalEvent()
+        second.assertComplete()
+    }
+
+    /**
+     * @return [text] as read through a CreditFilterInputStream, a byte at a time so that every line is split across reads
+     */
+    private fun filter(text: String, gate: CreditGate, generation: Int): String {
+        val source = object : InputStream() {
+            private val bytes = ByteArrayInputStream(text.toByteArray(Charsets.US_ASCII))
+
+            override fun read(): Int = bytes.read()
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int = bytes.read(b, off, minOf(len, 1))
+        }
+        val filtered = CreditFilterInputStream(source, gate, generation)
+        val out = ByteArrayOutputStream()
+        val buffer = ByteArray(64)
+        while (true) {
+            val count = filtered.read(buffer, 0, buffer.size)
+            if (count < 0) break
+            out.write(buffer, 0, count)
+        }
+        return String(out.toByteArray(), Charsets.US_ASCII)
+    }
+
+    private fun readExactly(input: InputStream, length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        var read = 0
+        while (read < length) {
+            val count = input.read(bytes, read, length - read)
+            if (count < 0) throw IOException("Stream ended")
+            read += count
+        }
+        return bytes
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
@@ -0,0 +1,187 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.fail
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class FrameDecodersTest {
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test
+    fun delimitedFramesSplitAnywhere() {
+        assertDecodes(FrameDecoders.delimited("\r\n".toByteArray()), bytes("one\r\ntwo\r\n\r\nthree\r\n"),
+                bytes("one"), bytes("two"), bytes(""), bytes("three"))
+    }
+
+    @Test
+    fun delimiterThatOverlapsItselfIsFound() {
+        // After "aa" fails to continue as "aab", the decoder must still see the "aab" that ends at the next byte
+        assertDecodes(FrameDecoders.delimited(bytes("aab")), bytes("xaaabyaab"), bytes("xa"), bytes("y"))
+    }
+
+    @Test
+    fun lengthPrefixedFramesSplitAnywhere() {
+        assertDecodes(FrameDecoders.lengthPrefixed(2), bytes(0, 3) + bytes("abc") + bytes(0, 0) + bytes(0, 1) + bytes("d"),
+                bytes("abc"), bytes(""), bytes("d"))
+        assertDecodes(FrameDecoders.lengthPrefixed(4, ByteOrder.LITTLE_ENDIAN), bytes(2, 0, 0, 0) + bytes("ab") + bytes(1, 0, 0, 0) + bytes("c"),
+                bytes("ab"), bytes("c"))
+    }
+
+    @Test
+    fun varintLengthPrefixedFramesSplitAnywhere() {
+        val long = ByteArray(300) { (it % 251).toByte() }
+        assertDecodes(FrameDecoders.varintLengthPrefixed(), bytes(0xAC, 0x02) + long + bytes(1) + bytes("z"), long, bytes("z"))
+    }
+
+    @Test
+    fun slipFramesSplitAnywhere() {
+        val input = bytes(END) + bytes("a") + bytes(ESC, ESC_END) + bytes("b") + bytes(ESC, ESC_ESC) + bytes(END, END) + bytes("c") + bytes(END)
+        assertDecodes(FrameDecoders.slip(), input, bytes("a") + bytes(END) + bytes("b") + bytes(ESC), bytes("c"))
+    }
+
+    @Test
+    fun slipKeepsTheByteAfterABadEscape() {
+        // RFC 1055 leaves the byte after an invalid escape in the packet
+        assertDecodes(FrameDecoders.slip(), bytes(ESC) + bytes("x") + bytes("y") + bytes(END), bytes("xy"))
+    }
+
+    @Test
+    fun cobsFramesSplitAnywhere() {
+        val nonZero = ByteArray(254) { (it + 1).toByte() }
+        assertDecodes(FrameDecoders.cobs(),
+                bytes(0x01, 0x01, 0x00) +
+                        bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00) +
+                        bytes(0xFF) + nonZero + bytes(0x00) +
+                        bytes(0x01, 0xFF) + nonZero + bytes(0x00),
+                bytes(0x00), bytes(0x11, 0x22, 0x00, 0x33), nonZero, bytes(0x00) + nonZero)
+    }
+
+    @Test
+    fun malformedCobsFramesAreDropped() {
+        assertDecodes(FrameDecoders.cobs(),
+                // A lone zero, then a block cut short by a zero, then a valid frame
+                bytes(0x00) + bytes(0x05, 0x11, 0x22, 0x00) + bytes(0x02, 0x33, 0x00),
+                bytes(0x33))
+    }
+
+    @Test
+    fun oversizeFramesAreRejected() {
+        assertRejected(FrameDecoders.delimited(bytes("\n"), 4), bytes("12345\n"))
+        assertRejected(FrameDecoders.lengthPrefixed(1, maxFrameLength = 4), bytes(5) + bytes("12345"))
+        assertRejected(FrameDecoders.varintLengthPrefixed(), bytes(0x80, 0x80, 0x80, 0x80, 0x80))
+        assertRejected(FrameDecoders.slip(4), bytes("12345") + bytes(END))
+        assertRejected(FrameDecoders.cobs(4), bytes(0x06) + bytes("12345") + bytes(0x00))
+    }
+
+    @Test
+    fun decoderCarriesOnAfterRejectingAFrame() {
+        val decoder = FrameDecoders.delimited(bytes("\n"), 4)
+        try {
+            decode(decoder, listOf(bytes("123456")))
+            fail("Frame was not rejected")
+        } catch (expected: FrameDecodingException) {
+        }
+        assertEquals(listOf(bytes("ok")).map { it.toList() }, decode(decoder, listOf(bytes("\nok\n")), reset = false).drop(1))
+    }
+
+    @Test(timeout = 10_000)
+    fun deviceDecodesSeveralFramesFromOneWrite() {
+        val device = manager.openSerialDevice(MAC).blockingGet()
+        val frames = device.openFrameStream(FrameDecoders.cobs()).map(::consume).test()
+        factory.peer(MAC)!!.outputStream.write(bytes(0x02, 0x11, 0x00, 0x01, 0x01, 0x00, 0x03, 0x22, 0x33, 0x00))
+        frames.awaitCount(3)
+        frames.assertValues(bytes(0x11).toList(), bytes(0x00).toList(), bytes(0x22, 0x33).toList())
+        frames.assertNotTerminated()
+    }
+
+    @Test(timeout = 10_000)
+    fun deviceReportsDecodingErrorsAfterEarlierFrames() {
+        val device = manager.openSerialDevice(MAC).blockingGet()
+        val frames = device.openFrameStream(FrameDecoders.lengthPrefixed(1, maxFrameLength = 2))
+                .map(::consume).test()
+        factory.peer(MAC)!!.outputStream.write(bytes(1) + bytes("a") + bytes(3) + bytes("abc"))
+        frames.awaitTerminalEvent()
+        frames.assertValue(bytes("a").toList())
+        frames.assertError(FrameDecodingException::class.java)
+    }
+
+    @Test(timeout = 10_000)
+    fun releasedFramesAreReused() {
+        val device = manager.openSerialDevice(MAC).blockingGet()
+        val frames = device.openFrameStream(FrameDecoders.delimited(bytes("\n"))).test()
+        val peer = factory.peer(MAC)!!
+        peer.outputStream.write(bytes("first\n"))
+        frames.awaitCount(1)
+        val first = frames.values()[0]
+        assertEquals("first", String(first.toByteArray()))
+        first.release()
+
+        peer.outputStream.write(bytes("second\n"))
+        frames.awaitCount(2)
+        val second = frames.values()[1]
+        assertSame(first, second)
+        assertEquals("second", String(second.toByteArray()))
+    }
+
+    /**
+     * Checks that [input] decodes to [expected] whole, split in two at every point, and a byte at a time
+     */
+    private fun assertDecodes(decoder: FrameDecoder, input: ByteArray, vararg expected: ByteArray) {
+        val frames = expected.map { it.toList() }
+        assertEquals(frames, decode(decoder, listOf(input)))
+        for (split in 1 until input.size) {
+            assertEquals("Split at $split", frames, decode(decoder, listOf(input.copyOfRange(0, split), input.copyOfRange(split, input.size))))
+        }
+        assertEquals(frames, decode(decoder, input.map { byteArrayOf(it) }))
+    }
+
+    private fun assertRejected(decoder: FrameDecoder, input: ByteArray) {
+        try {
+            decode(decoder, input.map { byteArrayOf(it) })
+            fail("Frame was not rejected")
+        } catch (expected: FrameDecodingException) {
+        }
+    }
+
+    private fun decode(decoder: FrameDecoder, chunks: List<ByteArray>, reset: Boolean = true): List<List<Byte>> {
+        if (reset) decoder.reset()
+        val frames = ArrayList<List<Byte>>()
+        val sink = object : FrameDecoder.FrameSink {
+            override fun onFrame(frame: ByteBuffer) {
+                val copy = ByteArray(frame.remaining())
+                frame.get(copy)
+                frames.add(copy.toList())
+            }
+        }
+        for (chunk in chunks) decoder.decode(ByteBuffer.wrap(chunk), sink)
+        return frames
+    }
+
+    private fun consume(frame: Frame): List<Byte> {
+        val bytes = frame.toByteArray().toList()
+        frame.release()
+        return bytes
+    }
+
+    private fun bytes(text: String) = text.toByteArray(Charsets.ISO_8859_1)
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+        const val END = 0xC0
+        const val ESC = 0xDB
+        const val ESC_END = 0xDC
+        const val ESC_ESC = 0xDD
+    }
+}
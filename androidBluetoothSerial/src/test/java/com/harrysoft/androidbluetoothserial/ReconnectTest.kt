@@ -0,0 +1,44 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.io.IOException
+
+class ReconnectTest {
+    private val memory = MemoryTransportFactory()
+    @Volatile private var reachable = true
+    private val manager = BluetoothManager.create(object : TransportFactory {
+        override fun createTransport(mac: String): SerialTransport {
+            if (!reachable) throw IOException("Device $mac is out of range")
+            return memory.createTransport(mac)
+        }
+    })
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun deviceThatGaveUpIsReplacedOnTheNextOpen() {
+        val policy = ReconnectPolicy.Builder().initialDelayMillis(10).maxAttempts(2).build()
+        val options = DeviceOptions.Builder().reconnectPolicy(policy).build()
+        val device = manager.openSerialDevice(MAC, options).blockingGet()
+        assertSame(device, manager.openSerialDevice(MAC, options).blockingGet())
+
+        val messages = device.openMessageStream().test()
+        reachable = false
+        memory.peer(MAC)!!.close()
+        messages.awaitTerminalEvent()
+        messages.assertError(IOException::class.java)
+
+        reachable = true
+        assertNotSame(device, manager.openSerialDevice(MAC, options).blockingGet())
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
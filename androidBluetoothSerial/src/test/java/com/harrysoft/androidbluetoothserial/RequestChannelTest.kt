@@ -0,0 +1,113 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.io.BufferedReader
+import java.io.IOException
+import java.io.InputStreamReader
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class RequestChannelTest {
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+    private lateinit var device: BluetoothSerialDevice
+    private lateinit var peer: MemoryTransport
+    private lateinit var requests: BufferedReader
+
+    @Before
+    fun setUp() {
+        device = manager.openSerialDevice(MAC).blockingGet()
+        peer = factory.peer(MAC)!!
+        requests = BufferedReader(InputStreamReader(peer.inputStream))
+    }
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test(timeout = 10_000)
+    fun repliesAreMatchedOutOfOrder() {
+        val channel = device.openRequestChannel(MessageCorrelators.prefixed())
+        val replies = listOf("a", "b", "c").map { channel.request(it).test() }
+        assertEquals(listOf("0:a", "1:b", "2:c"), (0 until 3).map { requests.readLine() })
+        assertEquals(3, channel.pendingRequestCount)
+
+        // Messages without a known correlation ID are ignored
+        reply("hello\n99:x\n2:C\n0:A\n")
+        replies[0].await().assertResult("A")
+        replies[2].await().assertResult("C")
+        replies[1].assertNotTerminated()
+        reply("1:B\n")
+        replies[1].await().assertResult("B")
+        assertEquals(0, channel.pendingRequestCount)
+    }
+
+    @Test(timeout = 10_000)
+    fun unansweredRequestTimesOut() {
+        val channel = device.openRequestChannel(MessageCorrelators.prefixed())
+        val unanswered = channel.request("lost", 100, TimeUnit.MILLISECONDS).test()
+        assertEquals("0:lost", requests.readLine())
+        unanswered.await().assertError(TimeoutException::class.java)
+        assertEquals(0, channel.pendingRequestCount)
+
+        // A late reply is dropped, and does not answer the next request
+        reply("0:late\n")
+        val next = channel.request("next").test()
+        assertEquals("1:next", requests.readLine())
+        reply("1:ok\n")
+        next.await().assertResult("ok")
+    }
+
+    @Test(timeout = 10_000)
+    fun closingFailsPendingRequests() {
+        val channel = device.openRequestChannel(MessageCorrelators.prefixed())
+        val pending = listOf("a", "b").map { channel.request(it).test() }
+        assertEquals(listOf("0:a", "1:b"), (0 until 2).map { requests.readLine() })
+        channel.close()
+
+        pending.forEach { it.await().assertError(IOException::class.java) }
+        assertEquals(0, channel.pendingRequestCount)
+        channel.request("after").test().await().assertError(IOException::class.java)
+    }
+
+    @Test(timeout = 10_000)
+    fun closingTheDeviceFailsPendingRequests() {
+        val channel = device.openRequestChannel(MessageCorrelators.prefixed())
+        val pending = channel.request("a").test()
+        assertEquals("0:a", requests.readLine())
+        manager.closeDevice(device)
+
+        pending.await().assertError(IOException::class.java)
+        assertEquals(0, channel.pendingRequestCount)
+    }
+
+    @Test(timeout = 10_000)
+    fun correlationIdsWrapAroundButAreNeverShared() {
+        val channel = device.openRequestChannel(MessageCorrelators.prefixed(maxCorrelationId = 1))
+        val first = channel.request("a").test()
+        val second = channel.request("b").test()
+        assertEquals(listOf("0:a", "1:b"), (0 until 2).map { requests.readLine() })
+        // ID 0 is still waiting for its reply
+        channel.request("c").test().await().assertError(IllegalStateException::class.java)
+
+        reply("0:A\n1:B\n")
+        first.await().assertResult("A")
+        second.await().assertResult("B")
+        val reused = channel.request("d").test()
+        assertEquals("1:d", requests.readLine())
+        reply("1:D\n")
+        reused.await().assertResult("D")
+    }
+
+    private fun reply(text: String) {
+        peer.outputStream.write(text.toByteArray())
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
@@ -0,0 +1,167 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class TelemetryDecoderTest {
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test
+    fun doublesMatchParseDoubleExactly() {
+        val inputs = mutableListOf(
+                "0", "-0", "+0", "-0.0", "0.0e10", "-0e-999999", "00012.5000", ".5", "5.", "+5", "-1",
+                "0.1", "0.2", "0.3", "3.141592653589793", "1e22", "1e-22", "1e23", "9007199254740992", "9007199254740993",
+                "123456789012345678", "1234567890123456789", "123456789012345678901234567890",
+                "1.00000000000000000000000000001", "0.000000000000000000000000000001", "99999999999999999.9",
+                "2.2250738585072014E-308", "2.2250738585072011e-308", "4.9e-324", "2e-324", "1.7976931348623157e308",
+                "1.7976931348623159e308", "1e400", "1e-400", "-1e-400", "123456789e-30", "8.98846567431158e307",
+                "NaN", "Infinity", "-Infinity")
+        val random = Random(17)
+        repeat(20_000) { inputs.add(randomDecimal(random)) }
+        repeat(2_000) { inputs.add(java.lang.Double.longBitsToDouble(random.nextLong()).toString()) }
+
+        val format = TelemetryFormat.Builder().doubleField("v").build()
+        val parsed = decode(format, inputs.joinToString("\n", postfix = "\n")).rows
+        assertEquals(inputs.size, parsed.size)
+        for (i in inputs.indices) {
+            val expected = java.lang.Double.parseDouble(inputs[i])
+            val actual = parsed[i][0] as Double
+            assertEquals(inputs[i], java.lang.Double.doubleToRawLongBits(expected), java.lang.Double.doubleToRawLongBits(actual))
+        }
+    }
+
+    @Test
+    fun malformedDoublesAreSkipped() {
+        val format = TelemetryFormat.Builder().doubleField("v").build()
+        val result = decode(format, "1.2.3\n1e\ne5\n--1\n1 2\nabc\n.\n-\n1e+\n0x10\n7\n")
+        assertEquals(listOf(listOf<Any>(7.0)), result.rows)
+        assertEquals(10, result.skipped)
+    }
+
+    @Test
+    fun longsThatOverflowAreSkipped() {
+        val format = TelemetryFormat.Builder().longField("n").build()
+        val result = decode(format, "9223372036854775807\n-9223372036854775808\n+7\n" +
+                "9223372036854775808\n-9223372036854775809\n99999999999999999999\n1.0\n+\n\n-3\n")
+        assertEquals(listOf<List<Any>>(listOf(Long.MAX_VALUE), listOf(Long.MIN_VALUE), listOf(7L), listOf(-3L)), result.rows)
+        assertEquals(5, result.skipped)
+    }
+
+    @Test
+    fun linesSplitAcrossChunksAreParsed() {
+        val format = TelemetryFormat.Builder().longField("a").doubleField("b").build()
+        val input = "a=1,b=2.5\nb=3.25, a = 2\r\n3,4.5\r5,6\n"
+        val expected = listOf<List<Any>>(listOf(1L, 2.5), listOf(2L, 3.25), listOf(3L, 4.5), listOf(5L, 6.0))
+        assertSplitsDecodeTo(format, input, expected, 0)
+    }
+
+    @Test
+    fun overlongLinesAreSkippedWhereverTheyAreSplit() {
+        val format = TelemetryFormat.Builder().longField("a").doubleField("b").maxLineLength(16).build()
+        val input = "1,2\n" + "9".repeat(40) + ",1\r\n" + "3,4\n" + "5,".repeat(9) + "\n7,8\n"
+        val expected = listOf<List<Any>>(listOf(1L, 2.0), listOf(3L, 4.0), listOf(7L, 8.0))
+        assertSplitsDecodeTo(format, input, expected, 2)
+    }
+
+    @Test
+    fun malformedLinesAreSkippedAndCounted() {
+        val format = TelemetryFormat.Builder().longField("a").doubleField("b").build()
+        val result = decode(format, "1,x\n1\na=1,c=2\n\n1,2.5\n,\n2,3\n")
+        assertEquals(listOf<List<Any>>(listOf(1L, 2.5), listOf(2L, 3.0)), result.rows)
+        assertEquals(4, result.skipped)
+    }
+
+    @Test(timeout = 10_000)
+    fun deviceStreamsParsedSamples() {
+        val format = TelemetryFormat.Builder().longField("t").doubleField("temp").build()
+        val device = manager.openSerialDevice(MAC).blockingGet()
+        val batches = device.openTelemetryStream(format).map { batch ->
+            val rows = (0 until batch.size).map { listOf(batch.getLong(0, it), batch.getDouble(1, it)) }
+            batch.release()
+            rows
+        }.test()
+        factory.peer(MAC)!!.outputStream.write("t=1,temp=21.5\nt=2,temp=-0.25\nbad\nt=3,te".toByteArray())
+        factory.peer(MAC)!!.outputStream.write("mp=22\n".toByteArray())
+        // The lines may arrive in any number of batches
+        while (batches.values().sumBy { it.size } < 3) Thread.sleep(10)
+        val rows = batches.values().flatten()
+        assertEquals(listOf<List<Any>>(listOf(1L, 21.5), listOf(2L, -0.25), listOf(3L, 22.0)), rows)
+    }
+
+    private class Result(val rows: List<List<Any>>, val skipped: Int)
+
+    /**
+     * Checks that [input] decodes to [expected] whole, split in two at every point, and a byte at a time
+     */
+    private fun assertSplitsDecodeTo(format: TelemetryFormat, input: String, expected: List<List<Any>>, skipped: Int) {
+        val bytes = input.toByteArray()
+        val splits = ArrayList<List<ByteArray>>()
+        splits.add(listOf(bytes))
+        for (split in 1 until bytes.size) splits.add(listOf(bytes.copyOfRange(0, split), bytes.copyOfRange(split, bytes.size)))
+        splits.add(bytes.map { byteArrayOf(it) })
+        for (chunks in splits) {
+            val result = decode(format, chunks)
+            val description = chunks.joinToString("|") { String(it) }
+            assertEquals(description, expected, result.rows)
+            assertEquals(description, skipped, result.skipped)
+        }
+    }
+
+    private fun decode(format: TelemetryFormat, input: String): Result = decode(format, listOf(input.toByteArray()))
+
+    private fun decode(format: TelemetryFormat, chunks: List<ByteArray>): Result {
+        val decoder = TelemetryDecoder(format, TelemetryBatchPool(format, 4))
+        val rows = ArrayList<List<Any>>()
+        var skipped = 0
+        val sink = object : TelemetryDecoder.BatchSink {
+            override fun onBatch(batch: TelemetryBatch) {
+                for (row in 0 until batch.size) {
+                    rows.add(format.fieldTypes.indices.map { column ->
+                        if (format.fieldTypes[column] == TelemetryFormat.FieldType.LONG) batch.getLong(column, row) else batch.getDouble(column, row)
+                    })
+                }
+                skipped += batch.skippedLineCount
+                batch.release()
+            }
+        }
+        for (chunk in chunks) decoder.decode(chunk, 0, chunk.size, sink)
+        return Result(rows, skipped)
+    }
+
+    /**
+     * @return A decimal string with up to 25 digits, maybe a point, and maybe an exponent, which
+     * between them exercise both the exact fast path and the fallback
+     */
+    private fun randomDecimal(random: Random): String {
+        val builder = StringBuilder()
+        when (random.nextInt(3)) {
+            0 -> builder.append('-')
+            1 -> if (random.nextBoolean()) builder.append('+')
+        }
+        val digits = 1 + random.nextInt(25)
+        val point = random.nextInt(digits + 2) - 1
+        for (i in 0 until digits) {
+            if (i == point) builder.append('.')
+            builder.append('0' + random.nextInt(10))
+        }
+        if (random.nextBoolean()) {
+            builder.append(if (random.nextBoolean()) 'e' else 'E')
+            val exponent = random.nextInt(700) - 350
+            if (exponent >= 0 && random.nextBoolean()) builder.append('+')
+            builder.append(if (random.nextInt(4) == 0) exponent / 20 else exponent)
+        }
+        return builder.toString()
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
@@ -0,0 +1,111 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.util.Random
+
+class TrafficRecorderTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun ringKeepsTheNewestRecordsAsItWrapsAround() {
+        val file = folder.newFile()
+        val recorder = TrafficRecorder(file, CAPACITY)
+        val recorded = ArrayList<ByteArray>()
+        val random = Random(3)
+        // Enough to go round the ring many times, with records of every size
+        // up to a little more than half of it, which are split in two
+        repeat(3_000) { i ->
+            val length = if (i % 100 == 99) CAPACITY / 2 + random.nextInt(100) else 1 + random.nextInt(120)
+            val bytes = ByteArray(length) { (i + it).toByte() }
+            recorder.record(TraceRecord.Direction.values()[i % 2], bytes, 0, length)
+            recorded.add(bytes)
+
+            // The mapping is shared, so the file can be read back at any point
+            val records = TrafficTrace.read(file).records
+            assertRecent(recorded, records)
+            assertTrue(records.sumBy { it.bytes.size + TraceFormat.RECORD_HEADER_BYTES } <= CAPACITY)
+        }
+        recorder.close()
+        assertTrue(recorded.sumBy { it.size } > 50 * CAPACITY)
+    }
+
+    @Test(timeout = 10_000)
+    fun recordedTrafficReplaysAfterOverflowingTheRing() {
+        val file = folder.newFile()
+        val recorder = TrafficRecorder(file, CAPACITY)
+        val factory = MemoryTransportFactory()
+        val manager = BluetoothManager.create(factory)
+        val lines = (0 until 200).map { "sample $it" }
+        try {
+            val device = manager.openSerialDevice(MAC, DeviceOptions.Builder().recorder(recorder).build()).blockingGet()
+            val messages = device.openMessageStream().test()
+            val peer = factory.peer(MAC)!!
+            for (line in lines) {
+                peer.outputStream.write("$line\n".toByteArray())
+                if (line.endsWith("0")) device.send("ack $line\n").blockingAwait()
+            }
+            messages.awaitCount(lines.size)
+            // Sent after the reader has caught up, so that it is among the records the ring keeps
+            device.send("done\n").blockingAwait()
+        } finally {
+            manager.close()
+        }
+        recorder.close()
+
+        val trace = TrafficTrace.read(file)
+        assertTrue(trace.bytesSent > 0)
+        val received = ByteArrayOutputStream()
+        trace.records.filter { it.direction == TraceRecord.Direction.RECEIVED }.forEach { received.write(it.bytes) }
+        // The ring has overflowed, so the trace holds the latest lines, the first of them perhaps cut
+        // short, or even to nothing but its newline, which does not make a message
+        val tail = String(received.toByteArray()).split('\n').dropLast(1).filter { it.isNotEmpty() }
+        assertTrue(tail.size in 2 until lines.size)
+        assertTrue(lines[lines.size - tail.size].endsWith(tail[0]))
+        assertEquals(lines.takeLast(tail.size - 1), tail.drop(1))
+
+        val replay = BluetoothManager.create(object : TransportFactory {
+            override fun createTransport(mac: String): SerialTransport = ReplayTransport(trace, ReplayTransport.MAX_SPEED)
+        })
+        try {
+            val replayed = replay.openSerialDevice(MAC).blockingGet().openMessageStream().test()
+            replayed.awaitCount(tail.size)
+            replayed.assertValueSequence(tail)
+        } finally {
+            replay.close()
+        }
+    }
+
+    /**
+     * Checks that [records] are the last of the [recorded] payloads, split where they were too long
+     */
+    private fun assertRecent(recorded: List<ByteArray>, records: List<TraceRecord>) {
+        val payloads = ByteArrayOutputStream()
+        records.forEach { payloads.write(it.bytes) }
+        val retained = payloads.toByteArray()
+        val expected = ByteArrayOutputStream()
+        var i = recorded.size
+        while (expected.size() < retained.size) {
+            val next = recorded[--i]
+            val previous = expected.toByteArray()
+            expected.reset()
+            expected.write(next)
+            expected.write(previous)
+        }
+        val all = expected.toByteArray()
+        // The oldest retained record may be the second half of a split one
+        assertArrayEquals(all.copyOfRange(all.size - retained.size, all.size), retained)
+        assertTrue(records.all { it.bytes.size <= CAPACITY / 2 - TraceFormat.RECORD_HEADER_BYTES })
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+        const val CAPACITY = TrafficRecorder.MIN_CAPACITY_BYTES
+    }
+}
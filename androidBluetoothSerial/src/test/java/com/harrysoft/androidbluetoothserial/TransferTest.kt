@@ -0,0 +1,198 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.Random
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+/**
+ * Sends transfers to a [TransferReceiver] on the peer of a [MemoryTransport],
+ * through a link that loses, corrupts and reorders frames on purpose.
+ */
+class TransferTest {
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+    private val executor = Executors.newSingleThreadExecutor()
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+        manager.close()
+    }
+
+    @Test(timeout = 30_000)
+    fun windowWrapsManyTimesOverACleanLink() {
+        val progress = transfer(Faults(), options().ackTimeoutMillis(TransferOptions.DEFAULT_ACK_TIMEOUT_MILLIS))
+        assertEquals(0L, progress.retransmissions)
+    }
+
+    @Test(timeout = 30_000)
+    fun lostChunksAndAcksAreSentAgain() {
+        val progress = transfer(Faults(drop = setOf(0, 3, 50), dropAcks = setOf(10, 120, CHUNKS - 1)), options())
+        assertTrue(progress.retransmissions >= 6)
+    }
+
+    @Test(timeout = 30_000)
+    fun corruptChunksAreNakkedAndSentAgain() {
+        val progress = transfer(Faults(corrupt = setOf(0, 77, CHUNKS - 1)), options())
+        assertTrue(progress.retransmissions >= 3)
+    }
+
+    @Test(timeout = 30_000)
+    fun reorderedChunksAreReassembled() {
+        transfer(Faults(delay = setOf(5, 60, 150)), options())
+    }
+
+    @Test(timeout = 30_000)
+    fun everyFaultAtOnce() {
+        transfer(Faults(drop = setOf(7, 8), dropAcks = setOf(9, 100), corrupt = setOf(20, 21), delay = setOf(40, 41)),
+                options().windowSize(3))
+    }
+
+    private fun options() = TransferOptions.Builder()
+            .chunkBytes(CHUNK_BYTES)
+            .windowSize(WINDOW_SIZE)
+            .ackTimeoutMillis(200)
+            .maxRetransmits(10)
+
+    /**
+     * Transfers a random payload through a link with [faults], checks that it arrived intact
+     *
+     * @return The final progress
+     */
+    private fun transfer(faults: Faults, options: TransferOptions.Builder): TransferProgress {
+        val payload = ByteArray(CHUNKS * CHUNK_BYTES - CHUNK_BYTES / 2)
+        Random(42).nextBytes(payload)
+        val device = manager.openSerialDevice(MAC).blockingGet()
+        val peer = factory.peer(MAC)!!
+        val receiver = TransferReceiver(FaultyInputStream(peer.inputStream, faults), AckDroppingOutputStream(peer.outputStream, faults))
+        val received = executor.submit(Callable {
+            val sink = ByteArrayOutputStream()
+            receiver.receive(sink)
+            sink.toByteArray()
+        })
+
+        val progress = device.transfer(ByteBuffer.wrap(payload), options.build()).test()
+        progress.awaitTerminalEvent()
+        progress.assertComplete()
+        assertArrayEquals(payload, received.get(10, TimeUnit.SECONDS))
+        val last = progress.values().last()
+        assertTrue(last.isComplete)
+        assertEquals(payload.size.toLong(), last.bytesAcknowledged)
+        assertTrue("Every fault should have been hit", faults.isEmpty)
+        return last
+    }
+
+    /**
+     * The sequence numbers whose first copy is dropped, corrupted or delayed, or whose first ack is dropped
+     */
+    private class Faults(
+            drop: Set<Int> = emptySet(),
+            dropAcks: Set<Int> = emptySet(),
+            corrupt: Set<Int> = emptySet(),
+            delay: Set<Int> = emptySet()
+    ) {
+        val drop = HashSet(drop)
+        val dropAcks = HashSet(dropAcks)
+        val corrupt = HashSet(corrupt)
+        val delay = HashSet(delay)
+
+        val isEmpty: Boolean get() = drop.isEmpty() && dropAcks.isEmpty() && corrupt.isEmpty() && delay.isEmpty()
+    }
+
+    /**
+     * Parses the frames the device sends and passes them on, except that the first copy
+     * of a faulty data frame is dropped, corrupted, or held back until the next data frame
+     */
+    private class FaultyInputStream(private val input: InputStream, private val faults: Faults) : InputStream(), TransferFrameParser.FrameSink {
+        private val parser = TransferFrameParser(TransferOptions.MAX_CHUNK_BYTES, this)
+        private val crc = CRC32()
+        private val raw = ByteArray(4096)
+        private val staged = ByteArrayOutputStream()
+        private val held = ArrayList<ByteArray>()
+        private var ready = ByteArray(0)
+        private var position = 0
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            while (position == ready.size) {
+                val count = input.read(raw, 0, raw.size)
+                if (count < 0) return -1
+                parser.parse(raw, 0, count)
+                ready = staged.toByteArray()
+                staged.reset()
+                position = 0
+            }
+            val count = minOf(len, ready.size - position)
+            System.arraycopy(ready, position, b, off, count)
+            position += count
+            return count
+        }
+
+        override fun onFrame(type: Byte, seq: Int, payload: ByteArray, offset: Int, length: Int) {
+            val frame = TransferProtocol.encode(crc, type, seq, payload, offset, length)
+            if (type != TransferProtocol.DATA) {
+                staged.write(frame)
+                return
+            }
+            when {
+                faults.drop.remove(seq) -> {
+                }
+                faults.corrupt.remove(seq) -> {
+                    frame[TransferProtocol.HEADER_BYTES] = (frame[TransferProtocol.HEADER_BYTES].toInt() xor 0xFF).toByte()
+                    staged.write(frame)
+                }
+                faults.delay.remove(seq) -> held.add(frame)
+                else -> {
+                    staged.write(frame)
+                    for (late in held) staged.write(late)
+                    held.clear()
+                }
+            }
+        }
+
+        override fun onCorrupt(type: Byte, seq: Int) {
+            throw AssertionError("The device sent a corrupt frame")
+        }
+    }
+
+    /**
+     * Drops the first ack the receiver sends for each of [Faults.dropAcks]
+     */
+    private class AckDroppingOutputStream(private val out: OutputStream, private val faults: Faults) : OutputStream() {
+        override fun write(b: Int) {
+            out.write(b)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len >= TransferProtocol.HEADER_BYTES && b[off + 1] == TransferProtocol.ACK &&
+                    faults.dropAcks.remove(TransferProtocol.getInt(b, off + 2))) return
+            out.write(b, off, len)
+        }
+
+        override fun flush() {
+            out.flush()
+        }
+    }
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+        const val CHUNK_BYTES = 64
+        const val CHUNKS = 200
+        const val WINDOW_SIZE = 8
+    }
+}
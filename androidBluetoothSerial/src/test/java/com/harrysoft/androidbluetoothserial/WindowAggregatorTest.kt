@@ -0,0 +1,158 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class WindowAggregatorTest {
+    private val format = TelemetryFormat.Builder().longField("t").doubleField("v").build()
+    private val decoder = TelemetryDecoder(format, TelemetryBatchPool(format, 1))
+    private val windows = ArrayList<WindowAggregate>()
+    private val factory = MemoryTransportFactory()
+    private val manager = BluetoothManager.create(factory)
+
+    @After
+    fun tearDown() {
+        manager.close()
+    }
+
+    @Test
+    fun countWindowsTumble() {
+        val aggregator = aggregator(WindowOptions.Builder().sizeInSamples(3).build())
+        add(aggregator, 0L, 1, 2, 3, 4, 5, 6, 7)
+
+        assertWindows(listOf(Window(0, 3, 3, 1.0, 3.0, 6.0, 3.0), Window(3, 6, 3, 4.0, 6.0, 15.0, 6.0)))
+    }
+
+    @Test
+    fun countWindowsSlide() {
+        val aggregator = aggregator(WindowOptions.Builder().sizeInSamples(4).slideInSamples(2).build())
+        add(aggregator, 0L, 1, 2, 3, 4, 5, 6, 7, 8)
+
+        assertWindows(listOf(
+                // The first window is cut short, as it starts before the first sample
+                Window(0, 2, 2, 1.0, 2.0, 3.0, 2.0),
+                Window(0, 4, 4, 1.0, 4.0, 10.0, 4.0),
+                Window(2, 6, 4, 3.0, 6.0, 18.0, 6.0),
+                Window(4, 8, 4, 5.0, 8.0, 26.0, 8.0)))
+    }
+
+    @Test
+    fun timeWindowsCloseWhenALaterSampleArrives() {
+        val aggregator = aggregator(WindowOptions.Builder().size(100, TimeUnit.MILLISECONDS)
+                .timeField("t", TimeUnit.MILLISECONDS).build())
+        addTimed(aggregator, 1000L to 1, 1050L to 2, 1099L to 3)
+        assertTrue(windows.isEmpty())
+        addTimed(aggregator, 1100L to 4)
+        assertWindows(listOf(Window(ms(1000), ms(1100), 3, 1.0, 3.0, 6.0, 3.0)))
+
+        // The empty windows in between are skipped
+        addTimed(aggregator, 1350L to 5)
+        assertWindows(listOf(Window(ms(1000), ms(1100), 3, 1.0, 3.0, 6.0, 3.0), Window(ms(1100), ms(1200), 1, 4.0, 4.0, 4.0, 4.0)))
+        // Time-field windows are not closed by the clock
+        assertFalse(aggregator.flush(Long.MAX_VALUE))
+    }
+
+    @Test
+    fun slidingTimeWindowsRollOverTheirPanes() {
+        val aggregator = aggregator(WindowOptions.Builder().size(100, TimeUnit.MILLISECONDS)
+                .slide(50, TimeUnit.MILLISECONDS).timeField("t", TimeUnit.MILLISECONDS).build())
+        addTimed(aggregator, 0L to 1, 60L to 2, 120L to 3, 400L to 4)
+
+        assertWindows(listOf(
+                Window(ms(0), ms(50), 1, 1.0, 1.0, 1.0, 1.0),
+                Window(ms(0), ms(100), 2, 1.0, 2.0, 3.0, 2.0),
+                Window(ms(50), ms(150), 2, 2.0, 3.0, 5.0, 3.0),
+                // The pane holding 2 has been reused, and holds nothing of it
+                Window(ms(100), ms(200), 1, 3.0, 3.0, 3.0, 3.0)))
+    }
+
+    @Test
+    fun timeGoingBackwardsRestartsTheWindows() {
+        val aggregator = aggregator(WindowOptions.Builder().size(100, TimeUnit.MILLISECONDS)
+                .timeField("t", TimeUnit.MILLISECONDS).build())
+        addTimed(aggregator, 1000L to 1, 1010L to 2, 10L to 3, 120L to 4)
+
+        assertWindows(listOf(Window(ms(1000), ms(1100), 2, 1.0, 2.0, 3.0, 2.0), Window(ms(10), ms(110), 1, 3.0, 3.0, 3.0, 3.0)))
+    }
+
+    @Test
+    fun receiveTimeWindowsAreFlushedWithoutALaterSample() {
+        val aggregator = aggregator(WindowOptions.Builder().size(100, TimeUnit.MILLISECONDS).build())
+        assertFalse(aggregator.flush(0))
+        val origin = ms(5_000)
+        add(aggregator, origin, 1, 2)
+        add(aggregator, origin + ms(40), 3)
+
+        assertFalse(aggregator.flush(origin + ms(99)))
+        assertTrue(windows.isEmpty())
+        assertTrue(aggregator.flush(origin + ms(100)))
+        assertWindows(listOf(Window(origin, origin + ms(100), 3, 1.0, 3.0, 6.0, 3.0)))
+        assertFalse(aggregator.flush(origin + ms(150)))
+
+        // Windows carry on from where the flush left them
+        add(aggregator, origin + ms(160), 4)
+        assertTrue(aggregator.flush(origin + ms(500)))
+        assertEquals(Window(origin + ms(100), origin + ms(200), 1, 4.0, 4.0, 4.0, 4.0), Window(windows.last()))
+    }
+
+    @Test(timeout = 10_000)
+    fun deviceEmitsTheLastWindowBeforeASilence() {
+        val device = manager.openSerialDevice(MAC).blockingGet()
+        val aggregates = device.openAggregateStream(format, WindowOptions.Builder().size(50, TimeUnit.MILLISECONDS).build()).test()
+        factory.peer(MAC)!!.outputStream.write("1,2.5\n2,3.5\n".toByteArray())
+        aggregates.awaitCount(1)
+
+        val window = aggregates.values()[0]
+        assertEquals(2, window.count)
+        assertEquals(3.0, window.mean("v"), 0.0)
+        aggregates.assertNotTerminated()
+    }
+
+    /**
+     * The parts of a [WindowAggregate] that tests compare, for the "v" column
+     */
+    private data class Window(val start: Long, val end: Long, val count: Int, val min: Double, val max: Double, val sum: Double, val last: Double) {
+        constructor(aggregate: WindowAggregate) : this(aggregate.start, aggregate.end, aggregate.count,
+                aggregate.min("v"), aggregate.max("v"), aggregate.sum("v"), aggregate.last("v"))
+    }
+
+    private fun assertWindows(expected: List<Window>) {
+        assertEquals(expected, windows.map(::Window))
+    }
+
+    private fun aggregator(window: WindowOptions) = WindowAggregator(format, window) { windows.add(it) }
+
+    /**
+     * Adds a sample of each value, with a timestamp of 0, as if received at [receivedNanos]
+     */
+    private fun add(aggregator: WindowAggregator, receivedNanos: Long, vararg values: Int) {
+        decode(aggregator, values.joinToString("") { "0,$it\n" }, receivedNanos)
+    }
+
+    /**
+     * Adds a sample of each value, with its timestamp
+     */
+    private fun addTimed(aggregator: WindowAggregator, vararg samples: Pair<Long, Int>) {
+        decode(aggregator, samples.joinToString("") { "${it.first},${it.second}\n" }, 0)
+    }
+
+    private fun decode(aggregator: WindowAggregator, lines: String, receivedNanos: Long) {
+        val bytes = lines.toByteArray()
+        decoder.decode(bytes, 0, bytes.size, object : TelemetryDecoder.BatchSink {
+            override fun onBatch(batch: TelemetryBatch) {
+                aggregator.add(batch, receivedNanos)
+                batch.release()
+            }
+        })
+    }
+
+    private fun ms(millis: Long) = TimeUnit.MILLISECONDS.toNanos(millis)
+
+    private companion object {
+        const val MAC = "00:11:22:33:44:55"
+    }
+}
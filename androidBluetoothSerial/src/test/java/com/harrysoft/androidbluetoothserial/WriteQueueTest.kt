@@ -0,0 +1,293 @@
+package com.harrysoft.androidbluetoothserial
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class WriteQueueTest {
+    private val transport = RecordingTransport()
+    private val metrics = DeviceMetrics()
+    private val connection = DeviceConnection("test-reconnect", transport, null, metrics, { }) { throw IOException("No reconnect") }
+    private var queue: WriteQueue? = null
+
+    @After
+    fun tearDown() {
+        queue?.close()
+        transport.release()
+    }
+
+    @Test(timeout = 10_000)
+    fun lessUrgentBacklogDoesNotSpinTheLinger() {
+        val queue = queue(lingerMillis = 500)
+        val normal = Write("normal")
+        queue.enqueue(normal)
+        // Let the writer take the message and start lingering on NORMAL
+        Thread.sleep(50)
+        val low = Write("low", SendPriority.LOW)
+        queue.enqueue(low)
+        val writer = thread(WRITER)
+        val before = cpuNanos(writer)
+        low.await()
+
+        assertTrue(normal.isWritten)
+        assertArrayEquals("normal".toByteArray(), transport.nextWrite())
+        assertArrayEquals("low".toByteArray(), transport.nextWrite())
+        val spent = TimeUnit.NANOSECONDS.toMillis(cpuNanos(writer) - before)
+        assertTrue("Writer spent ${spent}ms of CPU lingering", spent < 100)
+    }
+
+    @Test(timeout = 10_000)
+    fun batchesNeverExceedMaxBatchBytes() {
+        val queue = queue(maxBatchBytes = 8)
+        transport.hold()
+        queue.enqueue(Write("first"))
+        transport.awaitHeld()
+        val writes = (0 until 10).map { Write("m$it!") }
+        writes.forEach(queue::enqueue)
+        transport.release()
+        writes.last().await()
+
+        assertArrayEquals("first".toByteArray(), transport.nextWrite())
+        val written = StringBuilder()
+        while (true) {
+            val batch = transport.pollWrite() ?: break
+            assertTrue("Batch of ${batch.size} bytes", batch.size <= 8)
+            written.append(String(batch))
+        }
+        assertEquals(writes.joinToString("") { String(it.bytes) }, written.toString())
+        assertTrue(writes.all { it.isWritten })
+    }
+
+    @Test(timeout = 10_000)
+    fun lingerEndsOnceTheBatchIsFull() {
+        val queue = queue(maxBatchBytes = 8, lingerMillis = 5_000)
+        val first = Write("aaaa")
+        val second = Write("bbbb")
+        val started = System.nanoTime()
+        queue.enqueue(first)
+        queue.enqueue(second)
+        second.await()
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 2_000)
+        assertEquals("aaaabbbb", written())
+    }
+
+    @Test(timeout = 10_000)
+    fun lingerEndsWhenAMoreUrgentMessageArrives() {
+        val queue = queue(lingerMillis = 5_000)
+        val normal = Write("normal")
+        val started = System.nanoTime()
+        queue.enqueue(normal)
+        Thread.sleep(50)
+        // The urgent message then lingers in a batch of its own
+        queue.enqueue(Write("high", SendPriority.HIGH))
+        normal.await()
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 2_000)
+        assertArrayEquals("normal".toByteArray(), transport.nextWrite())
+    }
+
+    @Test(timeout = 10_000)
+    fun cancelledWritesAreSkipped() {
+        val queue = queue()
+        transport.hold()
+        queue.enqueue(Write("first"))
+        transport.awaitHeld()
+        val cancelledFirst = Write("x").also { it.cancelled = true }
+        val kept = Write("kept")
+        val cancelledLater = Write("y").also { it.cancelled = true }
+        val last = Write("last")
+        listOf(cancelledFirst, kept, cancelledLater, last).forEach(queue::enqueue)
+        transport.release()
+        last.await()
+
+        assertEquals("firstkeptlast", written())
+        assertTrue(kept.isWritten)
+        assertFalse(cancelledFirst.isWritten || cancelledLater.isWritten)
+        assertNull(cancelledFirst.error)
+        assertNull(cancelledLater.error)
+    }
+
+    @Test(timeout = 10_000)
+    fun closeFailsQueuedSends() {
+        val queue = queue()
+        transport.hold()
+        val first = Write("first")
+        queue.enqueue(first)
+        transport.awaitHeld()
+        val queued = listOf(Write("a"), Write("b", SendPriority.LOW))
+        queued.forEach(queue::enqueue)
+        queue.close()
+        transport.release()
+        queued.forEach { it.await() }
+
+        assertTrue(queued.all { it.error is IOException })
+        first.await()
+        val late = Write("late")
+        queue.enqueue(late)
+        late.await()
+        assertTrue(late.error is IOException)
+    }
+
+    @Test(timeout = 10_000)
+    fun urgentMessagesGoOutBetweenChunks() {
+        val queue = queue(chunkBytes = 4)
+        transport.hold()
+        val bulk = Write("AAAABBBBCCCCDD", SendPriority.LOW)
+        queue.enqueue(bulk)
+        transport.awaitHeld()
+        val urgent = Write("h", SendPriority.HIGH)
+        val normal = Write("n")
+        queue.enqueue(normal)
+        queue.enqueue(urgent)
+        transport.release()
+        bulk.await()
+
+        val writes = (0 until 6).map { String(transport.nextWrite()) }
+        assertEquals(listOf("AAAA", "h", "n", "BBBB", "CCCC", "DD"), writes)
+        assertTrue(urgent.isWritten && normal.isWritten)
+    }
+
+    @Test(timeout = 10_000)
+    fun everyChunkedMessageRestartsOnANewConnection() {
+        val replacement = RecordingTransport()
+        val policy = ReconnectPolicy.Builder().initialDelayMillis(0).jitter(0.0).build()
+        val connection = DeviceConnection("test-reconnect", transport, policy, metrics, { }) { replacement }
+        val queue = queue(chunkBytes = 4, connection = connection)
+        transport.hold()
+        val low = Write("LLLLllll", SendPriority.LOW)
+        queue.enqueue(low)
+        transport.awaitHeld()
+        // The NORMAL message starts after LOW's first chunk, and the connection drops during its second
+        val normal = Write("NNNNnnnn")
+        queue.enqueue(normal)
+        transport.failOnWrite = 3
+        transport.release()
+        low.await()
+
+        assertTrue(normal.isWritten && low.isWritten)
+        assertEquals("LLLL", String(transport.nextWrite()))
+        assertEquals("NNNN", String(transport.nextWrite()))
+        assertNull(transport.pollWrite())
+        val resent = (0 until 4).map { String(replacement.nextWrite()) }
+        assertEquals(listOf("NNNN", "nnnn", "LLLL", "llll"), resent)
+        connection.close()
+    }
+
+    private fun queue(maxBatchBytes: Int = 1024, lingerMillis: Long = 0, chunkBytes: Int = 1024,
+                      connection: DeviceConnection = this.connection): WriteQueue {
+        val queue = WriteQueue(WRITER, connection, maxBatchBytes, TimeUnit.MILLISECONDS.toNanos(lingerMillis), chunkBytes,
+                Int.MAX_VALUE, metrics, null, null)
+        this.queue = queue
+        return queue
+    }
+
+    /**
+     * @return Everything written so far, waiting for at least one write
+     */
+    private fun written(): String {
+        val builder = StringBuilder(String(transport.nextWrite()))
+        while (true) builder.append(String(transport.pollWrite() ?: break))
+        return builder.toString()
+    }
+
+    private fun thread(name: String): Thread = Thread.getAllStackTraces().keys.first { it.name == name }
+
+    private fun cpuNanos(thread: Thread): Long = ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.id)
+
+    /**
+     * A message that records how it was completed
+     */
+    private class Write(text: String, priority: SendPriority = SendPriority.NORMAL) : PendingWrite(text.toByteArray(), priority) {
+        private val done = CountDownLatch(1)
+        @Volatile var isWritten = false
+        @Volatile var error: Throwable? = null
+        @Volatile var cancelled = false
+
+        override val isCancelled: Boolean get() = cancelled
+
+        override fun onWritten() {
+            isWritten = true
+            done.countDown()
+        }
+
+        override fun onFailed(error: Throwable) {
+            this.error = error
+            done.countDown()
+        }
+
+        fun await() {
+            assertTrue("Message was not completed", done.await(5, TimeUnit.SECONDS))
+        }
+    }
+
+    /**
+     * Records each write separately, and can hold writes until [release] is called
+     */
+    private class RecordingTransport : SerialTransport {
+        private val writes = LinkedBlockingQueue<ByteArray>()
+        @Volatile private var gate: CountDownLatch? = null
+        private val held = CountDownLatch(1)
+        private var writeCount = 0
+
+        /**
+         * The number of the write, counting from 1, from which every write fails, or 0 for none
+         */
+        @Volatile var failOnWrite = 0
+
+        override val inputStream: InputStream = ByteArrayInputStream(ByteArray(0))
+
+        override val outputStream: OutputStream = object : OutputStream() {
+            override fun write(b: Int) {
+                write(byteArrayOf(b.toByte()), 0, 1)
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                gate?.let {
+                    held.countDown()
+                    it.await()
+                }
+                writeCount++
+                if (failOnWrite in 1..writeCount) throw IOException("Write failed")
+                writes.put(b.copyOfRange(off, off + len))
+            }
+        }
+
+        fun hold() {
+            gate = CountDownLatch(1)
+        }
+
+        fun awaitHeld() {
+            assertTrue("Nothing was written", held.await(5, TimeUnit.SECONDS))
+        }
+
+        fun release() {
+            gate?.countDown()
+            gate = null
+        }
+
+        fun nextWrite(): ByteArray = writes.poll(5, TimeUnit.SECONDS) ?: throw AssertionError("Nothing was written")
+
+        fun pollWrite(): ByteArray? = writes.poll()
+
+        override fun connect() {
+        }
+
+        override fun close() {
+        }
+    }
+
+    private companion object {
+        const val WRITER = "test-writer"
+    }
+}
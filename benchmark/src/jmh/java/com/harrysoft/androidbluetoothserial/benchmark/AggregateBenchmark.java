@@ -0,0 +1,115 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.TelemetryFormat;
+import com.harrysoft.androidbluetoothserial.WindowOptions;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.disposables.Disposable;
+
+// Measures how many sensor samples per second reach a subscriber, and how many items the
+// subscriber is handed per sample, when every sample is delivered as a message and when
+// openAggregateStream() summarises them over windows of 100 samples on the reader thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AggregateBenchmark {
+    private static final int BATCH = 1000;
+    private static final int WINDOW = 100;
+
+    @Param({"samples", "aggregates"})
+    public String stream;
+
+    // Samples summarised so far, and items handed to the subscriber
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private long expected;
+    private byte[] batch;
+    private BluetoothManager manager;
+    private OutputStream deviceOutput;
+    private Disposable subscription;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Deliveries {
+        public long deliveries;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        BluetoothSerialDevice device = manager.openSerialDevice(Messages.MAC).blockingGet();
+        deviceOutput = transportFactory.peer(Messages.MAC).getOutputStream();
+        batch = samples();
+        if (stream.equals("aggregates")) {
+            TelemetryFormat format = new TelemetryFormat.Builder()
+                    .longField("t")
+                    .doubleField("ax")
+                    .doubleField("ay")
+                    .doubleField("az")
+                    .build();
+            WindowOptions window = new WindowOptions.Builder().sizeInSamples(WINDOW).build();
+            subscription = device.openAggregateStream(format, window)
+                    .subscribe(aggregate -> {
+                        deliveries.incrementAndGet();
+                        samples.addAndGet(aggregate.getCount());
+                    });
+        } else {
+            subscription = device.openMessageStream()
+                    .subscribe(message -> {
+                        deliveries.incrementAndGet();
+                        samples.incrementAndGet();
+                    });
+        }
+    }
+
+    // A batch of accelerometer samples, as a 1 kHz sensor would send them in a second
+    private static byte[] samples() {
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BATCH; i++) {
+            builder.append(String.format(Locale.ROOT, "t=%d,ax=%.4f,ay=%.4f,az=%.4f\n", 1_000_000L + i,
+                    random.nextGaussian(), random.nextGaussian(), 9.81 + random.nextGaussian()));
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void summarise(Deliveries counters) throws IOException {
+        long before = deliveries.get();
+        expected += BATCH;
+        deviceOutput.write(batch);
+        Messages.awaitCount(samples, expected);
+        counters.deliveries += deliveries.get() - before;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscription.dispose();
+        manager.close();
+    }
+}
@@ -0,0 +1,118 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.DeliveryOptions;
+import com.harrysoft.androidbluetoothserial.MemoryTransport;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.SimpleBluetoothDeviceInterface;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.Scheduler;
+import io.reactivex.android.plugins.RxAndroidPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+// Measures how many main thread posts SimpleBluetoothDeviceInterface makes per message
+// received or sent, with every message delivered individually and in batches. The main
+// thread is stood in for by a single thread executor that counts the tasks it runs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchedDeliveryBenchmark {
+    private static final int BATCH = 256;
+
+    private static final AtomicLong POSTS = new AtomicLong();
+    private static final ExecutorService MAIN_THREAD = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "main");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Scheduler mainThread = Schedulers.from(command -> {
+            POSTS.incrementAndGet();
+            MAIN_THREAD.execute(command);
+        });
+        RxAndroidPlugins.setInitMainThreadSchedulerHandler(scheduler -> mainThread);
+    }
+
+    @Param({"false", "true"})
+    public boolean batching;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private long expectedReceived;
+    private long expectedSent;
+    private byte[] batch;
+    private String message;
+    private BluetoothManager manager;
+    private OutputStream deviceOutput;
+    private SimpleBluetoothDeviceInterface deviceInterface;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Posts {
+        public long posts;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        DeliveryOptions options = new DeliveryOptions.Builder().batching(batching).batchWindowMillis(0).build();
+        deviceInterface = manager.openSerialDevice(Messages.MAC).blockingGet().toSimpleDeviceInterface(options);
+        MemoryTransport peer = transportFactory.peer(Messages.MAC);
+        deviceOutput = peer.getOutputStream();
+        Messages.drain(peer.getInputStream());
+        batch = Messages.lines(64, BATCH, "UTF-8");
+        message = Messages.text(64) + '\n';
+        deviceInterface.setListeners(m -> received.incrementAndGet(), m -> sent.incrementAndGet(), e -> error.compareAndSet(null, e));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void receive(Posts posts) throws IOException {
+        long before = POSTS.get();
+        expectedReceived += BATCH;
+        deviceOutput.write(batch);
+        Messages.awaitCount(received, expectedReceived, error);
+        posts.posts += POSTS.get() - before;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send(Posts posts) {
+        long before = POSTS.get();
+        expectedSent += BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            deviceInterface.sendMessage(message);
+        }
+        Messages.awaitCount(sent, expectedSent, error);
+        posts.posts += POSTS.get() - before;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+}
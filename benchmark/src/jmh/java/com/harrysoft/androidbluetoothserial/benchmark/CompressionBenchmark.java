@@ -0,0 +1,147 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.CompressionOptions;
+import com.harrysoft.androidbluetoothserial.DeviceOptions;
+import com.harrysoft.androidbluetoothserial.MemoryTransport;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.SerialTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Measures how many JSON telemetry messages per second can be sent to a device over
+// a link limited to about 256 KB/s, without compression, with compression, and with
+// compression preset with a dictionary of the messages' field names.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompressionBenchmark {
+    private static final int BATCH = 64;
+    // More distinct messages than fit in deflate's 32 KB window, so that repeats cannot be matched
+    private static final int POOL = 4096;
+    private static final byte[] DICTIONARY =
+            "{\"timestamp\":,\"temperature\":,\"humidity\":,\"status\":\"OK\"}\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"none", "deflate", "dictionary"})
+    public String compression;
+
+    private final String[] messages = new String[POOL];
+    private int next;
+    private BluetoothManager manager;
+    private BluetoothSerialDevice device;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        Random random = new Random(1);
+        for (int i = 0; i < POOL; i++) {
+            messages[i] = "{\"timestamp\":" + (1600000000 + i) + ",\"temperature\":" + (150 + random.nextInt(150)) / 10.0
+                    + ",\"humidity\":" + (30 + random.nextInt(50)) + ",\"status\":\"OK\"}\n";
+        }
+        DeviceOptions.Builder options = new DeviceOptions.Builder();
+        CompressionOptions compressionOptions = null;
+        if (!compression.equals("none")) {
+            compressionOptions = new CompressionOptions.Builder()
+                    .dictionary(compression.equals("dictionary") ? DICTIONARY : null)
+                    .build();
+            options.compression(compressionOptions);
+        }
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        CompressionOptions accepted = compressionOptions;
+        Thread peer = new Thread(() -> {
+            MemoryTransport memoryPeer;
+            while ((memoryPeer = transportFactory.peer(Messages.MAC)) == null) {
+                Thread.yield();
+            }
+            SerialTransport link = new ThrottledTransport(memoryPeer);
+            try {
+                if (accepted != null) {
+                    link = accepted.accept(link);
+                }
+            } catch (IOException e) {
+                return;
+            }
+            Messages.drain(link.getInputStream());
+        }, "device-accept");
+        peer.start();
+        device = manager.openSerialDevice(Messages.MAC, options.build()).blockingGet();
+        peer.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send() {
+        // Messages are written in order, so once the last has been written so have the others
+        for (int i = 0; i < BATCH - 1; i++) {
+            device.send(nextMessage()).subscribe();
+        }
+        device.send(nextMessage()).blockingAwait();
+    }
+
+    private String nextMessage() {
+        String message = messages[next];
+        next = (next + 1) % POOL;
+        return message;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    // The device end of the link, reading 1 KB at most every 4 ms
+    private static final class ThrottledTransport implements SerialTransport {
+        private final MemoryTransport peer;
+        private final InputStream inputStream;
+
+        ThrottledTransport(MemoryTransport peer) {
+            this.peer = peer;
+            this.inputStream = new FilterInputStream(peer.getInputStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    LockSupport.parkNanos(4_000_000);
+                    return super.read(b, off, Math.min(len, 1024));
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return peer.getOutputStream();
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void close() {
+            peer.close();
+        }
+    }
+}
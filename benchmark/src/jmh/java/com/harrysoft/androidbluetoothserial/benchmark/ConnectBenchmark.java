@@ -0,0 +1,103 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.ConnectResult;
+import com.harrysoft.androidbluetoothserial.MemoryTransport;
+import com.harrysoft.androidbluetoothserial.SerialTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Measures the cold-start time to connect ten devices, one of which never answers,
+// when each reachable device takes 50 ms to connect and attempts time out after 250 ms.
+// One attempt at a time is the old sequential behaviour.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConnectBenchmark {
+    private static final int DEVICES = 10;
+    private static final String UNREACHABLE = "unreachable";
+    private static final long CONNECT_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 250;
+
+    @Param({"1", "4", "10"})
+    public int maxConcurrent;
+
+    private final List<String> macs = new ArrayList<>();
+    private BluetoothManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < DEVICES - 1; i++) {
+            macs.add("device-" + i);
+        }
+        macs.add(UNREACHABLE);
+    }
+
+    @Setup(Level.Invocation)
+    public void createManager() {
+        manager = BluetoothManager.create(mac -> new SlowTransport(mac.equals(UNREACHABLE) ? Long.MAX_VALUE : CONNECT_MILLIS));
+    }
+
+    @Benchmark
+    public List<ConnectResult> connect() {
+        return manager.openSerialDevices(macs, maxConcurrent, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).toList().blockingGet();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeManager() {
+        manager.close();
+    }
+
+    // An in-memory transport that takes a while to connect, as an RFCOMM socket does
+    private static final class SlowTransport implements SerialTransport {
+        private final MemoryTransport transport = MemoryTransport.createPair();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final long connectMillis;
+
+        SlowTransport(long connectMillis) {
+            this.connectMillis = connectMillis;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return transport.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return transport.getOutputStream();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            try {
+                if (closed.await(connectMillis, TimeUnit.MILLISECONDS)) throw new IOException("Connection aborted");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.DeliveryOptions;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.SimpleBluetoothDeviceInterface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures the time from a device sending a message to SimpleBluetoothDeviceInterface's
+// listener being called, when the listener runs on an executor, as a background service's
+// parser would, and when it is called directly on the reader thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchLatencyBenchmark {
+    @Param({"executor", "direct"})
+    public String dispatch;
+
+    private final AtomicLong received = new AtomicLong();
+    private final byte[] message = (Messages.text(32) + '\n').getBytes(StandardCharsets.UTF_8);
+    private long expected;
+    private ExecutorService executor;
+    private BluetoothManager manager;
+    private OutputStream deviceOutput;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        DeliveryOptions.Builder options = new DeliveryOptions.Builder();
+        if (dispatch.equals("direct")) {
+            options.direct(true);
+        } else {
+            options.executor(executor);
+        }
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        SimpleBluetoothDeviceInterface deviceInterface =
+                manager.openSerialDevice(Messages.MAC).blockingGet().toSimpleDeviceInterface(options.build());
+        deviceInterface.setMessageReceivedListener(m -> received.incrementAndGet());
+        deviceOutput = transportFactory.peer(Messages.MAC).getOutputStream();
+    }
+
+    @Benchmark
+    public void receive() throws IOException {
+        expected++;
+        deviceOutput.write(message);
+        Messages.awaitCount(received, expected);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,139 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.DeviceOptions;
+import com.harrysoft.androidbluetoothserial.FlowControlOptions;
+import com.harrysoft.androidbluetoothserial.MemoryTransport;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Measures how many bytes per second a serial module with a 64 byte receive buffer, drained
+// at 115200 baud, processes and how many it drops for lack of space, when writing as
+// fast as the connection accepts, when sleeping for a millisecond between messages as
+// callers had to, and with credit-based flow control.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FlowControlBenchmark {
+    private static final int BATCH = 64;
+    private static final int MESSAGE_SIZE = 32;
+    private static final int UART_BUFFER = 64;
+    // 115200 baud with 10 bits per byte
+    private static final long BYTES_PER_SECOND = 11_520;
+
+    @Param({"none", "sleep", "credits"})
+    public String flowControl;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final String message = Messages.text(MESSAGE_SIZE - 1) + '\n';
+    private long expected;
+    private volatile boolean running = true;
+    private Thread module;
+    private BluetoothManager manager;
+    private BluetoothSerialDevice device;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long processedBytes;
+        public long droppedBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        DeviceOptions.Builder options = new DeviceOptions.Builder();
+        boolean credits = flowControl.equals("credits");
+        if (credits) {
+            options.flowControl(new FlowControlOptions.Builder().initialCredits(UART_BUFFER).build());
+        }
+        device = manager.openSerialDevice(Messages.MAC, options.build()).blockingGet();
+        MemoryTransport peer = transportFactory.peer(Messages.MAC);
+        module = new Thread(() -> emulateModule(peer, credits), "module");
+        module.setDaemon(true);
+        module.start();
+    }
+
+    // Moves whatever arrives into the module's buffer, dropping what does not fit, and
+    // drains the buffer at the module's baud rate, granting credit for what it drains
+    private void emulateModule(MemoryTransport peer, boolean credits) {
+        byte[] buffer = new byte[4096];
+        long level = 0;
+        long drained = 0;
+        long start = System.nanoTime();
+        try {
+            InputStream input = peer.getInputStream();
+            OutputStream output = peer.getOutputStream();
+            while (running) {
+                int available = input.available();
+                if (available > 0) {
+                    int count = input.read(buffer, 0, Math.min(available, buffer.length));
+                    long accepted = Math.min(count, UART_BUFFER - level);
+                    level += accepted;
+                    dropped.addAndGet(count - accepted);
+                }
+                long drainable = (System.nanoTime() - start) * BYTES_PER_SECOND / 1_000_000_000L - drained;
+                long drain = Math.min(level, drainable);
+                // The module drains at its own pace whether or not it has anything to drain
+                drained += level == 0 ? drainable : drain;
+                if (drain > 0) {
+                    level -= drain;
+                    processed.addAndGet(drain);
+                    if (credits) {
+                        output.write(FlowControlOptions.grantLine(drain));
+                    }
+                }
+                LockSupport.parkNanos(50_000);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send(Bytes bytes) throws InterruptedException {
+        long processedBefore = processed.get();
+        long droppedBefore = dropped.get();
+        expected += (long) BATCH * MESSAGE_SIZE;
+        for (int i = 0; i < BATCH; i++) {
+            device.send(message).subscribe();
+            if (flowControl.equals("sleep")) {
+                Thread.sleep(1);
+            }
+        }
+        while (processed.get() + dropped.get() < expected) {
+            Thread.sleep(1);
+        }
+        bytes.processedBytes += processed.get() - processedBefore;
+        bytes.droppedBytes += dropped.get() - droppedBefore;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        module.join();
+        manager.close();
+    }
+}
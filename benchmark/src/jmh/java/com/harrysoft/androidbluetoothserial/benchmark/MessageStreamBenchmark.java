@@ -0,0 +1,83 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.disposables.Disposable;
+
+// Measures how many lines per second openMessageStream() can split and decode,
+// and openMessageViewStream() for comparison. Run with the gc profiler to see the allocation per message.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageStreamBenchmark {
+    private static final int BATCH = 256;
+
+    @Param({"16", "128", "1024"})
+    public int messageSize;
+
+    @Param({"UTF-8", "ISO-8859-1", "UTF-16LE"})
+    public String charset;
+
+    @Param({"string", "view"})
+    public String stream;
+
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+    private byte[] batch;
+    private BluetoothManager manager;
+    private OutputStream deviceOutput;
+    private Disposable subscription;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        BluetoothSerialDevice device = manager.openSerialDevice(Messages.MAC, Charset.forName(charset)).blockingGet();
+        deviceOutput = transportFactory.peer(Messages.MAC).getOutputStream();
+        batch = Messages.lines(messageSize, BATCH, charset);
+        if (stream.equals("view")) {
+            subscription = device.openMessageViewStream()
+                    .subscribe(message -> {
+                        message.release();
+                        received.incrementAndGet();
+                    });
+        } else {
+            subscription = device.openMessageStream()
+                    .subscribe(message -> received.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void readLines() throws IOException {
+        expected += BATCH;
+        deviceOutput.write(batch);
+        Messages.awaitCount(received, expected);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscription.dispose();
+        manager.close();
+    }
+}
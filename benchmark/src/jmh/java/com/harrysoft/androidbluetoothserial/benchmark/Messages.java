@@ -0,0 +1,71 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Helpers shared by the benchmarks
+final class Messages {
+    static final String MAC = "00:11:22:33:44:55";
+
+    private Messages() {
+    }
+
+    // A message of the given length in characters, without a line terminator
+    static String text(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    // A batch of newline terminated messages, encoded as the device would send them
+    static byte[] lines(int length, int count, String charset) {
+        String line = text(length) + '\n';
+        StringBuilder builder = new StringBuilder(line.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(line);
+        }
+        return builder.toString().getBytes(Charset.forName(charset));
+    }
+
+    // Waits for a counter incremented on another thread to reach the target
+    static void awaitCount(AtomicLong counter, long target) {
+        while (counter.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    // As above, but fails the run with the first error the listeners reported instead of waiting forever
+    static void awaitCount(AtomicLong counter, long target, AtomicReference<Throwable> error) {
+        while (counter.get() < target) {
+            Throwable failure = error.get();
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+            Thread.yield();
+        }
+    }
+
+    // Reads and discards everything sent to the device so that writers never block
+    static void drain(InputStream inputStream) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                while (inputStream.read(buffer) >= 0) {
+                    // Discard
+                }
+            } catch (IOException ignored) {
+            }
+        }, "device-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
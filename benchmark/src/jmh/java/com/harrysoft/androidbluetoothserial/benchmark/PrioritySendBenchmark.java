@@ -0,0 +1,87 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.DeviceOptions;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.SendPriority;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.reactivex.disposables.Disposable;
+
+// Measures the latency of an urgent send while a large payload is being written
+// to a device that reads slowly, as a radio link would. With chunking, the urgent
+// message waits for one chunk; with sendChunkBytes larger than the payload it waits for all of it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrioritySendBenchmark {
+    private static final int BULK_BYTES = 256 * 1024;
+
+    @Param({"1024", "4096", "1048576"})
+    public int sendChunkBytes;
+
+    private final byte[] bulk = new byte[BULK_BYTES];
+    private BluetoothManager manager;
+    private BluetoothSerialDevice device;
+    private Disposable bulkSend;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        DeviceOptions options = new DeviceOptions.Builder().sendChunkBytes(sendChunkBytes).build();
+        device = manager.openSerialDevice(Messages.MAC, options).blockingGet();
+        slowDrain(transportFactory.peer(Messages.MAC).getInputStream());
+    }
+
+    @Setup(Level.Invocation)
+    public void queueBulk() {
+        bulkSend = device.send(bulk, SendPriority.LOW).subscribe();
+    }
+
+    @Benchmark
+    public void urgentSend() {
+        device.send("STOP\n", SendPriority.HIGH).blockingAwait();
+    }
+
+    @TearDown(Level.Invocation)
+    public void cancelBulk() {
+        bulkSend.dispose();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    // Reads about 10 MB/s, in 1 KB reads
+    private static void slowDrain(InputStream inputStream) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[1024];
+            try {
+                while (inputStream.read(buffer) >= 0) {
+                    LockSupport.parkNanos(100_000);
+                }
+            } catch (IOException ignored) {
+            }
+        }, "device-slow-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
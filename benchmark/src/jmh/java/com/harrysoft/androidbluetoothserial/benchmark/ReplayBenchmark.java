@@ -0,0 +1,109 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.DeviceOptions;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.ReplayTransport;
+import com.harrysoft.androidbluetoothserial.TrafficRecorder;
+import com.harrysoft.androidbluetoothserial.TrafficTrace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Measures how many messages per second a device decodes when a recorded trace of
+// bursty telemetry is played back as fast as possible, with and without recording
+// the replayed traffic to a second trace, which shows what recording costs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplayBenchmark {
+    private static final int MESSAGES = 20_000;
+
+    @Param({"false", "true"})
+    public boolean recording;
+
+    private File traceFile;
+    private File replayFile;
+    private TrafficTrace trace;
+    private TrafficRecorder recorder;
+    private BluetoothManager manager;
+    private DeviceOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        traceFile = File.createTempFile("replay-benchmark", ".trace");
+        replayFile = File.createTempFile("replay-benchmark-replayed", ".trace");
+        trace = record(traceFile);
+        manager = BluetoothManager.create(mac -> new ReplayTransport(trace, ReplayTransport.MAX_SPEED));
+        DeviceOptions.Builder builder = new DeviceOptions.Builder();
+        if (recording) {
+            recorder = new TrafficRecorder(replayFile);
+            builder.recorder(recorder);
+        }
+        options = builder.build();
+    }
+
+    // Records a device receiving telemetry in bursts of varying size, as a real device would send it
+    private static TrafficTrace record(File file) throws IOException {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        try (TrafficRecorder recorder = new TrafficRecorder(file);
+             BluetoothManager manager = BluetoothManager.create(transportFactory)) {
+            BluetoothSerialDevice device = manager.openSerialDevice(Messages.MAC,
+                    new DeviceOptions.Builder().recorder(recorder).build()).blockingGet();
+            OutputStream deviceOutput = transportFactory.peer(Messages.MAC).getOutputStream();
+            Random random = new Random(1);
+            StringBuilder burst = new StringBuilder();
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < MESSAGES; i++) {
+                        burst.append("{\"timestamp\":").append(1600000000 + i)
+                                .append(",\"temperature\":").append((150 + random.nextInt(150)) / 10.0)
+                                .append(",\"humidity\":").append(30 + random.nextInt(50)).append("}\n");
+                        if (random.nextInt(16) == 0 || i == MESSAGES - 1) {
+                            deviceOutput.write(burst.toString().getBytes(StandardCharsets.US_ASCII));
+                            burst.setLength(0);
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            }, "device-send");
+            sender.start();
+            device.openMessageStream().take(MESSAGES).blockingSubscribe();
+        }
+        return TrafficTrace.read(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long replay() {
+        BluetoothSerialDevice device = manager.openSerialDevice(Messages.MAC, options).blockingGet();
+        long count = device.openMessageStream().count().blockingGet();
+        manager.closeDevice(device);
+        return count;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+        if (recorder != null) recorder.close();
+        traceFile.delete();
+        replayFile.delete();
+    }
+}
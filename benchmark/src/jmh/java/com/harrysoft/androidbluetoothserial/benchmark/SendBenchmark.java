@@ -0,0 +1,63 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+// Measures the latency of send(), from subscribing to the Completable to it completing,
+// with a single sender and with several threads sending to the same device.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendBenchmark {
+    @Param({"16", "128", "1024"})
+    public int messageSize;
+
+    @Param({"UTF-8", "ISO-8859-1", "UTF-16LE"})
+    public String charset;
+
+    private String message;
+    private BluetoothManager manager;
+    private BluetoothSerialDevice device;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        device = manager.openSerialDevice(Messages.MAC, Charset.forName(charset)).blockingGet();
+        Messages.drain(transportFactory.peer(Messages.MAC).getInputStream());
+        message = Messages.text(messageSize) + '\n';
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void send() {
+        device.send(message).blockingAwait();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sendContended() {
+        device.send(message).blockingAwait();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+}
@@ -0,0 +1,104 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.MemoryTransport;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.SimpleBluetoothDeviceInterface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.Scheduler;
+import io.reactivex.android.plugins.RxAndroidPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+// Measures the cost of delivering messages to SimpleBluetoothDeviceInterface's listeners,
+// including the hop to the main thread, which is stood in for by a single thread executor.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SimpleInterfaceBenchmark {
+    private static final int BATCH = 256;
+
+    private static final ExecutorService MAIN_THREAD = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "main");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Scheduler mainThread = Schedulers.from(MAIN_THREAD);
+        RxAndroidPlugins.setInitMainThreadSchedulerHandler(scheduler -> mainThread);
+    }
+
+    @Param({"16", "128", "1024"})
+    public int messageSize;
+
+    @Param({"UTF-8", "ISO-8859-1", "UTF-16LE"})
+    public String charset;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private long expectedReceived;
+    private long expectedSent;
+    private byte[] batch;
+    private String message;
+    private BluetoothManager manager;
+    private OutputStream deviceOutput;
+    private SimpleBluetoothDeviceInterface deviceInterface;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        deviceInterface = manager.openSerialDevice(Messages.MAC, Charset.forName(charset)).blockingGet().toSimpleDeviceInterface();
+        MemoryTransport peer = transportFactory.peer(Messages.MAC);
+        deviceOutput = peer.getOutputStream();
+        Messages.drain(peer.getInputStream());
+        batch = Messages.lines(messageSize, BATCH, charset);
+        message = Messages.text(messageSize) + '\n';
+        deviceInterface.setListeners(m -> received.incrementAndGet(), m -> sent.incrementAndGet(), e -> error.compareAndSet(null, e));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void receive() throws IOException {
+        expectedReceived += BATCH;
+        deviceOutput.write(batch);
+        Messages.awaitCount(received, expectedReceived, error);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send() {
+        expectedSent += BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            deviceInterface.sendMessage(message);
+        }
+        Messages.awaitCount(sent, expectedSent, error);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+}
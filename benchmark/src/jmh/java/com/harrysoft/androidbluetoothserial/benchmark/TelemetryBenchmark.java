@@ -0,0 +1,121 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.TelemetryFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.disposables.Disposable;
+
+// Measures how many sensor samples per second can be turned into numbers, by splitting
+// the Strings from openMessageStream() and parsing each field, and with openTelemetryStream().
+// Run with the gc profiler to see the allocation per sample.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TelemetryBenchmark {
+    private static final int BATCH = 256;
+
+    @Param({"string", "telemetry"})
+    public String stream;
+
+    private final AtomicLong received = new AtomicLong();
+    // Written by the subscriber so that parsing cannot be optimised away
+    private volatile double sum;
+    private long expected;
+    private byte[] batch;
+    private BluetoothManager manager;
+    private OutputStream deviceOutput;
+    private Disposable subscription;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        BluetoothSerialDevice device = manager.openSerialDevice(Messages.MAC).blockingGet();
+        deviceOutput = transportFactory.peer(Messages.MAC).getOutputStream();
+        batch = samples();
+        if (stream.equals("telemetry")) {
+            TelemetryFormat format = new TelemetryFormat.Builder()
+                    .longField("t")
+                    .doubleField("ax")
+                    .doubleField("ay")
+                    .doubleField("az")
+                    .build();
+            subscription = device.openTelemetryStream(format)
+                    .subscribe(samples -> {
+                        double total = 0;
+                        double[] ax = samples.doubleColumn(1);
+                        for (int i = 0; i < samples.getSize(); i++) {
+                            total += ax[i];
+                        }
+                        int size = samples.getSize();
+                        samples.release();
+                        sum += total;
+                        received.addAndGet(size);
+                    });
+        } else {
+            subscription = device.openMessageStream()
+                    .subscribe(message -> {
+                        double ax = 0;
+                        for (String field : message.split(",")) {
+                            String[] keyValue = field.split("=");
+                            if (keyValue[0].equals("t")) {
+                                Long.valueOf(keyValue[1]);
+                            } else if (keyValue[0].equals("ax")) {
+                                ax = Double.valueOf(keyValue[1]);
+                            } else {
+                                Double.valueOf(keyValue[1]);
+                            }
+                        }
+                        sum += ax;
+                        received.incrementAndGet();
+                    });
+        }
+    }
+
+    // A batch of accelerometer samples, as a 1 kHz sensor would send them
+    private static byte[] samples() {
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BATCH; i++) {
+            builder.append(String.format(Locale.ROOT, "t=%d,ax=%.4f,ay=%.4f,az=%.4f\n", 1_000_000L + i,
+                    random.nextGaussian(), random.nextGaussian(), 9.81 + random.nextGaussian()));
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void parseSamples() throws IOException {
+        expected += BATCH;
+        deviceOutput.write(batch);
+        Messages.awaitCount(received, expected);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscription.dispose();
+        manager.close();
+    }
+}
@@ -0,0 +1,125 @@
+package com.harrysoft.androidbluetoothserial.benchmark;
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice;
+import com.harrysoft.androidbluetoothserial.MemoryTransport;
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory;
+import com.harrysoft.androidbluetoothserial.TransferOptions;
+import com.harrysoft.androidbluetoothserial.TransferReceiver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Measures the time to transfer a 64 KB image to an in-memory receiver whose acks take
+// 2 ms to arrive, as they would over a radio link. A window of one chunk is stop-and-wait.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+    private static final int IMAGE_BYTES = 64 * 1024;
+    private static final long ACK_DELAY_MICROS = 2000;
+
+    @Param({"1", "4", "16"})
+    public int windowSize;
+
+    private final ByteBuffer image = ByteBuffer.allocate(IMAGE_BYTES);
+    private BluetoothManager manager;
+    private BluetoothSerialDevice device;
+    private TransferOptions options;
+    private TransferReceiver receiver;
+    private ScheduledExecutorService link;
+    private Thread receiverThread;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        new Random(1).nextBytes(image.array());
+        MemoryTransportFactory transportFactory = new MemoryTransportFactory();
+        manager = BluetoothManager.create(transportFactory);
+        device = manager.openSerialDevice(Messages.MAC).blockingGet();
+        options = new TransferOptions.Builder().windowSize(windowSize).build();
+        link = Executors.newSingleThreadScheduledExecutor();
+        MemoryTransport peer = transportFactory.peer(Messages.MAC);
+        receiver = new TransferReceiver(peer.getInputStream(), new DelayedOutputStream(peer.getOutputStream(), link));
+    }
+
+    @Setup(Level.Invocation)
+    public void startReceiver() {
+        receiverThread = new Thread(() -> {
+            try {
+                receiver.receive(new DiscardingOutputStream());
+            } catch (IOException ignored) {
+            }
+        }, "transfer-receiver");
+        receiverThread.start();
+    }
+
+    @Benchmark
+    public Object transfer() {
+        return device.transfer(image, options).blockingLast();
+    }
+
+    @TearDown(Level.Invocation)
+    public void joinReceiver() throws InterruptedException {
+        receiverThread.join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        link.shutdownNow();
+        manager.close();
+    }
+
+    // Delivers each write after a fixed delay, in order
+    private static final class DelayedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final ScheduledExecutorService link;
+
+        DelayedOutputStream(OutputStream out, ScheduledExecutorService link) {
+            this.out = out;
+            this.link = link;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+            link.schedule(() -> {
+                try {
+                    out.write(copy);
+                } catch (IOException ignored) {
+                }
+            }, ACK_DELAY_MICROS, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static final class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
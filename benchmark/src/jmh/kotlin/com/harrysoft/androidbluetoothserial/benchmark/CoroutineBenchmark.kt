@@ -0,0 +1,108 @@
+package com.harrysoft.androidbluetoothserial.benchmark
+
+import com.harrysoft.androidbluetoothserial.BluetoothManager
+import com.harrysoft.androidbluetoothserial.BluetoothSerialDevice
+import com.harrysoft.androidbluetoothserial.CoroutineSerialDevice
+import com.harrysoft.androidbluetoothserial.MemoryTransportFactory
+import io.reactivex.disposables.Disposable
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.OutputStream
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+// Compares the coroutine API with the RxJava API on the same device:
+// the time per send when sending one message after another, and how many lines per second
+// a stream delivers. Collection is unconfined, so that both APIs deliver messages on the reader thread.
+@State(Scope.Benchmark)
+open class CoroutineBenchmark {
+    @Param("rx", "coroutines")
+    @JvmField
+    var api = ""
+
+    @Param("16", "128")
+    @JvmField
+    var messageSize = 0
+
+    private val received = AtomicLong()
+    private var expected = 0L
+    private lateinit var batch: ByteArray
+    private lateinit var message: String
+    private lateinit var manager: BluetoothManager
+    private lateinit var device: BluetoothSerialDevice
+    private lateinit var coroutineDevice: CoroutineSerialDevice
+    private lateinit var deviceOutput: OutputStream
+    private var subscription: Disposable? = null
+    private var collector: Job? = null
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val transportFactory = MemoryTransportFactory()
+        manager = BluetoothManager.create(transportFactory)
+        device = manager.openSerialDevice(Messages.MAC).blockingGet()
+        coroutineDevice = device.toCoroutineDevice()
+        val peer = transportFactory.peer(Messages.MAC)!!
+        Messages.drain(peer.inputStream)
+        deviceOutput = peer.outputStream
+        message = Messages.text(messageSize) + '\n'
+        batch = Messages.lines(messageSize, BATCH, "UTF-8")
+        if (api == "coroutines") {
+            collector = GlobalScope.launch(Dispatchers.Unconfined) {
+                coroutineDevice.messages().collect { received.incrementAndGet() }
+            }
+        } else {
+            subscription = device.openMessageStream().subscribe { received.incrementAndGet() }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(SEND_BATCH)
+    fun send() {
+        if (api == "coroutines") {
+            runBlocking {
+                repeat(SEND_BATCH) { coroutineDevice.send(message) }
+            }
+        } else {
+            repeat(SEND_BATCH) { device.send(message).blockingAwait() }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    fun readLines() {
+        expected += BATCH
+        deviceOutput.write(batch)
+        Messages.awaitCount(received, expected)
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        subscription?.dispose()
+        collector?.cancel()
+        manager.close()
+    }
+
+    companion object {
+        private const val BATCH = 256
+        private const val SEND_BATCH = 64
+    }
+}
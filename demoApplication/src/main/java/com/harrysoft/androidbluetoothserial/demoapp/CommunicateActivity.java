@@ -2,17 +2,25 @@ package com.harrysoft.androidbluetoothserial.demoapp;
 
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.view.LayoutInflater;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.ViewModelProviders;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.jetbrains.annotations.NotNull;
 
 public class CommunicateActivity extends AppCompatActivity {
 
-    private TextView connectionText, messagesView;
+    private TextView connectionText, noMessagesText;
+    private RecyclerView messagesView;
     private EditText messageBox;
     private Button sendButton, connectButton;
 
@@ -40,19 +48,23 @@ public class CommunicateActivity extends AppCompatActivity {
         // Setup our Views
         connectionText = findViewById(R.id.communicate_connection_text);
         messagesView = findViewById(R.id.communicate_messages);
+        noMessagesText = findViewById(R.id.communicate_no_messages);
         messageBox = findViewById(R.id.communicate_message);
         sendButton = findViewById(R.id.communicate_send);
         connectButton = findViewById(R.id.communicate_connect);
 
+        // Setup the RecyclerView, keeping the newest messages at the bottom
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        messagesView.setLayoutManager(layoutManager);
+        TranscriptAdapter adapter = new TranscriptAdapter(viewModel.getTranscript());
+        messagesView.setAdapter(adapter);
+        viewModel.getTranscript().setListener(adapter);
+        updateNoMessages();
+
         // Start observing the data sent to us by the ViewModel
         viewModel.getConnectionStatus().observe(this, this::onConnectionStatus);
         viewModel.getDeviceName().observe(this, name -> setTitle(getString(R.string.device_name_format, name)));
-        viewModel.getMessages().observe(this, message -> {
-            if (TextUtils.isEmpty(message)) {
-                message = getString(R.string.no_messages);
-            }
-            messagesView.setText(message);
-        });
         viewModel.getMessage().observe(this, message -> {
             // Only update the message if the ViewModel is trying to reset it
             if (TextUtils.isEmpty(message)) {
@@ -64,6 +76,20 @@ public class CommunicateActivity extends AppCompatActivity {
         sendButton.setOnClickListener(v -> viewModel.sendMessage(messageBox.getText().toString()));
     }
 
+    // Stop the transcript telling an adapter that is no longer shown about changes
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (viewModel != null) {
+            viewModel.getTranscript().setListener(null);
+        }
+    }
+
+    // Shows the placeholder text only while there are no messages to show
+    private void updateNoMessages() {
+        noMessagesText.setVisibility(viewModel.getTranscript().size() == 0 ? View.VISIBLE : View.GONE);
+    }
+
     // Called when the ViewModel updates us of our connectivity status
     private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connectionStatus) {
         switch (connectionStatus) {
@@ -116,4 +142,63 @@ public class CommunicateActivity extends AppCompatActivity {
         // Close the activity
         finish();
     }
+
+    // A class to hold a message in the RecyclerView
+    private class MessageViewHolder extends RecyclerView.ViewHolder {
+
+        private final TextView text;
+
+        MessageViewHolder(View view) {
+            super(view);
+            text = view.findViewById(R.id.transcript_item_text);
+        }
+
+        void setupView(Transcript.Entry entry) {
+            text.setText(getString(R.string.message_format, entry.sender, entry.message));
+        }
+    }
+
+    // A class to adapt the transcript to the RecyclerView. It only updates the rows
+    // that the transcript says have changed, so showing a new message costs the same
+    // however long the conversation is.
+    private class TranscriptAdapter extends RecyclerView.Adapter<MessageViewHolder> implements Transcript.Listener {
+        private final Transcript transcript;
+
+        TranscriptAdapter(Transcript transcript) {
+            this.transcript = transcript;
+        }
+
+        @NotNull
+        @Override
+        public MessageViewHolder onCreateViewHolder(@NotNull ViewGroup parent, int viewType) {
+            return new MessageViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.transcript_item, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(@NotNull MessageViewHolder holder, int position) {
+            holder.setupView(transcript.get(position));
+        }
+
+        @Override
+        public int getItemCount() {
+            return transcript.size();
+        }
+
+        @Override
+        public void onEntriesRemoved(int count) {
+            notifyItemRangeRemoved(0, count);
+            updateNoMessages();
+        }
+
+        @Override
+        public void onEntriesAdded(int position, int count) {
+            // Follow new messages only if the user was already looking at the newest ones
+            boolean atBottom = !messagesView.canScrollVertically(1);
+            notifyItemRangeInserted(position, count);
+            if (atBottom) {
+                messagesView.scrollToPosition(position + count - 1);
+            }
+            updateNoMessages();
+        }
+    }
 }
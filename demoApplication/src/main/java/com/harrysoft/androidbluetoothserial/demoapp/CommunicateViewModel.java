@@ -10,17 +10,29 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.harrysoft.androidbluetoothserial.BluetoothManager;
+import com.harrysoft.androidbluetoothserial.DeliveryOptions;
 import com.harrysoft.androidbluetoothserial.SimpleBluetoothDeviceInterface;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.schedulers.Schedulers;
 
 public class CommunicateViewModel extends AndroidViewModel {
 
+    // The most messages the conversation keeps. Older messages are dropped so that a device
+    // streaming for hours uses no more memory, and costs no more to display, than one that just connected.
+    private static final int TRANSCRIPT_CAPACITY = 1000;
+
+    // Deliver messages to the main thread in batches, so that a device sending hundreds of lines
+    // a second causes one update per frame rather than one per line
+    private static final DeliveryOptions DELIVERY_OPTIONS = new DeliveryOptions.Builder().batching(true).build();
+
     // A CompositeDisposable that keeps track of all of our asynchronous tasks
     private CompositeDisposable compositeDisposable = new CompositeDisposable();
 
@@ -31,8 +43,6 @@ public class CommunicateViewModel extends AndroidViewModel {
     @Nullable
     private SimpleBluetoothDeviceInterface deviceInterface;
 
-    // The messages feed that the activity sees
-    private MutableLiveData<String> messagesData = new MutableLiveData<>();
     // The connection status that the activity sees
     private MutableLiveData<ConnectionStatus> connectionStatusData = new MutableLiveData<>();
     // The device name that the activity sees
@@ -40,8 +50,8 @@ public class CommunicateViewModel extends AndroidViewModel {
     // The message in the message box that the activity sees
     private MutableLiveData<String> messageData = new MutableLiveData<>();
 
-    // Our modifiable record of the conversation
-    private StringBuilder messages = new StringBuilder();
+    // Our record of the conversation, which the activity displays and listens to for changes
+    private final Transcript transcript = new Transcript(TRANSCRIPT_CAPACITY);
 
     // Our configuration
     private String deviceName;
@@ -94,7 +104,7 @@ public class CommunicateViewModel extends AndroidViewModel {
             compositeDisposable.add(bluetoothManager.openSerialDevice(mac)
                     .subscribeOn(Schedulers.io())
                     .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(device -> onConnected(device.toSimpleDeviceInterface()), t -> {
+                    .subscribe(device -> onConnected(device.toSimpleDeviceInterface(DELIVERY_OPTIONS)), t -> {
                         toast(R.string.connection_failed);
                         connectionAttemptedOrMade = false;
                         connectionStatusData.postValue(ConnectionStatus.DISCONNECTED);
@@ -127,12 +137,13 @@ public class CommunicateViewModel extends AndroidViewModel {
             // We have a device! Tell the activity we are connected.
             connectionStatusData.postValue(ConnectionStatus.CONNECTED);
             // Setup the listeners for the interface
-            this.deviceInterface.setListeners(this::onMessageReceived, this::onMessageSent, t -> toast(R.string.message_send_error));
+            this.deviceInterface.setMessagesReceivedListener(this::onMessagesReceived);
+            this.deviceInterface.setMessagesSentListener(this::onMessagesSent);
+            this.deviceInterface.setErrorListener(t -> toast(R.string.message_send_error));
             // Tell the user we are connected.
             toast(R.string.connected);
             // Reset the conversation
-            messages = new StringBuilder();
-            messagesData.postValue(messages.toString());
+            transcript.clear();
         } else {
             // deviceInterface was null, so the connection failed
             toast(R.string.connection_failed);
@@ -140,21 +151,28 @@ public class CommunicateViewModel extends AndroidViewModel {
         }
     }
 
-    // Adds a received message to the conversation
-    private void onMessageReceived(String message) {
-        messages.append(deviceName).append(": ").append(message).append('\n');
-        messagesData.postValue(messages.toString());
+    // Adds a batch of received messages to the conversation
+    private void onMessagesReceived(List<String> messages) {
+        transcript.addAll(toEntries(deviceName, messages));
     }
 
-    // Adds a sent message to the conversation
-    private void onMessageSent(String message) {
-        // Add it to the conversation
-        messages.append(getApplication().getString(R.string.you_sent)).append(": ").append(message).append('\n');
-        messagesData.postValue(messages.toString());
+    // Adds a batch of sent messages to the conversation
+    private void onMessagesSent(List<String> messages) {
+        // Add them to the conversation
+        transcript.addAll(toEntries(getApplication().getString(R.string.you_sent), messages));
         // Reset the message box
         messageData.postValue("");
     }
 
+    // Helper method to label each message with who sent it.
+    private static List<Transcript.Entry> toEntries(String sender, List<String> messages) {
+        List<Transcript.Entry> entries = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            entries.add(new Transcript.Entry(sender, message));
+        }
+        return entries;
+    }
+
     // Send a message
     public void sendMessage(String message) {
         // Check we have a connected device and the message is not empty, then send the message
@@ -175,8 +193,8 @@ public class CommunicateViewModel extends AndroidViewModel {
     // Helper method to create toast messages.
     private void toast(@StringRes int messageResource) { Toast.makeText(getApplication(), messageResource, Toast.LENGTH_LONG).show(); }
 
-    // Getter method for the activity to use.
-    public LiveData<String> getMessages() { return messagesData; }
+    // Getter method for the activity to use. Only use it on the main thread.
+    public Transcript getTranscript() { return transcript; }
 
     // Getter method for the activity to use.
     public LiveData<ConnectionStatus> getConnectionStatus() { return connectionStatusData; }
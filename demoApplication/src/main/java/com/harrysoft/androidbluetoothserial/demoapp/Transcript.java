@@ -0,0 +1,96 @@
+package com.harrysoft.androidbluetoothserial.demoapp;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+// A record of the conversation that holds at most a fixed number of entries. Once it is full,
+// adding an entry evicts the oldest. Every change is reported to the listener as a range of
+// entries, so that a list only has to update the rows that changed rather than redraw everything.
+// Only used on the main thread.
+class Transcript {
+
+    // Told about each change, always removals before the additions that caused them
+    interface Listener {
+        // The given number of oldest entries were evicted, from position 0
+        void onEntriesRemoved(int count);
+
+        // The given number of entries were added at the end, starting at position
+        void onEntriesAdded(int position, int count);
+    }
+
+    // A single message in the conversation
+    static class Entry {
+        final String sender;
+        final String message;
+
+        Entry(String sender, String message) {
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    // The entries, in a ring starting at start
+    private final Entry[] entries;
+    private int start = 0;
+    private int size = 0;
+
+    @Nullable
+    private Listener listener;
+
+    Transcript(int capacity) {
+        entries = new Entry[capacity];
+    }
+
+    void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Returns the entry at position, where 0 is the oldest
+    Entry get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + size);
+        }
+        return entries[(start + position) % entries.length];
+    }
+
+    void add(Entry entry) {
+        evict(size + 1 - entries.length);
+        entries[(start + size) % entries.length] = entry;
+        size++;
+        if (listener != null) listener.onEntriesAdded(size - 1, 1);
+    }
+
+    void addAll(List<Entry> newEntries) {
+        // Entries that would be evicted straight away are never added
+        int skip = Math.max(0, newEntries.size() - entries.length);
+        int count = newEntries.size() - skip;
+        if (count == 0) return;
+        evict(size + count - entries.length);
+        for (int i = 0; i < count; i++) {
+            entries[(start + size + i) % entries.length] = newEntries.get(skip + i);
+        }
+        size += count;
+        if (listener != null) listener.onEntriesAdded(size - count, count);
+    }
+
+    void clear() {
+        evict(size);
+        start = 0;
+    }
+
+    // Removes the given number of oldest entries, if positive
+    private void evict(int count) {
+        if (count <= 0) return;
+        for (int i = 0; i < count; i++) {
+            entries[(start + i) % entries.length] = null;
+        }
+        start = (start + count) % entries.length;
+        size -= count;
+        if (listener != null) listener.onEntriesRemoved(count);
+    }
+}